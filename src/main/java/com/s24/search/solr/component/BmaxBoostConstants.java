@@ -4,6 +4,10 @@ public interface BmaxBoostConstants {
 
     String COMPONENT_NAME = "bmax.booster";
 
+    // caches
+    String BOOSTER_CACHE = COMPONENT_NAME + "Cache";
+    String DOC_SET_CACHE = COMPONENT_NAME + ".docSetCache";
+
     // params
     String PENALIZE_EXTRA_TERMS = COMPONENT_NAME + ".penalize.extra";
     String PENALIZE_DOC_COUNT = COMPONENT_NAME + ".penalize.docs";
@@ -22,7 +26,12 @@ public interface BmaxBoostConstants {
     String VALUE_STRATEGY_ADDITIVELY = "bq";
     String VALUE_STRATEGY_MULTIPLICATIVE = "boost";
     String VALUE_STRATEGY_RERANK = "rq";
+    String VALUE_STRATEGY_BITSET = "bitset";
+    String VALUE_STRATEGY_CACHED = "cached";
 
     String SYNONYM_ENABLE = COMPONENT_NAME + ".synonyms";
 
+    String PREBUILT_QUERIES = COMPONENT_NAME + ".prebuilt";
+    String SHARD_CLAUSES = COMPONENT_NAME + ".clauses";
+
 }
@@ -4,12 +4,21 @@ import static com.google.common.base.Preconditions.checkNotNull;
 import static com.s24.search.solr.component.BmaxBoostConstants.*;
 
 import java.io.IOException;
-
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import com.s24.search.solr.component.termstrategy.BmaxReRankQuery;
+import com.s24.search.solr.component.termstrategy.TermRankingClauses;
 import com.s24.search.solr.component.termstrategy.TermRankingStrategy;
 import com.s24.search.solr.component.termstrategy.TermRankingStrategyBuilder;
 import org.apache.commons.lang.StringUtils;
 import org.apache.logging.log4j.util.Strings;
 import org.apache.lucene.analysis.Analyzer;
+import org.apache.solr.common.SolrException;
+import org.apache.solr.common.SolrException.ErrorCode;
 import org.apache.solr.common.params.CommonParams;
 import org.apache.solr.common.params.DisMaxParams;
 import org.apache.solr.common.params.ModifiableSolrParams;
@@ -18,11 +27,13 @@ import org.apache.solr.common.params.SolrParams;
 import org.apache.solr.common.util.NamedList;
 import org.apache.solr.handler.component.ResponseBuilder;
 import org.apache.solr.handler.component.SearchComponent;
+import org.apache.solr.schema.FieldType;
 import org.apache.solr.schema.IndexSchema;
 import org.apache.solr.search.ReRankQParserPlugin;
+import org.apache.solr.search.SolrCache;
 
 import com.google.common.base.Joiner;
-import com.s24.search.solr.query.bmax.Terms;
+import com.s24.search.solr.query.bmax.BmaxRequestContext;
 import com.s24.search.solr.util.BmaxDebugInfo;
 
 /**
@@ -85,6 +96,9 @@ public class BmaxBoostTermComponent extends SearchComponent {
                      sort, "desc")))) {
             prepareInternal(rb);
          }
+      } else if (solrParams.getBool(COMPONENT_NAME, false) && solrParams.get(SHARD_CLAUSES) != null) {
+         // the aggregator computed the clauses already
+         prepareShard(rb);
       }
    }
 
@@ -97,11 +111,18 @@ public class BmaxBoostTermComponent extends SearchComponent {
       final boolean boost = params.getBool(BOOST_ENABLE, true);
       final boolean penalize = params.getBool(PENALIZE_ENABLE, true);
 
-      final String q = getExpandedQuery(params, schema, params.getBool(SYNONYM_ENABLE, true));
+      // analysis results are shared with the query parser through the request context
+      final BmaxRequestContext context = BmaxRequestContext.get(rb.req);
+
+      // prebuilt queries only reach the local query parser, distributed requests ship the clauses to the shards
+      final IndexSchema prebuiltSchema = params.getBool(PREBUILT_QUERIES, false) ? schema : null;
+      final List<TermRankingClauses> shardClauses = prebuiltSchema != null && rb.shards != null
+            ? new ArrayList<>() : null;
+      final String q = getExpansion(rb, params, schema, context).getExpandedQuery();
 
       // check boosts
       if (boost) {
-         String debugMessage = applyBoosts(params,schema,q);
+         String debugMessage = applyBoosts(params,schema,q,context,prebuiltSchema,shardClauses);
          if(rb.isDebugQuery()) {
             BmaxDebugInfo.add(rb, COMPONENT_NAME + ".boost.terms", debugMessage);
          }
@@ -109,23 +130,98 @@ public class BmaxBoostTermComponent extends SearchComponent {
 
       // check penalizes
       if (penalize) {
-         String debugMessage = applyPenalizing(params,schema,q);
+         String debugMessage = applyPenalizing(params,schema,q,context,prebuiltSchema,shardClauses);
          if(rb.isDebugQuery()) {
             BmaxDebugInfo.add(rb, COMPONENT_NAME + ".penalize.terms", debugMessage);
          }
       }
 
+      // rerank with boost and penalize terms in a single pass, unless a rerank query is given
+      if (!context.getReRankClauses().isEmpty() && params.get(CommonParams.RQ) == null) {
+         rb.setRankQuery(new BmaxReRankQuery(context.getReRankClauses(), context.getReRankDocs()));
+      }
+
+      // a single param, so both distributed phases reuse the clauses
+      if (shardClauses != null && !shardClauses.isEmpty()) {
+         params.set(SHARD_CLAUSES, TermRankingClauses.encode(shardClauses));
+      }
+
       rb.req.setParams(params);
    }
 
+   /**
+    * Applies the term ranking clauses the aggregator of a distributed request has computed, see
+    * {@link TermRankingClauses}. Neither the query is analyzed nor a query string is parsed on the shard.
+    */
+   protected void prepareShard(ResponseBuilder rb) {
+      checkNotNull(rb, "Pre-condition violated: rb must not be null.");
+
+      final SolrParams params = rb.req.getParams();
+      final BmaxRequestContext context = BmaxRequestContext.get(rb.req);
+
+      for (TermRankingClauses clauses : getShardClauses(rb, params.get(SHARD_CLAUSES))) {
+         createStrategyBuilder(clauses.getStrategy(), clauses.getDocs())
+               .withRequestContext(context)
+               .withFactor(clauses.getFactor())
+               .build()
+               .applyClauses(clauses.getClauses());
+      }
+
+      if (!context.getReRankClauses().isEmpty() && params.get(CommonParams.RQ) == null) {
+         rb.setRankQuery(new BmaxReRankQuery(context.getReRankClauses(), context.getReRankDocs()));
+      }
+   }
+
+   /**
+    * Decodes the shipped clauses. The decoded clauses are kept in the booster cache (if configured), so the shard
+    * decodes them once for all phases of a distributed request and for repeated queries.
+    */
+   @SuppressWarnings("unchecked")
+   private List<TermRankingClauses> getShardClauses(ResponseBuilder rb, String encoded) {
+      final SolrCache<Object, Object> cache = rb.req.getSearcher() != null
+            ? rb.req.getSearcher().getCache(BOOSTER_CACHE) : null;
+
+      List<TermRankingClauses> clauses = cache != null ? (List<TermRankingClauses>) cache.get(encoded) : null;
+      if (clauses == null) {
+         try {
+            clauses = TermRankingClauses.decode(encoded);
+         } catch (IllegalArgumentException e) {
+            throw new SolrException(ErrorCode.BAD_REQUEST, "Invalid " + SHARD_CLAUSES + " param.", e);
+         }
+
+         if (cache != null) {
+            cache.put(encoded, clauses);
+         }
+      }
+
+      return clauses;
+   }
+
+   private static TermRankingStrategyBuilder createStrategyBuilder(String strategy, int docCount) {
+      TermRankingStrategyBuilder termRankingStrategyBuilder = new TermRankingStrategyBuilder();
+      switch(strategy) {
+         case VALUE_STRATEGY_ADDITIVELY: termRankingStrategyBuilder.additiveTermRankingStrategy(); break;
+         case VALUE_STRATEGY_MULTIPLICATIVE: termRankingStrategyBuilder.multiplicativeTermRankingStrategy(); break;
+         case VALUE_STRATEGY_RERANK: termRankingStrategyBuilder.rerankTermRankingStrategy(docCount); break;
+         case VALUE_STRATEGY_BITSET: termRankingStrategyBuilder.bitSetTermRankingStrategy(); break;
+         case VALUE_STRATEGY_CACHED: termRankingStrategyBuilder.cachedTermRankingStrategy(); break;
+         default: throw new SolrException(ErrorCode.BAD_REQUEST, "Unknown strategy " + strategy + ".");
+      }
+      return termRankingStrategyBuilder;
+   }
+
    /**
     *
     * @param params
     * @param schema
     * @param q
+    * @param context
+    * @param prebuiltSchema the schema to prebuild queries with, <code>null</code> to use query strings
+    * @param shardClauses collects the clauses for the shards of a distributed request, may be <code>null</code>
     * @return the debug String
     */
-   private String applyBoosts(final ModifiableSolrParams params, final IndexSchema schema, String q) {
+   private String applyBoosts(final ModifiableSolrParams params, final IndexSchema schema, String q,
+         BmaxRequestContext context, IndexSchema prebuiltSchema, List<TermRankingClauses> shardClauses) {
       final String boostExtraTerms = params.get(BOOST_EXTRA_TERMS);
       final float boostFactor = Math.abs(params.getFloat(BOOST_FACTOR, 1f));
       final String boostStrategy = params.get(BOOST_STRATEGY, VALUE_STRATEGY_ADDITIVELY);
@@ -133,16 +229,13 @@ public class BmaxBoostTermComponent extends SearchComponent {
       final Analyzer boostAnalyzer = schema.getFieldTypeByName(boostTermFieldType).getQueryAnalyzer();
       final int boostDocCount = params.getInt(BOOST_DOC_COUNT, 400);
 
-      TermRankingStrategyBuilder termRankingStrategyBuilder = new TermRankingStrategyBuilder();
-      switch(boostStrategy) {
-         case VALUE_STRATEGY_ADDITIVELY: termRankingStrategyBuilder.additiveTermRankingStrategy(); break;
-         case VALUE_STRATEGY_MULTIPLICATIVE: termRankingStrategyBuilder.multiplicativeTermRankingStrategy(); break;
-         case VALUE_STRATEGY_RERANK: termRankingStrategyBuilder.rerankTermRankingStrategy(boostDocCount); break;
-      }
-
-      TermRankingStrategy strategy = termRankingStrategyBuilder
+      TermRankingStrategy strategy = createStrategyBuilder(boostStrategy, boostDocCount)
               .forQuery(q)
               .withAnalyzer(boostAnalyzer)
+              .withRequestContext(context)
+              .withPrebuiltQueries(prebuiltSchema)
+              .withShardClauses(shardClauses == null ? null : clauses -> shardClauses.add(
+                    new TermRankingClauses(boostStrategy, boostFactor, boostDocCount, clauses)))
               .withQueryField(queryFields)
               .withExtraTerms(boostExtraTerms)
               .withQueryType(boostQueryType)
@@ -152,7 +245,8 @@ public class BmaxBoostTermComponent extends SearchComponent {
       return strategy.apply(params);
    }
 
-   private String applyPenalizing(final ModifiableSolrParams params, final IndexSchema schema, String q) {
+   private String applyPenalizing(final ModifiableSolrParams params, final IndexSchema schema, String q,
+         BmaxRequestContext context, IndexSchema prebuiltSchema, List<TermRankingClauses> shardClauses) {
       final String penalizeExtraTerms = params.get(PENALIZE_EXTRA_TERMS);
       final float penalizeFactor = Math.abs(params.getFloat(PENALIZE_FACTOR, 100.0f));
       final String penalizeStrategy = params.get(PENALIZE_STRATEGY, VALUE_STRATEGY_RERANK);
@@ -160,16 +254,13 @@ public class BmaxBoostTermComponent extends SearchComponent {
       final Analyzer penalizeAnalyzer = schema.getFieldTypeByName(penalizeTermFieldType).getQueryAnalyzer();
       final int penalizeDocCount = params.getInt(PENALIZE_DOC_COUNT, 400);
 
-      TermRankingStrategyBuilder termRankingStrategyBuilder = new TermRankingStrategyBuilder();
-      switch(penalizeStrategy) {
-         case VALUE_STRATEGY_ADDITIVELY: termRankingStrategyBuilder.additiveTermRankingStrategy(); break;
-         case VALUE_STRATEGY_MULTIPLICATIVE: termRankingStrategyBuilder.multiplicativeTermRankingStrategy(); break;
-         case VALUE_STRATEGY_RERANK: termRankingStrategyBuilder.rerankTermRankingStrategy(penalizeDocCount); break;
-      }
-
-      TermRankingStrategy strategy = termRankingStrategyBuilder
+      TermRankingStrategy strategy = createStrategyBuilder(penalizeStrategy, penalizeDocCount)
               .forQuery(q)
               .withAnalyzer(penalizeAnalyzer)
+              .withRequestContext(context)
+              .withPrebuiltQueries(prebuiltSchema)
+              .withShardClauses(shardClauses == null ? null : clauses -> shardClauses.add(
+                    new TermRankingClauses(penalizeStrategy, -penalizeFactor, penalizeDocCount, clauses)))
               .withQueryField(queryFields)
               .withExtraTerms(penalizeExtraTerms)
               .withQueryType(penalizeQueryType)
@@ -183,6 +274,60 @@ public class BmaxBoostTermComponent extends SearchComponent {
       return Strings.EMPTY;
    }
 
+   /**
+    * Returns the analysis results for the current query. They only depend on the query and the configured field
+    * types, so they are looked up in the booster cache (if configured) and analyzed on a cache miss only. Either way,
+    * the results are handed to the request context, so the term ranking strategies and the bmax query parser will
+    * not analyze again.
+    */
+   @SuppressWarnings("unchecked")
+   protected BoostTermExpansion getExpansion(ResponseBuilder rb, final SolrParams params, final IndexSchema schema,
+         BmaxRequestContext context) {
+      final String q = params.get(CommonParams.Q);
+      final boolean synonyms = params.getBool(SYNONYM_ENABLE, true);
+      final Analyzer queryParsingAnalyzer = getQueryAnalyzer(schema, queryParsingFieldType);
+      final Analyzer boostAnalyzer = getQueryAnalyzer(schema, boostTermFieldType);
+      final Analyzer penalizeAnalyzer = getQueryAnalyzer(schema, penalizeTermFieldType);
+
+      final SolrCache<Object, Object> cache = rb.req.getSearcher() != null
+            ? rb.req.getSearcher().getCache(BOOSTER_CACHE) : null;
+      final Object key = Arrays.asList(q, synonyms, queryParsingFieldType, synonymFieldType, boostTermFieldType,
+            penalizeTermFieldType);
+
+      BoostTermExpansion expansion = cache != null ? (BoostTermExpansion) cache.get(key) : null;
+      if (expansion == null) {
+         // without a cache, only analyze what this request needs
+         final boolean boost = cache != null || params.getBool(BOOST_ENABLE, true);
+         final boolean penalize = cache != null || params.getBool(PENALIZE_ENABLE, true);
+
+         String expandedQuery = getExpandedQuery(params, schema, synonyms, context);
+         expansion = new BoostTermExpansion(
+               context.collect(q, queryParsingAnalyzer),
+               expandedQuery,
+               boost && boostAnalyzer != null ? context.collect(expandedQuery, boostAnalyzer) : null,
+               penalize && penalizeAnalyzer != null ? context.collect(expandedQuery, penalizeAnalyzer) : null);
+
+         if (cache != null) {
+            cache.put(key, expansion);
+         }
+      } else {
+         context.add(q, queryParsingAnalyzer, expansion.getQueryTerms());
+         if (boostAnalyzer != null && expansion.getBoostTerms() != null) {
+            context.add(expansion.getExpandedQuery(), boostAnalyzer, expansion.getBoostTerms());
+         }
+         if (penalizeAnalyzer != null && expansion.getPenalizeTerms() != null) {
+            context.add(expansion.getExpandedQuery(), penalizeAnalyzer, expansion.getPenalizeTerms());
+         }
+      }
+
+      return expansion;
+   }
+
+   private static Analyzer getQueryAnalyzer(IndexSchema schema, String fieldTypeName) {
+      FieldType fieldType = fieldTypeName != null ? schema.getFieldTypeByName(fieldTypeName) : null;
+      return fieldType != null ? fieldType.getQueryAnalyzer() : null;
+   }
+
    /**
     * Join the query terms and their synonym terms into a single query string
     * @param requestParams
@@ -191,18 +336,32 @@ public class BmaxBoostTermComponent extends SearchComponent {
     * @return
     */
    protected String getExpandedQuery(final SolrParams requestParams, final IndexSchema schema, boolean synonyms) {
+      return getExpandedQuery(requestParams, schema, synonyms, new BmaxRequestContext());
+   }
+
+   /**
+    * Join the query terms and their synonym terms into a single query string, reusing the analysis results of the
+    * given request context.
+    */
+   protected String getExpandedQuery(final SolrParams requestParams, final IndexSchema schema, boolean synonyms,
+         BmaxRequestContext context) {
 
       String q = requestParams.get(CommonParams.Q);
 
       final Analyzer queryParsingAnalyzer = schema.getFieldTypeByName(queryParsingFieldType).getQueryAnalyzer();
 
       // do a first query parsing approach
-      q = Joiner.on(' ').skipNulls().join(Terms.collect(q, queryParsingAnalyzer));
+      final Set<CharSequence> terms = context.collect(q, queryParsingAnalyzer);
+      q = Joiner.on(' ').skipNulls().join(terms);
 
-      // collect synonyms
+      // collect synonyms per term, like the bmax query parser does, so the analysis is shared
       if (synonyms) {
          final Analyzer synonymAnalyzer = schema.getFieldTypeByName(synonymFieldType).getQueryAnalyzer();
-         q += " " + Joiner.on(' ').skipNulls().join(Terms.collect(q, synonymAnalyzer));
+         final Set<CharSequence> termSynonyms = new LinkedHashSet<>();
+         for (CharSequence term : terms) {
+            termSynonyms.addAll(context.collect(term, synonymAnalyzer));
+         }
+         q += " " + Joiner.on(' ').skipNulls().join(termSynonyms);
       }
 
       return q;
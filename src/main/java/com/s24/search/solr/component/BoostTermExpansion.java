@@ -0,0 +1,65 @@
+package com.s24.search.solr.component;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+import com.google.common.base.Objects;
+
+/**
+ * The analysis results of the {@linkplain BmaxBoostTermComponent} for a query: the query terms, the expanded query
+ * (query terms and their synonyms) and the boost and penalize terms produced from the expanded query. Instances are
+ * immutable and can be shared through the booster cache.
+ */
+public class BoostTermExpansion {
+
+   private final Set<CharSequence> queryTerms;
+   private final String expandedQuery;
+   private final Set<CharSequence> boostTerms;
+   private final Set<CharSequence> penalizeTerms;
+
+   public BoostTermExpansion(Set<CharSequence> queryTerms, String expandedQuery, Set<CharSequence> boostTerms,
+         Set<CharSequence> penalizeTerms) {
+      this.queryTerms = copyOf(queryTerms);
+      this.expandedQuery = checkNotNull(expandedQuery, "Pre-condition violated: expandedQuery must not be null.");
+      this.boostTerms = copyOf(boostTerms);
+      this.penalizeTerms = copyOf(penalizeTerms);
+   }
+
+   private static Set<CharSequence> copyOf(Set<CharSequence> terms) {
+      return terms == null ? null : Collections.unmodifiableSet(new HashSet<>(terms));
+   }
+
+   public Set<CharSequence> getQueryTerms() {
+      return queryTerms;
+   }
+
+   public String getExpandedQuery() {
+      return expandedQuery;
+   }
+
+   /**
+    * Returns the boost terms, {@code null} if they have not been analyzed.
+    */
+   public Set<CharSequence> getBoostTerms() {
+      return boostTerms;
+   }
+
+   /**
+    * Returns the penalize terms, {@code null} if they have not been analyzed.
+    */
+   public Set<CharSequence> getPenalizeTerms() {
+      return penalizeTerms;
+   }
+
+   @Override
+   public String toString() {
+      return Objects.toStringHelper(this)
+            .add("expandedQuery", expandedQuery)
+            .add("boostTerms", boostTerms)
+            .add("penalizeTerms", penalizeTerms)
+            .toString();
+   }
+}
@@ -4,16 +4,37 @@ import com.google.common.base.Joiner;
 import com.google.common.base.Splitter;
 import com.google.common.collect.Sets;
 import com.s24.search.solr.component.termstrategy.TermRankingStrategy;
+import com.s24.search.solr.query.bmax.BmaxRequestContext;
 import com.s24.search.solr.query.bmax.Terms;
 import org.apache.logging.log4j.util.Strings;
 import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.BooleanClause.Occur;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.BoostQuery;
+import org.apache.lucene.search.DisjunctionMaxQuery;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.util.BytesRef;
 import org.apache.solr.common.params.ModifiableSolrParams;
 import org.apache.solr.common.params.SolrParams;
+import org.apache.solr.parser.SolrQueryParserBase.SynonymQueryStyle;
+import org.apache.solr.schema.IndexSchema;
+import org.apache.solr.schema.SchemaField;
+import org.apache.solr.schema.TextField;
+import org.apache.solr.search.DisMaxQParserPlugin;
 import org.apache.solr.util.SolrPluginUtils;
 
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Locale;
 import java.util.Map;
+import java.util.Set;
+import java.util.function.Consumer;
 
 import static com.google.common.base.Preconditions.checkNotNull;
 
@@ -25,29 +46,152 @@ public abstract class AbstractTermRankingStrategy implements TermRankingStrategy
     private String fields;
     private float boostFactor;
     private String queryType;
+    private BmaxRequestContext context = new BmaxRequestContext();
+    private IndexSchema schema;
+    private Consumer<List<Map<Term, Float>>> shardClauses;
 
     @Override
     public String apply(ModifiableSolrParams params) {
-        String joinedTerms = getTerms();
-        if (!joinedTerms.isEmpty()){
-            String termRankingQueryString = makeQueryString(params, joinedTerms);
+        Collection<CharSequence> terms = getTerms();
+        if (!terms.isEmpty()){
+            String joinedTerms = Joiner.on(" ").join(terms);
 
-            addToQuery(termRankingQueryString, params);
+            // prebuilt clauses are built like the dismax query parser would do, other query types parse strings
+            List<Map<Term, Float>> clauses = schema != null && DisMaxQParserPlugin.NAME.equals(queryType)
+                    ? makeClauses(params, terms) : null;
+
+            if (clauses != null && shardClauses != null) {
+                // distributed requests ship the clauses to the shards, see TermRankingClauses
+                if (!clauses.isEmpty()) {
+                    shardClauses.accept(clauses);
+                }
+            } else if (clauses == null || !addToContext(clauses, context)) {
+                // hand prebuilt clauses to the query parser if possible, fall back to a query string otherwise
+                String termRankingQueryString = makeQueryString(params, joinedTerms);
+                addToQuery(termRankingQueryString, params);
+            }
             return joinedTerms;
         }
         return Strings.EMPTY;
     }
 
+    @Override
+    public boolean applyClauses(List<Map<Term, Float>> clauses) {
+        checkNotNull(clauses, "Pre-condition violated: clauses must not be null.");
+        return addToContext(clauses, context);
+    }
+
     protected abstract void addToQuery(String termRankingQueryString, ModifiableSolrParams params);
 
-    private String getTerms() {
-        final Collection<CharSequence> terms = Terms.collect(q, analyzer);
+    /**
+     * Adds the prebuilt term ranking clauses (see {@link #makeClauses(SolrParams, Collection)}) to the request context,
+     * where they are picked up by the bmax query parser.
+     *
+     * @return false if the strategy does not support prebuilt clauses and the query string has to be used instead.
+     */
+    protected boolean addToContext(List<Map<Term, Float>> clauses, BmaxRequestContext context) {
+        return false;
+    }
+
+    private Collection<CharSequence> getTerms() {
+        final Collection<CharSequence> terms = context.collect(q, analyzer);
         // add extra terms
         if (extraTerms != null) {
             terms.addAll(Sets.newHashSet(Splitter.on(',').omitEmptyStrings().split(extraTerms)));
         }
 
-        return Joiner.on(" ").join(terms);
+        return terms;
+    }
+
+    /**
+     * Analyzes the terms for the query fields. Each term results in a clause that maps the field terms to their
+     * weight, the boost of the field multiplied with the boost factor.
+     *
+     * @return the clauses or <code>null</code> if a field analysis yields several tokens the dismax query parser
+     *         would not combine as optional term queries, see {@link #isCombinedAsDistinctTerms(SchemaField)}.
+     */
+    private List<Map<Term, Float>> makeClauses(SolrParams params, Collection<CharSequence> terms) {
+        Map<String, Float> fieldBoosts = SolrPluginUtils.parseFieldBoosts(params.getParams(fields));
+        Map<Analyzer, Map<CharSequence, Set<BytesRef>>> analyzedTerms = new IdentityHashMap<>();
+
+        List<Map<Term, Float>> clauses = new ArrayList<>();
+        for (CharSequence term : terms) {
+            Map<Term, Float> clause = new LinkedHashMap<>();
+
+            for (Map.Entry<String, Float> f : fieldBoosts.entrySet()) {
+                SchemaField field = schema.getFieldOrNull(f.getKey());
+                if (field == null) {
+                    continue;
+                }
+
+                // fields sharing a field type share the analysis
+                Analyzer fieldAnalyzer = field.getType().getQueryAnalyzer();
+                Set<BytesRef> fieldTerms = analyzedTerms.computeIfAbsent(fieldAnalyzer, a -> new HashMap<>())
+                        .computeIfAbsent(term, t -> Terms.collectBytes(t, fieldAnalyzer, f.getKey()));
+                if (fieldTerms.size() > 1 && !isCombinedAsDistinctTerms(field)) {
+                    return null;
+                }
+
+                float weight = (f.getValue() != null ? f.getValue() : 1f) * boostFactor;
+                for (BytesRef fieldTerm : fieldTerms) {
+                    clause.put(new Term(f.getKey(), fieldTerm), weight);
+                }
+            }
+
+            if (!clause.isEmpty()) {
+                clauses.add(clause);
+            }
+        }
+
+        return clauses;
+    }
+
+    /**
+     * Returns whether the query parser combines the tokens of a multi-token analysis of the given field as optional
+     * term queries. Text fields generating phrase queries or scoring stacked tokens as a single term are left to the
+     * query parser.
+     */
+    private static boolean isCombinedAsDistinctTerms(SchemaField field) {
+        if (!(field.getType() instanceof TextField)) {
+            return true;
+        }
+
+        TextField type = (TextField) field.getType();
+        return !type.getAutoGeneratePhraseQueries()
+                && type.getSynonymQueryStyle() == SynonymQueryStyle.AS_DISTINCT_TERMS;
+    }
+
+    /**
+     * Builds the query the query string of {@link #makeQueryString(SolrParams, String)} is parsed into by the dismax
+     * query parser: a disjunction max query over the weighted fields for each clause, at least one clause has to
+     * match. The terms a field analysis yields for a clause are summed up within the field.
+     */
+    protected static Query toQuery(List<Map<Term, Float>> clauses) {
+        BooleanQuery.Builder query = new BooleanQuery.Builder().setMinimumNumberShouldMatch(1);
+        for (Map<Term, Float> clause : clauses) {
+            // group the field terms, all terms of a field share the field's weight
+            Map<String, List<Map.Entry<Term, Float>>> fields = new LinkedHashMap<>();
+            for (Map.Entry<Term, Float> fieldTerm : clause.entrySet()) {
+                fields.computeIfAbsent(fieldTerm.getKey().field(), f -> new ArrayList<>()).add(fieldTerm);
+            }
+
+            List<Query> disjuncts = new ArrayList<>();
+            for (List<Map.Entry<Term, Float>> fieldTerms : fields.values()) {
+                Query fieldQuery;
+                if (fieldTerms.size() == 1) {
+                    fieldQuery = new TermQuery(fieldTerms.get(0).getKey());
+                } else {
+                    BooleanQuery.Builder terms = new BooleanQuery.Builder();
+                    for (Map.Entry<Term, Float> fieldTerm : fieldTerms) {
+                        terms.add(new TermQuery(fieldTerm.getKey()), Occur.SHOULD);
+                    }
+                    fieldQuery = terms.build();
+                }
+                disjuncts.add(new BoostQuery(fieldQuery, fieldTerms.get(0).getValue()));
+            }
+            query.add(new DisjunctionMaxQuery(disjuncts, 0f), Occur.SHOULD);
+        }
+        return query.build();
     }
 
     private String makeQueryString(SolrParams params, String joinedTerms) {
@@ -92,6 +236,13 @@ public abstract class AbstractTermRankingStrategy implements TermRankingStrategy
         this.fields = fields;
     }
 
+    /**
+     * Returns the boost factor, negative for penalize terms.
+     */
+    protected float getBoostFactor() {
+        return boostFactor;
+    }
+
     public void setBoostFactor(float boostFactor) {
         this.boostFactor = boostFactor;
     }
@@ -99,4 +250,26 @@ public abstract class AbstractTermRankingStrategy implements TermRankingStrategy
     public void setQueryType(String queryType) {
         this.queryType = queryType;
     }
+
+    public void setRequestContext(BmaxRequestContext context) {
+        this.context = context;
+    }
+
+    /**
+     * Sets the schema to analyze the terms with. With a schema given, prebuilt queries are handed to the query parser
+     * through the request context instead of query strings. Prebuilt queries are only used with the
+     * <code>dismax</code> query type, and only if the terms analyze to a term per field or to tokens dismax combines
+     * as optional term queries.
+     */
+    public void setSchema(IndexSchema schema) {
+        this.schema = schema;
+    }
+
+    /**
+     * Sets the consumer of the clauses computed for the shards of a distributed request. With a consumer (and schema)
+     * given, the clauses are neither added to the request context nor to the query.
+     */
+    public void setShardClauses(Consumer<List<Map<Term, Float>>> shardClauses) {
+        this.shardClauses = shardClauses;
+    }
 }
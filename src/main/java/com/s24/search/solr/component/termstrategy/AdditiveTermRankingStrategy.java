@@ -1,7 +1,12 @@
 package com.s24.search.solr.component.termstrategy;
 
+import com.s24.search.solr.query.bmax.BmaxRequestContext;
+import org.apache.lucene.index.Term;
 import org.apache.solr.common.params.ModifiableSolrParams;
 
+import java.util.List;
+import java.util.Map;
+
 public class AdditiveTermRankingStrategy extends AbstractTermRankingStrategy {
 
     @Override
@@ -9,4 +14,10 @@ public class AdditiveTermRankingStrategy extends AbstractTermRankingStrategy {
         params.add("bq", termRankingQueryString);
     }
 
+    @Override
+    protected boolean addToContext(List<Map<Term, Float>> clauses, BmaxRequestContext context) {
+        context.getBoostQueries().add(toQuery(clauses));
+        return true;
+    }
+
 }
@@ -0,0 +1,63 @@
+package com.s24.search.solr.component.termstrategy;
+
+import com.s24.search.solr.functions.DocSetFactorValueSource;
+import com.s24.search.solr.query.bmax.BmaxRequestContext;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.BooleanClause.Occur;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.TermQuery;
+import org.apache.solr.common.params.ModifiableSolrParams;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import static com.s24.search.solr.component.BmaxBoostConstants.DOC_SET_CACHE;
+
+/**
+ * Multiplies the score of all documents containing a boost term with the boost factor, or divides the score of all
+ * documents containing a penalize term by the penalize factor. The matching documents of each term are resolved into
+ * doc sets once per searcher and kept in the doc set cache, see {@linkplain DocSetFactorValueSource}.
+ * <p>
+ * The doc sets are only cached for prebuilt clauses. Without them (prebuilt queries disabled, a query type other than
+ * <code>dismax</code>, or a distributed request without prebuilt queries), the factors are applied by an uncached
+ * query function, which gives the same scores as the <code>boost</code> strategy with a constant factor and none of
+ * the savings.
+ */
+public class BitSetTermRankingStrategy extends AbstractTermRankingStrategy {
+
+    @Override
+    protected void addToQuery(String termRankingQueryString, ModifiableSolrParams params) {
+        // without prebuilt clauses, check for matches with an (uncached) query function
+        String queryParam = String.format(Locale.US, "bmax.booster.%s.bitset.q",
+                getBoostFactor() < 0 ? "penalize" : "boost");
+        params.set(queryParam, termRankingQueryString);
+        params.add("boost", String.format(Locale.US, "if(exists(query($%s)),%s,1)", queryParam, getFactor()));
+    }
+
+    @Override
+    protected boolean addToContext(List<Map<Term, Float>> clauses, BmaxRequestContext context) {
+        List<Query> queries = new ArrayList<>();
+        for (Map<Term, Float> clause : clauses) {
+            BooleanQuery.Builder query = new BooleanQuery.Builder();
+            for (Term fieldTerm : clause.keySet()) {
+                query.add(new TermQuery(fieldTerm), Occur.SHOULD);
+            }
+            queries.add(query.build());
+        }
+
+        if (!queries.isEmpty()) {
+            context.getMultiplicativeBoosts().add(new DocSetFactorValueSource(queries, getFactor(), DOC_SET_CACHE));
+        }
+        return true;
+    }
+
+    /**
+     * Returns the factor for matching documents, the reciprocal of the (negated) penalize factor for penalize terms.
+     */
+    private float getFactor() {
+        return getBoostFactor() < 0 ? -1f / getBoostFactor() : getBoostFactor();
+    }
+}
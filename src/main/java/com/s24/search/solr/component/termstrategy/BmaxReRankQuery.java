@@ -0,0 +1,54 @@
+package com.s24.search.solr.component.termstrategy;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.MatchAllDocsQuery;
+import org.apache.lucene.search.Query;
+import org.apache.solr.search.AbstractReRankQuery;
+
+/**
+ * Reranks the top documents of the main query with boost and penalize terms, see {@linkplain BmaxTermRescorer}.
+ * Other than the <code>{!rerank}</code> query parser, boost and penalize terms are applied together and no rerank
+ * query string has to be parsed.
+ */
+public class BmaxReRankQuery extends AbstractReRankQuery {
+
+    private static final Query DEFAULT_QUERY = new MatchAllDocsQuery();
+
+    private final List<Map<Term, Float>> clauses;
+
+    public BmaxReRankQuery(List<Map<Term, Float>> clauses, int reRankDocs) {
+        super(DEFAULT_QUERY, reRankDocs, new BmaxTermRescorer(clauses));
+        this.clauses = clauses;
+    }
+
+    @Override
+    protected Query rewrite(Query rewrittenMainQuery) throws IOException {
+        return new BmaxReRankQuery(clauses, reRankDocs).wrap(rewrittenMainQuery);
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * classHash() + Objects.hash(mainQuery, clauses, reRankDocs);
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        return sameClassAs(other) && equalsTo(getClass().cast(other));
+    }
+
+    private boolean equalsTo(BmaxReRankQuery other) {
+        return mainQuery.equals(other.mainQuery)
+                && clauses.equals(other.clauses)
+                && reRankDocs == other.reRankDocs;
+    }
+
+    @Override
+    public String toString(String field) {
+        return "{!bmax.rerank mainQuery='" + mainQuery + "' clauses=" + clauses + " reRankDocs=" + reRankDocs + "}";
+    }
+}
@@ -0,0 +1,42 @@
+package com.s24.search.solr.component.termstrategy;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.util.List;
+import java.util.Map;
+
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.QueryRescorer;
+import org.apache.solr.search.ReRankQParserPlugin;
+
+/**
+ * Rescores the top documents with boost and penalize terms in a single pass. The clauses are scored with the
+ * searcher's similarity as the query the <code>{!rerank}</code> query string of the term ranking strategy would be
+ * parsed into (see {@link AbstractTermRankingStrategy#toQuery(List)}), the weights of penalize terms are negative.
+ * Like <code>{!rerank}</code>, the score of matching documents is added with the default <code>reRankWeight</code>.
+ */
+public class BmaxTermRescorer extends QueryRescorer {
+
+    private final List<Map<Term, Float>> clauses;
+
+    /**
+     * @param clauses
+     *            the clauses, each mapping field terms to their weight.
+     */
+    public BmaxTermRescorer(List<Map<Term, Float>> clauses) {
+        super(AbstractTermRankingStrategy.toQuery(
+                checkNotNull(clauses, "Pre-condition violated: clauses must not be null.")));
+        this.clauses = clauses;
+    }
+
+    @Override
+    protected float combine(float firstPassScore, boolean secondPassMatches, float secondPassScore) {
+        return secondPassMatches
+                ? (float) (firstPassScore + ReRankQParserPlugin.RERANK_WEIGHT_DEFAULT * secondPassScore)
+                : firstPassScore;
+    }
+
+    public List<Map<Term, Float>> getClauses() {
+        return clauses;
+    }
+}
@@ -0,0 +1,26 @@
+package com.s24.search.solr.component.termstrategy;
+
+import com.s24.search.solr.functions.CachedQueryValueSource;
+import com.s24.search.solr.functions.FloatCachingValueSource;
+import com.s24.search.solr.query.bmax.BmaxRequestContext;
+import org.apache.lucene.index.Term;
+
+import java.util.List;
+import java.util.Map;
+
+import static com.s24.search.solr.component.BmaxBoostConstants.BOOSTER_CACHE;
+
+/**
+ * Multiplies the score with the score of the boost (or penalize) terms like the
+ * {@linkplain MultiplicativeTermRankingStrategy} does. The term scores of all matching documents are computed once
+ * per segment and kept in sparse packed values in the booster cache, see {@linkplain CachedQueryValueSource}.
+ */
+public class CachedTermRankingStrategy extends MultiplicativeTermRankingStrategy {
+
+    @Override
+    protected boolean addToContext(List<Map<Term, Float>> clauses, BmaxRequestContext context) {
+        context.getMultiplicativeBoosts().add(new CachedQueryValueSource(toQuery(clauses), 1f, BOOSTER_CACHE,
+                FloatCachingValueSource.CACHE_SPARSE));
+        return true;
+    }
+}
@@ -1,7 +1,13 @@
 package com.s24.search.solr.component.termstrategy;
 
+import com.s24.search.solr.query.bmax.BmaxRequestContext;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.queries.function.valuesource.QueryValueSource;
 import org.apache.solr.common.params.ModifiableSolrParams;
 
+import java.util.List;
+import java.util.Map;
+
 public class MultiplicativeTermRankingStrategy extends AbstractTermRankingStrategy {
 
     @Override
@@ -9,4 +15,11 @@ public class MultiplicativeTermRankingStrategy extends AbstractTermRankingStrate
         params.add("boost", termRankingQueryString);
     }
 
+    @Override
+    protected boolean addToContext(List<Map<Term, Float>> clauses, BmaxRequestContext context) {
+        // same as a boost query string, which is turned into a query function by the query parser
+        context.getMultiplicativeBoosts().add(new QueryValueSource(toQuery(clauses), 0.0f));
+        return true;
+    }
+
 }
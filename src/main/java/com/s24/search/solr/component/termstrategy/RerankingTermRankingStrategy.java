@@ -1,9 +1,13 @@
 package com.s24.search.solr.component.termstrategy;
 
+import com.s24.search.solr.query.bmax.BmaxRequestContext;
+import org.apache.lucene.index.Term;
 import org.apache.solr.common.params.CommonParams;
 import org.apache.solr.common.params.ModifiableSolrParams;
 
+import java.util.List;
 import java.util.Locale;
+import java.util.Map;
 
 public class RerankingTermRankingStrategy extends AbstractTermRankingStrategy {
 
@@ -23,4 +27,11 @@ public class RerankingTermRankingStrategy extends AbstractTermRankingStrategy {
             params.add("rqq", termRankingQueryString);
         }
     }
+
+    @Override
+    protected boolean addToContext(List<Map<Term, Float>> clauses, BmaxRequestContext context) {
+        // boost and penalize clauses are reranked together, see BmaxReRankQuery
+        context.addReRankClauses(clauses, reRankDocs);
+        return true;
+    }
 }
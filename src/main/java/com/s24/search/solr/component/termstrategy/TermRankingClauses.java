@@ -0,0 +1,144 @@
+package com.s24.search.solr.component.termstrategy;
+
+import org.apache.lucene.index.Term;
+import org.apache.lucene.util.BytesRef;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * The term ranking clauses a strategy has computed, together with the strategy settings needed to apply them on
+ * another node. Distributed requests compute the clauses once at the aggregator and ship them to the shards in the
+ * compact form of {@link #encode(List)}, so the shards neither analyze the query nor parse a query string.
+ */
+public class TermRankingClauses {
+
+    private static final int VERSION = 1;
+
+    private final String strategy;
+    private final float factor;
+    private final int docs;
+    private final List<Map<Term, Float>> clauses;
+
+    /**
+     * @param strategy
+     *            the name of the strategy, e.g. <code>bq</code>.
+     * @param factor
+     *            the boost factor, negative for penalize terms.
+     * @param docs
+     *            the number of documents to rerank.
+     * @param clauses
+     *            the clauses, each maps field terms to their weight.
+     */
+    public TermRankingClauses(String strategy, float factor, int docs, List<Map<Term, Float>> clauses) {
+        this.strategy = checkNotNull(strategy, "Pre-condition violated: strategy must not be null.");
+        this.factor = factor;
+        this.docs = docs;
+        this.clauses = checkNotNull(clauses, "Pre-condition violated: clauses must not be null.");
+    }
+
+    /**
+     * Encodes the given clauses into a URL safe string. Terms are written as raw index bytes, so the shards do not
+     * have to analyze them again.
+     */
+    public static String encode(List<TermRankingClauses> clauses) {
+        checkNotNull(clauses, "Pre-condition violated: clauses must not be null.");
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeByte(VERSION);
+            out.writeShort(clauses.size());
+            for (TermRankingClauses c : clauses) {
+                out.writeUTF(c.strategy);
+                out.writeFloat(c.factor);
+                out.writeInt(c.docs);
+                out.writeShort(c.clauses.size());
+                for (Map<Term, Float> clause : c.clauses) {
+                    out.writeShort(clause.size());
+                    for (Map.Entry<Term, Float> fieldTerm : clause.entrySet()) {
+                        BytesRef term = fieldTerm.getKey().bytes();
+                        out.writeUTF(fieldTerm.getKey().field());
+                        out.writeShort(term.length);
+                        out.write(term.bytes, term.offset, term.length);
+                        out.writeFloat(fieldTerm.getValue());
+                    }
+                }
+            }
+        } catch (IOException e) {
+            // written to memory
+            throw new RuntimeException(e);
+        }
+
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(bytes.toByteArray());
+    }
+
+    /**
+     * Decodes clauses encoded by {@link #encode(List)}.
+     *
+     * @throws IllegalArgumentException
+     *             if the given string does not hold encoded clauses.
+     */
+    public static List<TermRankingClauses> decode(String encoded) {
+        checkNotNull(encoded, "Pre-condition violated: encoded must not be null.");
+
+        try (DataInputStream in = new DataInputStream(
+                new ByteArrayInputStream(Base64.getUrlDecoder().decode(encoded)))) {
+            if (in.readByte() != VERSION) {
+                throw new IllegalArgumentException("Unsupported term ranking clauses version.");
+            }
+
+            int count = in.readUnsignedShort();
+            List<TermRankingClauses> result = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                String strategy = in.readUTF();
+                float factor = in.readFloat();
+                int docs = in.readInt();
+
+                int clauseCount = in.readUnsignedShort();
+                List<Map<Term, Float>> clauses = new ArrayList<>(clauseCount);
+                for (int j = 0; j < clauseCount; j++) {
+                    int size = in.readUnsignedShort();
+                    Map<Term, Float> clause = new LinkedHashMap<>();
+                    for (int k = 0; k < size; k++) {
+                        String field = in.readUTF();
+                        byte[] term = new byte[in.readUnsignedShort()];
+                        in.readFully(term);
+                        clause.put(new Term(field, new BytesRef(term)), in.readFloat());
+                    }
+                    clauses.add(clause);
+                }
+                result.add(new TermRankingClauses(strategy, factor, docs, Collections.unmodifiableList(clauses)));
+            }
+            return Collections.unmodifiableList(result);
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Malformed term ranking clauses.", e);
+        }
+    }
+
+    public String getStrategy() {
+        return strategy;
+    }
+
+    public float getFactor() {
+        return factor;
+    }
+
+    public int getDocs() {
+        return docs;
+    }
+
+    public List<Map<Term, Float>> getClauses() {
+        return clauses;
+    }
+}
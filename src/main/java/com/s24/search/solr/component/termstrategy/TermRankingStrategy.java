@@ -1,8 +1,20 @@
 package com.s24.search.solr.component.termstrategy;
 
+import org.apache.lucene.index.Term;
 import org.apache.solr.common.params.ModifiableSolrParams;
 
+import java.util.List;
+import java.util.Map;
+
 public interface TermRankingStrategy {
 
     String apply(ModifiableSolrParams params);
+
+    /**
+     * Applies clauses computed elsewhere (e.g. by the aggregator of a distributed request) without analyzing the
+     * terms again.
+     *
+     * @return false if the strategy does not support prebuilt clauses.
+     */
+    boolean applyClauses(List<Map<Term, Float>> clauses);
 }
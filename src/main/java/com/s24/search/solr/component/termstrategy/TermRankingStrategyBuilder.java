@@ -1,6 +1,14 @@
 package com.s24.search.solr.component.termstrategy;
 
 import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.index.Term;
+import org.apache.solr.schema.IndexSchema;
+
+import com.s24.search.solr.query.bmax.BmaxRequestContext;
+
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
 
 public class TermRankingStrategyBuilder {
 
@@ -13,6 +21,9 @@ public class TermRankingStrategyBuilder {
     private String fields;
     private float boostFactor;
     private String queryType;
+    private BmaxRequestContext context;
+    private IndexSchema schema;
+    private Consumer<List<Map<Term, Float>>> shardClauses;
 
       public TermRankingStrategyBuilder multiplicativeTermRankingStrategy() {
         toBuild = new MultiplicativeTermRankingStrategy();
@@ -24,6 +35,16 @@ public class TermRankingStrategyBuilder {
         return this;
     }
 
+    public TermRankingStrategyBuilder bitSetTermRankingStrategy() {
+        toBuild = new BitSetTermRankingStrategy();
+        return this;
+    }
+
+    public TermRankingStrategyBuilder cachedTermRankingStrategy() {
+        toBuild = new CachedTermRankingStrategy();
+        return this;
+    }
+
     public TermRankingStrategyBuilder additiveTermRankingStrategy() {
         toBuild = new AdditiveTermRankingStrategy();
         return this;
@@ -49,6 +70,21 @@ public class TermRankingStrategyBuilder {
         return this;
     }
 
+    public TermRankingStrategyBuilder withRequestContext(BmaxRequestContext context) {
+        this.context = context;
+        return this;
+    }
+
+    public TermRankingStrategyBuilder withPrebuiltQueries(IndexSchema schema) {
+        this.schema = schema;
+        return this;
+    }
+
+    public TermRankingStrategyBuilder withShardClauses(Consumer<List<Map<Term, Float>>> shardClauses) {
+        this.shardClauses = shardClauses;
+        return this;
+    }
+
     public TermRankingStrategyBuilder withQueryField(String fields) {
         this.fields = fields;
         return this;
@@ -70,6 +106,11 @@ public class TermRankingStrategyBuilder {
         toBuild.setFields(fields);
         toBuild.setQ(q);
         toBuild.setQueryType(queryType);
+        if (context != null) {
+            toBuild.setRequestContext(context);
+        }
+        toBuild.setSchema(schema);
+        toBuild.setShardClauses(shardClauses);
         if (asPenalizer) {
             toBuild.setBoostFactor(-boostFactor);
         } else {
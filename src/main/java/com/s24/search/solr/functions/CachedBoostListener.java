@@ -0,0 +1,239 @@
+package com.s24.search.solr.functions;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.lucene.queries.function.FunctionQuery;
+import org.apache.lucene.queries.function.ValueSource;
+import org.apache.lucene.search.Query;
+import org.apache.solr.common.params.ModifiableSolrParams;
+import org.apache.solr.common.util.NamedList;
+import org.apache.solr.core.AbstractSolrEventListener;
+import org.apache.solr.core.CloseHook;
+import org.apache.solr.core.SolrCore;
+import org.apache.solr.request.LocalSolrQueryRequest;
+import org.apache.solr.request.SolrQueryRequest;
+import org.apache.solr.schema.ExternalFileField;
+import org.apache.solr.search.FunctionQParser;
+import org.apache.solr.search.SolrCache;
+import org.apache.solr.search.SolrIndexSearcher;
+import org.apache.solr.search.function.FileFloatSource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.collect.Maps;
+import com.google.common.hash.Hashing;
+
+/**
+ * Builds and warms the value sources of the {@linkplain CachedBoostValueSourceParser cached boost function} whenever
+ * a searcher is opened, so cached boosts are configured declaratively instead of populating the cache by custom
+ * code. Register the listener for the <code>firstSearcher</code> and <code>newSearcher</code> events:
+ *
+ * <pre>
+ * &lt;listener event="newSearcher" class="com.s24.search.solr.functions.CachedBoostListener"&gt;
+ *   &lt;str name="cache"&gt;bmax.boostCache&lt;/str&gt;
+ *   &lt;lst name="functions"&gt;
+ *     &lt;lst name="topseller"&gt;
+ *       &lt;str name="function"&gt;product(popularity,margin,log(sum(reviews,1)))&lt;/str&gt;
+ *       &lt;str name="cacheHint"&gt;sparse&lt;/str&gt;
+ *     &lt;/lst&gt;
+ *   &lt;/lst&gt;
+ * &lt;/listener&gt;
+ * </pre>
+ *
+ * Entries carried over by the {@linkplain CachedBoostRegenerator} have been warmed already and are kept, so functions
+ * depending on the time of the request (<code>NOW</code>) must not be cached. Without a regenerator, the unchanged
+ * entries of the current searcher are warmed and carried over.
+ * <p>
+ * Functions with the <code>mapped</code> cache hint keep their values in memory mapped files below the
+ * <code>directory</code> argument, <code>bmax-values</code> in the core's data directory by default. The directory is
+ * owned by the core, it must not be configured for other cores. The files are reattached after a restart as long as
+ * the function is unchanged, the files of segments merged away are deleted. The directories of former function
+ * definitions are kept, remove them once the function is settled.
+ * <p>
+ * Functions reading an external file field are not cached, their values change without the index changing.
+ */
+public class CachedBoostListener extends AbstractSolrEventListener {
+
+   private static final Logger log = LoggerFactory.getLogger(CachedBoostListener.class);
+
+   private String cacheName;
+   private Path directory;
+
+   // function and cache hint by cache key
+   private final Map<String, String> functions = Maps.newLinkedHashMap();
+   private final Map<String, Integer> cacheHints = Maps.newHashMap();
+
+   // the value files of segments closed with the core are kept for the next start
+   private final AtomicBoolean closing = new AtomicBoolean();
+
+   public CachedBoostListener(SolrCore core) {
+      super(core);
+
+      core.addCloseHook(new CloseHook() {
+         @Override
+         public void preClose(SolrCore core) {
+            closing.set(true);
+         }
+
+         @Override
+         public void postClose(SolrCore core) {
+         }
+      });
+   }
+
+   @Override
+   public void init(@SuppressWarnings("rawtypes") NamedList args) {
+      super.init(args);
+
+      cacheName = checkNotNull((String) args.get("cache"), "Pre-condition violated: cache must be configured.");
+      directory = Paths.get(args.get("directory") != null ? (String) args.get("directory")
+            : getCore().getDataDir() + "/bmax-values");
+
+      NamedList<?> functionList = (NamedList<?>) args.get("functions");
+      if (functionList != null) {
+         for (Map.Entry<String, ?> entry : functionList) {
+            NamedList<?> function = (NamedList<?>) entry.getValue();
+            String expression = (String) function.get("function");
+            checkArgument(expression != null, "Pre-condition violated: function of %s must be configured.",
+                  entry.getKey());
+
+            int cacheHint = FloatCachingValueSource.parseCacheHint((String) function.get("cacheHint"));
+            functions.put(entry.getKey(), expression);
+            cacheHints.put(entry.getKey(), cacheHint);
+         }
+      }
+   }
+
+   @Override
+   public void newSearcher(SolrIndexSearcher newSearcher, SolrIndexSearcher currentSearcher) {
+      @SuppressWarnings("unchecked")
+      SolrCache<String, FloatCachingValueSource> cache = newSearcher.getCache(cacheName);
+      if (cache == null) {
+         log.warn("Cache {} for cached boost functions is not configured.", cacheName);
+         return;
+      }
+
+      // functions are parsed against the new searcher, which is not registered yet
+      SolrQueryRequest req = new LocalSolrQueryRequest(getCore(), new ModifiableSolrParams()) {
+         @Override
+         public SolrIndexSearcher getSearcher() {
+            return newSearcher;
+         }
+      };
+
+      try {
+         for (Map.Entry<String, String> function : functions.entrySet()) {
+            if (cache.get(function.getKey()) != null) {
+               continue;
+            }
+
+            try {
+               Query query = new FunctionQParser(function.getValue(), null, req.getParams(), req).parse();
+               checkArgument(query instanceof FunctionQuery, "Pre-condition violated: %s is not a single function.",
+                     function.getValue());
+
+               ValueSource source = ((FunctionQuery) query).getValueSource();
+               checkArgument(!readsExternalFile(source),
+                     "Pre-condition violated: %s reads an external file field, its values can not be cached.",
+                     function.getValue());
+
+               int cacheHint = cacheHints.get(function.getKey());
+               FloatCachingValueSource valueSource = new FloatCachingValueSource(source, cacheHint,
+                     cacheHint == FloatCachingValueSource.CACHE_MAPPED ? functionDirectory(function.getKey(), source)
+                           : null,
+                     closing::get);
+
+               // keep the values of the segments shared with the current searcher
+               FloatCachingValueSource current = current(currentSearcher, function.getKey());
+               if (valueSource.equals(current)) {
+                  valueSource = current;
+               }
+               valueSource.warm(newSearcher, ValueWarmingExecutors.get(getCore()));
+               cache.put(function.getKey(), valueSource);
+            } catch (Exception e) {
+               // a broken function must not prevent the searcher from being opened
+               log.error("Could not build cached boost function " + function.getKey(), e);
+            }
+         }
+      } finally {
+         req.close();
+      }
+   }
+
+   /**
+    * Checks whether the given function reads an {@link ExternalFileField}, walking the value sources it is built of.
+    */
+   static boolean readsExternalFile(ValueSource source) {
+      return readsExternalFile(source, Collections.newSetFromMap(new IdentityHashMap<>()));
+   }
+
+   private static boolean readsExternalFile(Object source, Set<Object> visited) {
+      if (source instanceof FileFloatSource) {
+         return true;
+      }
+      if (!visited.add(source)) {
+         return false;
+      }
+
+      // value sources do not expose their arguments, they are held by fields, arrays or lists
+      for (Class<?> type = source.getClass(); type != Object.class; type = type.getSuperclass()) {
+         for (Field field : type.getDeclaredFields()) {
+            if (Modifier.isStatic(field.getModifiers()) || field.getType().isPrimitive()) {
+               continue;
+            }
+
+            Object value;
+            try {
+               field.setAccessible(true);
+               value = field.get(source);
+            } catch (RuntimeException | IllegalAccessException e) {
+               continue;
+            }
+
+            Iterable<?> arguments = value instanceof Object[] ? Arrays.asList((Object[]) value)
+                  : value instanceof Iterable ? (Iterable<?>) value : Collections.singleton(value);
+            for (Object argument : arguments) {
+               if (argument instanceof ValueSource && readsExternalFile(argument, visited)) {
+                  return true;
+               }
+            }
+         }
+      }
+      return false;
+   }
+
+   /**
+    * Returns the entry of the current searcher, <code>null</code> if there is none.
+    */
+   private FloatCachingValueSource current(SolrIndexSearcher currentSearcher, String key) {
+      if (currentSearcher == null) {
+         return null;
+      }
+
+      @SuppressWarnings("unchecked")
+      SolrCache<String, FloatCachingValueSource> cache = currentSearcher.getCache(cacheName);
+      return cache != null ? cache.get(key) : null;
+   }
+
+   /**
+    * Returns the directory of the value files of the given function, named by a 128 bit hash of its description so
+    * changed functions do not pick up the values of their former definition.
+    */
+   private Path functionDirectory(String key, ValueSource source) {
+      return directory.resolve(key)
+            .resolve(Hashing.murmur3_128().hashString(source.description(), StandardCharsets.UTF_8).toString());
+   }
+}
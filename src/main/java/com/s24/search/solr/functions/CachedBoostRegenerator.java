@@ -0,0 +1,29 @@
+package com.s24.search.solr.functions;
+
+import java.io.IOException;
+
+import org.apache.solr.search.CacheRegenerator;
+import org.apache.solr.search.SolrCache;
+import org.apache.solr.search.SolrIndexSearcher;
+
+/**
+ * Regenerates the cache the {@linkplain CachedBoostValueSourceParser cached boost function} reads its values from.
+ * The cached value sources are carried over to the new searcher and {@linkplain FloatCachingValueSource#warm(
+ * org.apache.lucene.search.IndexSearcher) warmed} with the values of all its documents, so the first queries after a
+ * commit do not pay for filling the cache. Values of unchanged segments are kept. The segments are warmed on the
+ * core's warming executor, shared with the {@link CachedBoostListener}.
+ */
+public class CachedBoostRegenerator implements CacheRegenerator {
+
+   @Override
+   @SuppressWarnings({ "rawtypes", "unchecked" })
+   public boolean regenerateItem(SolrIndexSearcher newSearcher, SolrCache newCache, SolrCache oldCache,
+         Object oldKey, Object oldVal) throws IOException {
+      if (oldVal instanceof FloatCachingValueSource) {
+         ((FloatCachingValueSource) oldVal).warm(newSearcher, ValueWarmingExecutors.get(newSearcher.getCore()));
+      }
+
+      newCache.put(oldKey, oldVal);
+      return true;
+   }
+}
@@ -31,6 +31,7 @@ public class CachedBoostValueSourceParser extends ValueSourceParser {
       // get cached functions from cache
       FloatCachingValueSource valueSource = cache.get(cacheKey);
 
-      return checkNotNull(valueSource, "Could not load pre-cached values for cache key " + cacheKey);
+      return checkNotNull(valueSource, "Could not load pre-cached values for cache key " + cacheKey
+            + ", configure the function with a CachedBoostListener.");
    }
 }
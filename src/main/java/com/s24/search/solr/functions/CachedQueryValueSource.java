@@ -0,0 +1,243 @@
+package com.s24.search.solr.functions;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.io.IOException;
+import java.lang.ref.WeakReference;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.ReaderUtil;
+import org.apache.lucene.queries.function.FunctionValues;
+import org.apache.lucene.queries.function.ValueSource;
+import org.apache.lucene.queries.function.docvalues.FloatDocValues;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.Scorer;
+import org.apache.lucene.util.Accountable;
+import org.apache.solr.search.SolrCache;
+import org.apache.solr.search.SolrIndexSearcher;
+
+import com.google.common.base.Objects;
+import com.s24.search.solr.util.FloatValueCache;
+import com.s24.search.solr.util.packed.AdaptiveFloatValueCache;
+
+/**
+ * A ValueSource that returns the score of a query for matching documents and <code>0</code> for all others, like a
+ * query function does. The scores of all matching documents of a segment are computed at once and kept in a
+ * {@linkplain FloatValueCache}, so repeated queries read the cached values instead of running the query per document.
+ * <p>
+ * The scores are cached per segment, keyed by the {@linkplain LeafReader#getCoreCacheHelper() core cache key} of the
+ * segment, so the cache entries can be carried over to new searchers as they are (e.g. by the
+ * <code>solr.NoOpRegenerator</code>): segments shared with the new searcher keep their scores, new segments are scored
+ * on first use and the scores of closed segments are dropped. Scores carried over keep the term statistics of the
+ * searcher they have been computed with.
+ */
+public class CachedQueryValueSource extends ValueSource {
+
+   // the number of documents decoded at once
+   private static final int WINDOW_SIZE = 128;
+
+   private final Query query;
+   private final float scale;
+   private final String cacheName;
+   private final int cacheHint;
+
+   /**
+    * @param query
+    *           the query, matching documents by their terms only.
+    * @param scale
+    *           the scores are multiplied with.
+    * @param cacheName
+    *           the name of the searcher cache to keep the values in, may be <code>null</code>.
+    * @param cacheHint
+    *           the cache implementation, see {@link FloatCachingValueSource#createCache(int, int)}.
+    */
+   public CachedQueryValueSource(Query query, float scale, String cacheName, int cacheHint) {
+      this.query = checkNotNull(query, "Pre-condition violated: query must not be null.");
+      checkArgument(cacheHint >= 0, "Pre-condition violated: expression cacheHint >= 0 must be true.");
+      checkArgument(cacheHint <= FloatCachingValueSource.CACHE_BFLOAT16,
+            "Pre-condition violated: expression cacheHint <= FloatCachingValueSource.CACHE_BFLOAT16 must be true.");
+      checkArgument(cacheHint != FloatCachingValueSource.CACHE_MAPPED,
+            "Pre-condition violated: query values can not be mapped.");
+
+      this.scale = scale;
+      this.cacheName = cacheName;
+      this.cacheHint = cacheHint;
+   }
+
+   @Override
+   public void createWeight(@SuppressWarnings("rawtypes") Map context, IndexSearcher searcher) throws IOException {
+      getSegmentScores(context, searcher);
+   }
+
+   @Override
+   public FunctionValues getValues(@SuppressWarnings("rawtypes") Map context, LeafReaderContext readerContext)
+         throws IOException {
+      IndexSearcher searcher = (IndexSearcher) context.get("searcher");
+      if (searcher == null) {
+         searcher = new IndexSearcher(ReaderUtil.getTopLevelContext(readerContext));
+      }
+
+      final FloatValueCache values = getSegmentScores(context, searcher).get(searcher, readerContext);
+      final int leafMaxDoc = readerContext.reader().maxDoc();
+
+      return new FloatDocValues(this) {
+
+         // the values are not changed once computed, so they are decoded a window of documents at a time
+         private final float[] window = new float[Math.min(WINDOW_SIZE, Math.max(leafMaxDoc, 1))];
+         private int windowStart = -1;
+         private int windowEnd = -1;
+
+         @Override
+         public float floatVal(int doc) {
+            if (doc < windowStart || doc >= windowEnd) {
+               windowStart = doc;
+               windowEnd = Math.min(doc + window.length, leafMaxDoc);
+               values.getFloats(doc, window, 0, windowEnd - doc);
+            }
+
+            float value = window[doc - windowStart];
+            return Float.isNaN(value) ? 0f : scale * value;
+         }
+      };
+   }
+
+   /**
+    * Returns the scores of the query by segment, they are resolved once per weight and searcher.
+    */
+   @SuppressWarnings("unchecked")
+   private SegmentScores getSegmentScores(@SuppressWarnings("rawtypes") Map context, IndexSearcher searcher) {
+      SegmentScores scores = (SegmentScores) context.get(this);
+      if (scores == null) {
+         SolrCache<Object, SegmentScores> cache = cacheName != null && searcher instanceof SolrIndexSearcher
+               ? ((SolrIndexSearcher) searcher).getCache(cacheName) : null;
+         Object key = Arrays.asList(CachedQueryValueSource.class, query, cacheHint);
+
+         scores = cache != null ? cache.get(key) : null;
+         if (scores == null) {
+            scores = new SegmentScores(query, cacheHint);
+            if (cache != null) {
+               cache.put(key, scores);
+            }
+         }
+         context.put(this, scores);
+      }
+      return scores;
+   }
+
+   /**
+    * The scores of a query by segment core. Segments outlive the cache entries, so the listeners dropping the scores
+    * of closed segments do not keep the entry reachable.
+    */
+   private static final class SegmentScores implements Accountable {
+
+      private final Query query;
+      private final int cacheHint;
+      private final Map<IndexReader.CacheKey, FloatValueCache> segments = new ConcurrentHashMap<>();
+
+      SegmentScores(Query query, int cacheHint) {
+         this.query = query;
+         this.cacheHint = cacheHint;
+      }
+
+      /**
+       * Returns the scores of the given segment, computed on first use.
+       */
+      FloatValueCache get(IndexSearcher searcher, LeafReaderContext leaf) throws IOException {
+         final IndexReader.CacheHelper cacheHelper = leaf.reader().getCoreCacheHelper();
+         if (cacheHelper == null) {
+            return score(searcher, leaf);
+         }
+
+         FloatValueCache values = segments.get(cacheHelper.getKey());
+         if (values == null) {
+            values = score(searcher, leaf);
+            FloatValueCache concurrent = segments.putIfAbsent(cacheHelper.getKey(), values);
+            if (concurrent != null) {
+               return concurrent;
+            }
+
+            final WeakReference<SegmentScores> scores = new WeakReference<>(this);
+            cacheHelper.addClosedListener(key -> {
+               SegmentScores entry = scores.get();
+               if (entry != null) {
+                  entry.segments.remove(key);
+               }
+            });
+         }
+         return values;
+      }
+
+      /**
+       * Scores all matching documents of the given segment.
+       */
+      private FloatValueCache score(IndexSearcher searcher, LeafReaderContext leaf) throws IOException {
+         FloatValueCache values = FloatCachingValueSource.createCache(Math.max(1, leaf.reader().maxDoc()), cacheHint);
+
+         Scorer scorer = searcher.createWeight(searcher.rewrite(query), true, 1f).scorer(leaf);
+         if (scorer != null) {
+            DocIdSetIterator it = scorer.iterator();
+            for (int doc = it.nextDoc(); doc != DocIdSetIterator.NO_MORE_DOCS; doc = it.nextDoc()) {
+               values.setFloat(doc, scorer.score());
+            }
+         }
+
+         // all values are known now
+         if (values instanceof AdaptiveFloatValueCache) {
+            ((AdaptiveFloatValueCache) values).compact();
+         }
+         return values;
+      }
+
+      @Override
+      public long ramBytesUsed() {
+         long bytes = 0;
+         for (FloatValueCache values : segments.values()) {
+            bytes += values.ramBytesUsed();
+         }
+         return bytes;
+      }
+
+      @Override
+      public Collection<Accountable> getChildResources() {
+         return Collections.unmodifiableCollection(segments.values());
+      }
+   }
+
+   @Override
+   public boolean equals(Object o) {
+      if (o == null || this.getClass() != o.getClass()) {
+         return false;
+      }
+      CachedQueryValueSource other = (CachedQueryValueSource) o;
+      return this.query.equals(other.query) && this.scale == other.scale && this.cacheHint == other.cacheHint;
+   }
+
+   @Override
+   public int hashCode() {
+      return 31 * (31 * query.hashCode() + Float.floatToIntBits(scale)) + cacheHint;
+   }
+
+   @Override
+   public String description() {
+      return "cached(" + query + "," + scale + ")";
+   }
+
+   @Override
+   public String toString() {
+      return Objects.toStringHelper(this)
+            .add("query", query)
+            .add("scale", scale)
+            .add("cacheHint", cacheHint)
+            .toString();
+   }
+}
@@ -0,0 +1,26 @@
+package com.s24.search.solr.functions;
+
+import java.io.IOException;
+
+import org.apache.lucene.search.Query;
+import org.apache.solr.search.CacheRegenerator;
+import org.apache.solr.search.SolrCache;
+import org.apache.solr.search.SolrIndexSearcher;
+
+/**
+ * Regenerates the cache the {@linkplain DocSetFactorValueSource} keeps the doc set of each boost and penalize term in.
+ * The doc sets of the old searcher's terms are resolved for the new searcher, so a fixed term vocabulary is resolved
+ * before the first query after a commit.
+ */
+public class DocSetCacheRegenerator implements CacheRegenerator {
+
+   @Override
+   @SuppressWarnings({ "rawtypes", "unchecked" })
+   public boolean regenerateItem(SolrIndexSearcher newSearcher, SolrCache newCache, SolrCache oldCache,
+         Object oldKey, Object oldVal) throws IOException {
+      if (oldKey instanceof Query) {
+         newCache.put(oldKey, DocSetFactorValueSource.createDocSet(newSearcher, (Query) oldKey));
+      }
+      return true;
+   }
+}
@@ -0,0 +1,204 @@
+package com.s24.search.solr.functions;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.ReaderUtil;
+import org.apache.lucene.queries.function.FunctionValues;
+import org.apache.lucene.queries.function.ValueSource;
+import org.apache.lucene.queries.function.docvalues.FloatDocValues;
+import org.apache.lucene.search.DocIdSet;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.SimpleCollector;
+import org.apache.lucene.util.FixedBitSet;
+import org.apache.solr.search.BitDocSet;
+import org.apache.solr.search.DocSet;
+import org.apache.solr.search.DocSetUtil;
+import org.apache.solr.search.SolrCache;
+import org.apache.solr.search.SolrIndexSearcher;
+
+import com.google.common.base.Objects;
+
+/**
+ * A ValueSource that returns a constant factor for all documents matching any of the given queries and
+ * <code>1</code> for all others. Used as a multiplicative boost, documents are boosted (or penalized with a factor
+ * below <code>1</code>) by a single bit lookup: the doc sets of the queries are united per segment when its values
+ * are requested.
+ * <p>
+ * The matching documents are resolved once per searcher and query: the doc set of each query (one per boost or
+ * penalize term) is kept in the given cache, so a fixed term vocabulary is resolved once, reused by all requests
+ * combining its terms and autowarmed with the {@linkplain DocSetCacheRegenerator}. Sparse doc sets are kept sorted
+ * instead of as bits. Without the cache, the doc sets are resolved per request. The filter cache is not used, so the
+ * filters of the requests are not evicted.
+ */
+public class DocSetFactorValueSource extends ValueSource {
+
+   private final List<Query> queries;
+   private final float factor;
+   private final String cacheName;
+
+   /**
+    * @param queries
+    *           the queries, one per boost or penalize term.
+    * @param factor
+    *           the factor for matching documents.
+    * @param cacheName
+    *           the name of the cache holding the doc set of each query, may be <code>null</code>.
+    */
+   public DocSetFactorValueSource(List<Query> queries, float factor, String cacheName) {
+      this.queries = checkNotNull(queries, "Pre-condition violated: queries must not be null.");
+      checkArgument(!queries.isEmpty(), "Pre-condition violated: queries must not be empty.");
+      this.factor = factor;
+      this.cacheName = cacheName;
+   }
+
+   @Override
+   public void createWeight(@SuppressWarnings("rawtypes") Map context, IndexSearcher searcher) throws IOException {
+      getDocs(context, searcher);
+   }
+
+   @Override
+   public FunctionValues getValues(@SuppressWarnings("rawtypes") Map context, LeafReaderContext readerContext)
+         throws IOException {
+      IndexSearcher searcher = (IndexSearcher) context.get("searcher");
+      if (searcher == null) {
+         searcher = new IndexSearcher(ReaderUtil.getTopLevelContext(readerContext));
+      }
+
+      final DocSet[] docs = getDocs(context, searcher);
+
+      // a single doc set is looked up as is
+      if (docs.length == 1) {
+         final DocSet queryDocs = docs[0];
+         final int docBase = readerContext.docBase;
+
+         return new FloatDocValues(this) {
+            @Override
+            public float floatVal(int doc) {
+               return queryDocs.exists(docBase + doc) ? factor : 1f;
+            }
+         };
+      }
+
+      final FixedBitSet segmentDocs = union(docs, readerContext);
+      return new FloatDocValues(this) {
+         @Override
+         public float floatVal(int doc) {
+            return segmentDocs.get(doc) ? factor : 1f;
+         }
+      };
+   }
+
+   /**
+    * Unites the documents of the given segment matching any of the given doc sets.
+    */
+   private static FixedBitSet union(DocSet[] docs, LeafReaderContext readerContext) throws IOException {
+      FixedBitSet segmentDocs = new FixedBitSet(Math.max(1, readerContext.reader().maxDoc()));
+      for (DocSet queryDocs : docs) {
+         DocIdSet segmentQueryDocs = queryDocs.getTopFilter().getDocIdSet(readerContext, null);
+         DocIdSetIterator it = segmentQueryDocs != null ? segmentQueryDocs.iterator() : null;
+         if (it != null) {
+            segmentDocs.or(it);
+         }
+      }
+      return segmentDocs;
+   }
+
+   /**
+    * Returns the top level doc sets of the queries. The doc sets are resolved once per weight.
+    */
+   @SuppressWarnings("unchecked")
+   private DocSet[] getDocs(@SuppressWarnings("rawtypes") Map context, IndexSearcher searcher) throws IOException {
+      DocSet[] docs = (DocSet[]) context.get(this);
+      if (docs == null) {
+         SolrCache<Query, DocSet> cache = cacheName != null && searcher instanceof SolrIndexSearcher
+               ? ((SolrIndexSearcher) searcher).getCache(cacheName) : null;
+
+         docs = new DocSet[queries.size()];
+         for (int i = 0; i < docs.length; i++) {
+            docs[i] = getDocs(queries.get(i), searcher, cache);
+         }
+         context.put(this, docs);
+      }
+      return docs;
+   }
+
+   private static DocSet getDocs(Query query, IndexSearcher searcher, SolrCache<Query, DocSet> cache)
+         throws IOException {
+      DocSet docs = cache != null ? cache.get(query) : null;
+      if (docs == null) {
+         docs = createDocSet(searcher, query);
+         if (cache != null) {
+            cache.put(query, docs);
+         }
+      }
+      return docs;
+   }
+
+   /**
+    * Resolves the doc set of the given query, without the filter cache.
+    */
+   static DocSet createDocSet(IndexSearcher searcher, Query query) throws IOException {
+      if (searcher instanceof SolrIndexSearcher) {
+         return DocSetUtil.createDocSet((SolrIndexSearcher) searcher, query, null);
+      }
+
+      final FixedBitSet docs = new FixedBitSet(searcher.getIndexReader().maxDoc());
+      searcher.search(query, new SimpleCollector() {
+         private int docBase;
+
+         @Override
+         protected void doSetNextReader(LeafReaderContext readerContext) throws IOException {
+            docBase = readerContext.docBase;
+         }
+
+         @Override
+         public void collect(int doc) throws IOException {
+            docs.set(docBase + doc);
+         }
+
+         @Override
+         public boolean needsScores() {
+            return false;
+         }
+      });
+
+      return new BitDocSet(docs);
+   }
+
+   @Override
+   public boolean equals(Object o) {
+      if (o == null || this.getClass() != o.getClass()) {
+         return false;
+      }
+      DocSetFactorValueSource other = (DocSetFactorValueSource) o;
+      return this.queries.equals(other.queries) && this.factor == other.factor
+            && Objects.equal(this.cacheName, other.cacheName);
+   }
+
+   @Override
+   public int hashCode() {
+      return Objects.hashCode(queries, factor, cacheName);
+   }
+
+   @Override
+   public String description() {
+      return "docset(" + queries + "," + factor + ")";
+   }
+
+   @Override
+   public String toString() {
+      return Objects.toStringHelper(this)
+            .add("queries", queries)
+            .add("factor", factor)
+            .add("cacheName", cacheName)
+            .toString();
+   }
+}
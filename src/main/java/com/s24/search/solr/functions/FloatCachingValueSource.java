@@ -4,32 +4,143 @@ import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkNotNull;
 
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.lang.ref.WeakReference;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Locale;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BooleanSupplier;
 
+import org.apache.lucene.index.FilterLeafReader;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.LeafReader;
 import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.SegmentCommitInfo;
+import org.apache.lucene.index.SegmentReader;
 import org.apache.lucene.queries.function.FunctionValues;
 import org.apache.lucene.queries.function.ValueSource;
 import org.apache.lucene.queries.function.docvalues.FloatDocValues;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.StringHelper;
 import org.apache.lucene.util.packed.PackedInts;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import com.google.common.base.Objects;
+import com.google.common.base.Throwables;
 import com.s24.search.solr.util.FloatArrayValueCache;
 import com.s24.search.solr.util.FloatValueCache;
+import com.s24.search.solr.util.HalfFloatArrayValueCache;
+import com.s24.search.solr.util.MappedFloatValueCache;
+import com.s24.search.solr.util.packed.AdaptiveFloatValueCache;
+import com.s24.search.solr.util.packed.BFloat16Quantizer;
 import com.s24.search.solr.util.packed.FloatArraySparseMutable;
 import com.s24.search.solr.util.packed.OffsetGrowableFloatWriter;
 
 /**
  * A ValueSource for FloatDocValues that caches the values retrieved from an
  * underlying ValueSource.
+ * <p>
+ * Values are cached per segment, keyed by the {@linkplain LeafReader#getCoreCacheHelper() core cache key} of the
+ * segment together with the generations of its updated field infos and doc values. Segments that did not change are
+ * shared by reopened searchers, so their cached values are reused without recomputation as long as this value source
+ * is (e.g. by a regenerating cache). Updated doc values keep the core key, their segment is cached anew and the values
+ * of former generations are dropped. The values of a segment are dropped when the segment is closed or with this value
+ * source, whichever comes first.
+ * <p>
+ * With {@link #CACHE_MAPPED}, the values of a segment are kept in a memory mapped file named by the segment's id in
+ * the given directory, so they survive restarts. The directory is owned by a single core, its files are not shared
+ * with other cores: a file is unmapped when its segment is closed and deleted as well, unless files are retained (e.g.
+ * while the core is closed). Only files mapped by this value source are deleted, files of segments merged away while
+ * no value source mapped them are kept. The file of a segment is never recomputed, so the underlying values must be derived from the segment
+ * only, not from sources changing independently of the index like external file fields.
  */
 public class FloatCachingValueSource extends ValueSource {
 
    public static final int CACHE_FAST = 0;
    public static final int CACHE_OFFSET_PACKED = 1;
    public static final int CACHE_SPARSE = 2;
+   public static final int CACHE_ADAPTIVE = 3;
+   public static final int CACHE_HALF = 4;
+   public static final int CACHE_MAPPED = 5;
+   public static final int CACHE_BFLOAT16 = 6;
+
+   private static final Logger log = LoggerFactory.getLogger(FloatCachingValueSource.class);
+
+   private static final String MAPPED_SUFFIX = ".values";
 
    private final ValueSource source;
-   private final FloatValueCache cache;
+   private final int cacheHint;
+   private final Path directory;
+   private final BooleanSupplier retainFiles;
+
+   // the cached values by segment core and doc values generation
+   private final Map<SegmentKey, FloatValueCache> segmentCaches = new ConcurrentHashMap<>();
+   private final AtomicLong cachedDocs = new AtomicLong();
+
+   /**
+    * Creates a caching value source for the given underlying value source.
+    *
+    * @param source
+    *           the source of the uncached values.
+    * @param cacheHint
+    *           the cache implementation, see {@link #createCache(int, int)}.
+    */
+   public FloatCachingValueSource(ValueSource source, int cacheHint) {
+      this(source, cacheHint, null);
+   }
+
+   /**
+    * Creates a caching value source for the given underlying value source.
+    *
+    * @param source
+    *           the source of the uncached values.
+    * @param cacheHint
+    *           the cache implementation, see {@link #createCache(int, int)} or {@link #CACHE_MAPPED}.
+    * @param directory
+    *           the directory of the value files for {@link #CACHE_MAPPED}, holding the values of this function and
+    *           core only.
+    */
+   public FloatCachingValueSource(ValueSource source, int cacheHint, Path directory) {
+      this(source, cacheHint, directory, () -> false);
+   }
+
+   /**
+    * Creates a caching value source for the given underlying value source.
+    *
+    * @param source
+    *           the source of the uncached values.
+    * @param cacheHint
+    *           the cache implementation, see {@link #createCache(int, int)} or {@link #CACHE_MAPPED}.
+    * @param directory
+    *           the directory of the value files for {@link #CACHE_MAPPED}, holding the values of this function and
+    *           core only.
+    * @param retainFiles
+    *           whether the value files of closed segments are kept, e.g. while the core is closed, so they are
+    *           reattached after a restart. Otherwise, the segment has been merged away and its file is deleted.
+    */
+   public FloatCachingValueSource(ValueSource source, int cacheHint, Path directory, BooleanSupplier retainFiles) {
+      this.source = checkNotNull(source);
+      checkArgument(cacheHint >= 0, "Pre-condition violated: expression cacheHint >= 0 must be true.");
+      checkArgument(cacheHint <= CACHE_BFLOAT16,
+            "Pre-condition violated: expression cacheHint <= CACHE_BFLOAT16 must be true.");
+      checkArgument(cacheHint != CACHE_MAPPED || directory != null,
+            "Pre-condition violated: directory must not be null for mapped caches.");
+
+      this.cacheHint = cacheHint;
+      this.directory = directory;
+      this.retainFiles = checkNotNull(retainFiles, "Pre-condition violated: retainFiles must not be null.");
+   }
 
    /**
     * Creates a caching value source for the given underlying value source.
@@ -38,63 +149,334 @@ public class FloatCachingValueSource extends ValueSource {
     *           the source of the uncached values.
     * @param maxDoc
     *           the maxDoc of the index.
+    * @deprecated caches are sized per segment, use {@link #FloatCachingValueSource(ValueSource, int)}.
     */
+   @Deprecated
    public FloatCachingValueSource(ValueSource source, int maxDoc, int cacheHint) {
-      this.source = checkNotNull(source);
-      checkArgument(maxDoc > 0, "Pre-condition violated: expression cacheHint >= 0 must be true.");
-      checkArgument(cacheHint >= 0, "Pre-condition violated: expression cacheHint >= 0 must be true.");
-      checkArgument(cacheHint <= 2, "Pre-condition violated: expression cacheHint <= 2 must be true.");
+      this(source, cacheHint);
+      checkArgument(maxDoc > 0, "Pre-condition violated: expression maxDoc > 0 must be true.");
+   }
 
+   /**
+    * Creates an empty value cache for the given number of documents.
+    *
+    * @param cacheHint
+    *           the cache implementation, one of {@link #CACHE_FAST}, {@link #CACHE_OFFSET_PACKED},
+    *           {@link #CACHE_SPARSE}, {@link #CACHE_ADAPTIVE}, {@link #CACHE_HALF} or {@link #CACHE_BFLOAT16}.
+    */
+   public static FloatValueCache createCache(int maxDoc, int cacheHint) {
       if (CACHE_FAST == cacheHint) {
          // dead simple impl
-         this.cache = new FloatArrayValueCache(maxDoc);
+         return new FloatArrayValueCache(maxDoc);
       } else if (CACHE_OFFSET_PACKED == cacheHint) {
          // mem efficient
-         this.cache = new OffsetGrowableFloatWriter(
+         return new OffsetGrowableFloatWriter(
                OffsetGrowableFloatWriter.DEFAULT_PRECISION,
                4, maxDoc,
                PackedInts.DEFAULT);
       } else if (CACHE_SPARSE == cacheHint) {
          // mem efficient
-         this.cache = new FloatArraySparseMutable(maxDoc, FloatArraySparseMutable.DEFAULT_PRECISION);
+         return new FloatArraySparseMutable(maxDoc, FloatArraySparseMutable.DEFAULT_PRECISION);
+      } else if (CACHE_ADAPTIVE == cacheHint) {
+         // picks the representation from the values
+         return new AdaptiveFloatValueCache(maxDoc, AdaptiveFloatValueCache.DEFAULT_PRECISION);
+      } else if (CACHE_HALF == cacheHint) {
+         // half the float array, three significant digits
+         return new HalfFloatArrayValueCache(maxDoc);
+      } else if (CACHE_BFLOAT16 == cacheHint) {
+         // packed relative to the minimum, three significant digits of any magnitude
+         return new OffsetGrowableFloatWriter(BFloat16Quantizer.INSTANCE, 4, maxDoc, PackedInts.DEFAULT);
+      } else if (CACHE_MAPPED == cacheHint) {
+         throw new IllegalArgumentException("Mapped caches are created per segment file, see MappedFloatValueCache.");
       } else {
-         // TODO max memory efficient, but not suitable for larger datasets
-         this.cache = null;
+         throw new IllegalArgumentException("Unknown cache hint: " + cacheHint);
       }
    }
 
    /**
-    * Returns true if the value for the given document is cached.
+    * Parses the name of a cache hint, e.g. <code>sparse</code> or <code>CACHE_SPARSE</code> for {@link #CACHE_SPARSE}.
+    * Defaults to {@link #CACHE_FAST}, the only hint keeping the values exactly.
     */
-   private boolean isCached(int doc) {
-      return cache.hasValue(doc);
+   public static int parseCacheHint(String name) {
+      if (name == null) {
+         return CACHE_FAST;
+      }
+
+      switch (name.trim().toUpperCase(Locale.ROOT).replaceFirst("^CACHE_", "")) {
+         case "FAST":
+            return CACHE_FAST;
+         case "OFFSET_PACKED":
+            return CACHE_OFFSET_PACKED;
+         case "SPARSE":
+            return CACHE_SPARSE;
+         case "ADAPTIVE":
+            return CACHE_ADAPTIVE;
+         case "HALF":
+            return CACHE_HALF;
+         case "MAPPED":
+            return CACHE_MAPPED;
+         case "BFLOAT16":
+            return CACHE_BFLOAT16;
+         default:
+            throw new IllegalArgumentException("Unknown cache hint: " + name);
+      }
    }
 
    /**
-    * Checks whether this atomic reader context is valid. Cache for valid reader
-    * contexts only.
+    * Returns the cache of the given segment, <code>null</code> if the segment can not be cached.
     */
-   private boolean isValidAtomicReaderContext(LeafReaderContext readerContext) {
-      return readerContext != null && readerContext.docBase > 0;
+   private FloatValueCache getSegmentCache(LeafReaderContext readerContext) {
+      if (readerContext == null) {
+         return null;
+      }
+
+      final IndexReader.CacheHelper cacheHelper = readerContext.reader().getCoreCacheHelper();
+      if (cacheHelper == null) {
+         return null;
+      }
+
+      final SegmentKey segmentKey = new SegmentKey(cacheHelper.getKey(), segmentInfo(readerContext.reader()));
+      final FloatValueCache cached = segmentCaches.get(segmentKey);
+      if (cached != null) {
+         return cached;
+      }
+
+      final int maxDoc = Math.max(1, readerContext.reader().maxDoc());
+      FloatValueCache cache = segmentCaches.computeIfAbsent(segmentKey, key -> {
+         FloatValueCache created = createSegmentCache(readerContext.reader(), maxDoc);
+         cacheHelper.addClosedListener(new SegmentClosedListener(this, key, maxDoc,
+               created instanceof MappedFloatValueCache ? (MappedFloatValueCache) created : null));
+         cachedDocs.addAndGet(maxDoc);
+         return created;
+      });
+
+      // updated doc values replace the former generations, searchers still reading them compute values lazily
+      for (SegmentKey other : segmentCaches.keySet()) {
+         if (other.isFormerGenerationOf(segmentKey) && segmentCaches.remove(other) != null) {
+            cachedDocs.addAndGet(-maxDoc);
+         }
+      }
+
+      return cache;
+   }
+
+   /**
+    * Identifies the values of a segment: its core and the generations of its updated field infos and doc values, which
+    * change without the core changing.
+    */
+   private static final class SegmentKey {
+
+      private final IndexReader.CacheKey core;
+      private final long fieldInfosGen;
+      private final long docValuesGen;
+
+      SegmentKey(IndexReader.CacheKey core, SegmentCommitInfo info) {
+         this.core = core;
+         this.fieldInfosGen = info != null ? info.getFieldInfosGen() : -1;
+         this.docValuesGen = info != null ? info.getDocValuesGen() : -1;
+      }
+
+      boolean isFormerGenerationOf(SegmentKey other) {
+         return core == other.core && !equals(other) && fieldInfosGen <= other.fieldInfosGen
+               && docValuesGen <= other.docValuesGen;
+      }
+
+      @Override
+      public boolean equals(Object o) {
+         if (!(o instanceof SegmentKey)) {
+            return false;
+         }
+         SegmentKey other = (SegmentKey) o;
+         return core == other.core && fieldInfosGen == other.fieldInfosGen && docValuesGen == other.docValuesGen;
+      }
+
+      @Override
+      public int hashCode() {
+         return 31 * (31 * core.hashCode() + Long.hashCode(fieldInfosGen)) + Long.hashCode(docValuesGen);
+      }
+   }
+
+   /**
+    * Drops the values of a closed segment. Segments outlive the value sources caching them, e.g. if a value source is
+    * built per searcher, so the listener does not keep the value source reachable. Mapped values are unmapped, their
+    * file is deleted unless retained.
+    */
+   private static final class SegmentClosedListener implements IndexReader.ClosedListener {
+
+      private final WeakReference<FloatCachingValueSource> valueSource;
+      private final SegmentKey key;
+      private final int maxDoc;
+      private final MappedFloatValueCache mapped;
+      private final BooleanSupplier retainFiles;
+
+      SegmentClosedListener(FloatCachingValueSource valueSource, SegmentKey key, int maxDoc,
+            MappedFloatValueCache mapped) {
+         this.valueSource = new WeakReference<>(valueSource);
+         this.key = key;
+         this.maxDoc = maxDoc;
+         this.mapped = mapped;
+         this.retainFiles = valueSource.retainFiles;
+      }
+
+      @Override
+      public void onClose(IndexReader.CacheKey core) throws IOException {
+         FloatCachingValueSource source = valueSource.get();
+         if (source != null && source.segmentCaches.remove(key) != null) {
+            source.cachedDocs.addAndGet(-maxDoc);
+         }
+
+         // no searcher reads the values of a closed segment
+         if (mapped != null) {
+            mapped.close();
+            if (!retainFiles.getAsBoolean()) {
+               Files.deleteIfExists(mapped.getFile());
+            }
+         }
+      }
+   }
+
+   private FloatValueCache createSegmentCache(LeafReader reader, int maxDoc) {
+      if (cacheHint != CACHE_MAPPED) {
+         return createCache(maxDoc, cacheHint);
+      }
+
+      String fileName = segmentFileName(reader);
+      if (fileName != null) {
+         try {
+            return MappedFloatValueCache.open(directory.resolve(fileName), maxDoc);
+         } catch (IOException e) {
+            log.warn("Could not map the values of " + reader + ", caching them on heap.", e);
+         }
+      }
+
+      return createCache(maxDoc, CACHE_ADAPTIVE);
+   }
+
+   /**
+    * Returns the name of the value file of the given segment, <code>null</code> if the reader is not a segment. Updated
+    * doc values get a file of their own.
+    */
+   static String segmentFileName(LeafReader reader) {
+      SegmentCommitInfo info = segmentInfo(reader);
+      if (info == null) {
+         return null;
+      }
+
+      return StringHelper.idToString(info.info.getId()) + "_" + Long.toString(info.getFieldInfosGen() + 1, 36) + "_"
+            + Long.toString(info.getDocValuesGen() + 1, 36) + MAPPED_SUFFIX;
+   }
+
+   /**
+    * Returns the commit info of the given segment, <code>null</code> if the reader is not a segment.
+    */
+   private static SegmentCommitInfo segmentInfo(LeafReader reader) {
+      LeafReader unwrapped = FilterLeafReader.unwrap(reader);
+      return unwrapped instanceof SegmentReader ? ((SegmentReader) unwrapped).getSegmentInfo() : null;
+   }
+
+   /**
+    * Fills the cache with the values of all live documents of the given searcher, so the first queries do not compute
+    * values one at a time. Each segment is warmed by a tight loop over its documents on the calling thread. Values
+    * cached already (e.g. of segments shared with the previous searcher) are not computed again.
+    */
+   public void warm(IndexSearcher searcher) throws IOException {
+      warm(searcher, null);
+   }
+
+   /**
+    * Fills the cache like {@link #warm(IndexSearcher)}, the segments are warmed in parallel on the given executor. The
+    * executor is shared by all functions warmed, e.g. the bounded executor of the core, so warming many functions does
+    * not start a thread per segment and function.
+    *
+    * @param executor
+    *           the executor to warm the segments on, <code>null</code> to warm them on the calling thread.
+    */
+   public void warm(IndexSearcher searcher, ExecutorService executor) throws IOException {
+      checkNotNull(searcher, "Pre-condition violated: searcher must not be null.");
+
+      @SuppressWarnings("rawtypes")
+      final Map context = ValueSource.newContext(searcher);
+      source.createWeight(context, searcher);
+
+      List<LeafReaderContext> leaves = searcher.getIndexReader().leaves();
+      if (executor == null || leaves.size() <= 1) {
+         for (LeafReaderContext leaf : leaves) {
+            warm(context, leaf);
+         }
+         return;
+      }
+
+      List<Future<?>> warmed = new ArrayList<>(leaves.size());
+      try {
+         for (LeafReaderContext leaf : leaves) {
+            // the weight context is shared read only, each leaf works on its own copy
+            warmed.add(executor.submit(() -> {
+               warm(copyOf(context), leaf);
+               return null;
+            }));
+         }
+         for (Future<?> leaf : warmed) {
+            leaf.get();
+         }
+      } catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+         throw new InterruptedIOException("Interrupted while warming " + description());
+      } catch (ExecutionException e) {
+         Throwables.propagateIfPossible(e.getCause(), IOException.class);
+         throw new IOException(e.getCause());
+      } finally {
+         // the leaves not warmed yet are filled lazily
+         for (Future<?> leaf : warmed) {
+            leaf.cancel(false);
+         }
+      }
+   }
+
+   @SuppressWarnings({ "rawtypes", "unchecked" })
+   private static Map copyOf(Map context) {
+      return new IdentityHashMap(context);
+   }
+
+   private void warm(@SuppressWarnings("rawtypes") Map context, LeafReaderContext leaf) throws IOException {
+      final FloatValueCache cache = getSegmentCache(leaf);
+      if (cache == null) {
+         return;
+      }
+
+      final FunctionValues sourceValues = source.getValues(context, leaf);
+      final Bits liveDocs = leaf.reader().getLiveDocs();
+      for (int doc = 0, maxDoc = leaf.reader().maxDoc(); doc < maxDoc; doc++) {
+         if ((liveDocs == null || liveDocs.get(doc)) && !cache.hasValue(doc)) {
+            cache.setFloat(doc, sourceValues.floatVal(doc));
+         }
+      }
+
+      // all values are known now
+      if (cache instanceof AdaptiveFloatValueCache) {
+         ((AdaptiveFloatValueCache) cache).compact();
+      } else if (cache instanceof MappedFloatValueCache) {
+         ((MappedFloatValueCache) cache).force();
+      }
    }
 
    @Override
    public FunctionValues getValues(@SuppressWarnings("rawtypes") Map context, final LeafReaderContext readerContext)
          throws IOException {
       final FunctionValues sourceValues = source.getValues(context, readerContext);
+      final FloatValueCache cache = getSegmentCache(readerContext);
+
+      if (cache == null) {
+         return sourceValues;
+      }
 
       return new FloatDocValues(this) {
          @Override
          public float floatVal(int doc) throws IOException {
-            if (isValidAtomicReaderContext(readerContext)) {
-               if (!isCached(doc)) {
-                  cache.setFloat(doc, sourceValues.floatVal(doc));
-               }
-
-               return cache.getFloat(doc);
+            if (!cache.hasValue(doc)) {
+               cache.setFloat(doc, sourceValues.floatVal(doc));
             }
 
-            return sourceValues.floatVal(doc);
+            return cache.getFloat(doc);
          }
       };
    }
@@ -105,7 +487,8 @@ public class FloatCachingValueSource extends ValueSource {
          return false;
       }
       FloatCachingValueSource other = (FloatCachingValueSource) o;
-      return this.source.equals(other.source) && (this.cache.size() == other.cache.size());
+      return this.source.equals(other.source) && this.cacheHint == other.cacheHint
+            && Objects.equal(this.directory, other.directory);
    }
 
    @Override
@@ -118,12 +501,28 @@ public class FloatCachingValueSource extends ValueSource {
       return "cached(" + source.description() + ")";
    }
 
+   /**
+    * Returns the bytes used by the cached values of all segments.
+    */
+   long cachedBytes() {
+      long bytes = 0;
+      for (FloatValueCache cache : segmentCaches.values()) {
+         bytes += cache.ramBytesUsed();
+      }
+      return bytes;
+   }
+
    @Override
    public String toString() {
+      long bytes = cachedBytes();
+      long docs = cachedDocs.get();
+
       return Objects.toStringHelper(this)
-            .add("cache.implementation", cache.getClass().getName())
-            .add("cache.size", cache.size())
-            .add("cache.bytes", cache.ramBytesUsed())
+            .add("cache.hint", cacheHint)
+            .add("cache.directory", directory)
+            .add("cache.segments", segmentCaches.size())
+            .add("cache.bytes", bytes)
+            .add("cache.bytesPerDoc", docs > 0 ? String.format(Locale.ROOT, "%.2f", (double) bytes / docs) : "0")
             .toString();
    }
 }
@@ -0,0 +1,59 @@
+package com.s24.search.solr.functions;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.solr.common.util.ExecutorUtil;
+import org.apache.solr.core.CloseHook;
+import org.apache.solr.core.SolrCore;
+import org.apache.solr.util.DefaultSolrThreadFactory;
+
+/**
+ * Holds the executor each core warms the segments of its {@linkplain FloatCachingValueSource cached functions} on,
+ * shared by the {@link CachedBoostListener} and the {@link CachedBoostRegenerator}. The executor runs at most one
+ * thread per processor, however many functions and searchers are warmed, its idle threads time out. It is shut down
+ * with the core.
+ */
+final class ValueWarmingExecutors {
+
+   private static final ConcurrentMap<SolrCore, ExecutorService> EXECUTORS = new ConcurrentHashMap<>();
+
+   private ValueWarmingExecutors() {
+   }
+
+   /**
+    * Returns the warming executor of the given core, created on first use.
+    */
+   static ExecutorService get(SolrCore core) {
+      checkNotNull(core, "Pre-condition violated: core must not be null.");
+
+      return EXECUTORS.computeIfAbsent(core, c -> {
+         int threads = Runtime.getRuntime().availableProcessors();
+         ThreadPoolExecutor executor = new ExecutorUtil.MDCAwareThreadPoolExecutor(threads, threads, 60L,
+               TimeUnit.SECONDS, new LinkedBlockingQueue<>(), new DefaultSolrThreadFactory("bmaxValueWarmer"));
+         executor.allowCoreThreadTimeOut(true);
+
+         c.addCloseHook(new CloseHook() {
+            @Override
+            public void preClose(SolrCore core) {
+            }
+
+            @Override
+            public void postClose(SolrCore core) {
+               ExecutorService removed = EXECUTORS.remove(core);
+               if (removed != null) {
+                  ExecutorUtil.shutdownAndAwaitTermination(removed);
+               }
+            }
+         });
+
+         return executor;
+      });
+   }
+}
@@ -11,6 +11,7 @@ import org.apache.lucene.search.BooleanClause.Occur;
 import org.apache.lucene.search.BooleanQuery.Builder;
 import org.apache.lucene.util.BytesRef;
 import org.apache.lucene.util.QueryBuilder;
+import org.apache.lucene.util.automaton.LevenshteinAutomata;
 import org.apache.solr.schema.IndexSchema;
 import org.apache.solr.search.FieldParams;
 import org.apache.solr.search.SolrCache;
@@ -38,8 +39,13 @@ public class BmaxLuceneQueryBuilder {
    private IndexSchema schema;
    private SolrCache<String, FieldTermsDictionary> fieldTermCache;
    private int queryClauseCount = 0;
+   private int inspectionHits = 0;
+   private int prunedClauses = 0;
    private boolean noMatchDocsForNoTermsQuery;
 
+   // analyzed terms by analyzer identity, fields sharing a field type share the analysis
+   private final Map<Analyzer, Map<String, Collection<BytesRef>>> analyzedTerms = new IdentityHashMap<>();
+
    public BmaxLuceneQueryBuilder(BmaxQuery bmaxQuery) {
       checkNotNull(bmaxQuery, "Pre-condition violated: bmaxQuery must not be null.");
 
@@ -50,6 +56,20 @@ public class BmaxLuceneQueryBuilder {
       return queryClauseCount;
    }
 
+   /**
+    * Returns the number of clauses kept because the inspected field dictionary may contain their term.
+    */
+   public int getInspectionHits() {
+      return inspectionHits;
+   }
+
+   /**
+    * Returns the number of clauses skipped because the inspected field dictionary does not contain their term.
+    */
+   public int getPrunedClauses() {
+      return prunedClauses;
+   }
+
    public BmaxLuceneQueryBuilder withFieldTermCache(SolrCache<String, FieldTermsDictionary> fieldTermCache) {
       this.fieldTermCache = fieldTermCache;
       return this;
@@ -169,18 +189,33 @@ public class BmaxLuceneQueryBuilder {
          Analyzer analyzer = schema.getField(field.getKey()).getType().getQueryAnalyzer();
 
          // add main term clause
-         Query queries = buildTermQueries(field.getKey(), field.getValue(),
-               Terms.collectTerms(term.getTerm(), analyzer, field.getKey()),
-               USER_QUERY_FIELD_BOOST);
+         Collection<BytesRef> terms = analyze(term.getTerm(), analyzer, field.getKey());
+         Query queries = buildTermQueries(field.getKey(), field.getValue(), terms, USER_QUERY_FIELD_BOOST);
          if (queries != null) {
             dismaxQueries.add(queries);
          }
 
+         // add prefix expansion clause
+         if (bmaxquery.isPrefixEnabled()) {
+            Query prefixQueries = buildPrefixQueries(field.getKey(), field.getValue(), terms);
+            if (prefixQueries != null) {
+               dismaxQueries.add(prefixQueries);
+            }
+         }
+
+         // add typo tolerant clause
+         if (bmaxquery.getFuzzyMaxEdits() > 0) {
+            Query fuzzyQueries = buildFuzzyQueries(field.getKey(), field.getValue(), terms);
+            if (fuzzyQueries != null) {
+               dismaxQueries.add(fuzzyQueries);
+            }
+         }
+
          // add synonym clause
          if (!term.getSynonyms().isEmpty()) {
             for (CharSequence synonym : term.getSynonyms()) {
                Query termQueries = buildTermQueries(field.getKey(), field.getValue(),
-                     Terms.collectTerms(synonym, analyzer, field.getKey()),
+                     analyze(synonym, analyzer, field.getKey()),
                      bmaxquery.getSynonymBoost());
                if (termQueries != null) {
                   dismaxQueries.add(termQueries);
@@ -201,7 +236,7 @@ public class BmaxLuceneQueryBuilder {
             // add subtopic clause
             for (CharSequence subtopic : term.getSubtopics()) {
                Query termQueries = buildTermQueries(field.getKey(), field.getValue(),
-                     Terms.collectTerms(subtopic, analyzer, field.getKey()),
+                     analyze(subtopic, analyzer, field.getKey()),
                      bmaxquery.getSubtopicBoost());
                if (termQueries != null) {
                   dismaxQueries.add(termQueries);
@@ -213,38 +248,129 @@ public class BmaxLuceneQueryBuilder {
       return new DisjunctionMaxQuery(dismaxQueries, bmaxquery.getTieBreakerMultiplier());
    }
 
+   /**
+    * Analyzes the given input once per analyzer. Fields sharing the same query analyzer (i.e. the same field type)
+    * share the resulting terms, the field name of the first field analyzed is handed to the analyzer.
+    */
+   protected Collection<BytesRef> analyze(CharSequence input, Analyzer analyzer, String field) {
+      checkNotNull(input, "Pre-condition violated: input must not be null.");
+      checkNotNull(analyzer, "Pre-condition violated: analyzer must not be null.");
+
+      return analyzedTerms.computeIfAbsent(analyzer, a -> new HashMap<>())
+            .computeIfAbsent(input.toString(), s -> Terms.collectBytes(s, analyzer, field));
+   }
+
    // ---- term queries
 
    /**
     * Combines the given terms to a valid dismax query for the field given.
     */
-   protected Query buildTermQueries(String field, float fieldBoost, Collection<Term> terms,
+   protected Query buildTermQueries(String field, float fieldBoost, Collection<BytesRef> terms,
          float extraBoost) {
       checkNotNull(field, "Pre-condition violated: field must not be null.");
       checkNotNull(terms, "Pre-condition violated: terms must not be null.");
 
-      FieldTermsDictionary fieldTerms = null;
-
-      // check for term inspection && available term cache
-      if (bmaxquery.isInspectTerms() && fieldTermCache != null) {
-
-         // or on activated term inspection
-         fieldTerms = fieldTermCache.get(field);
-      }
-
+      FieldTermsDictionary fieldTerms = getFieldTerms(field);
       Collection<BytesRef> filteredTerms = new ArrayList<>();
 
-      for (Term term : terms) {
+      for (BytesRef term : terms) {
          // Add the term to the query if we don't have a cache, or if the cache
          // says that the field may contain the term
-         if (fieldTerms == null || fieldTerms.fieldMayContainTerm(term.text())) {
-            filteredTerms.add(term.bytes());
+         if (fieldTerms == null || inspected(fieldTerms.fieldMayContainTerm(term))) {
+            filteredTerms.add(term);
          }
       }
 
       return filteredTerms.isEmpty() ? null : buildTermQuery(field, filteredTerms, fieldBoost * extraBoost);
    }
 
+   /**
+    * Builds prefix queries for the given terms. Terms no indexed term of the field starts with are skipped, so the
+    * costly rewrite of the prefix query is only done for fields that contain candidates.
+    */
+   protected Query buildPrefixQueries(String field, float fieldBoost, Collection<BytesRef> terms) {
+      checkNotNull(field, "Pre-condition violated: field must not be null.");
+      checkNotNull(terms, "Pre-condition violated: terms must not be null.");
+
+      FieldTermsDictionary fieldTerms = getFieldTerms(field);
+      List<Query> queries = new ArrayList<>();
+
+      for (BytesRef term : terms) {
+         if (fieldTerms == null || inspected(fieldTerms.fieldMayContainPrefix(term))) {
+            queries.add(new PrefixQuery(new Term(field, term)));
+         }
+      }
+
+      return buildExpansionQuery(queries, fieldBoost * bmaxquery.getPrefixBoost());
+   }
+
+   /**
+    * Builds fuzzy queries for the given terms. Terms without an indexed term of the field within the configured edit
+    * distance are skipped, so the costly rewrite of the fuzzy query is only done for fields that contain candidates.
+    */
+   protected Query buildFuzzyQueries(String field, float fieldBoost, Collection<BytesRef> terms) {
+      checkNotNull(field, "Pre-condition violated: field must not be null.");
+      checkNotNull(terms, "Pre-condition violated: terms must not be null.");
+
+      FieldTermsDictionary fieldTerms = getFieldTerms(field);
+      int maxEdits = Math.min(bmaxquery.getFuzzyMaxEdits(), LevenshteinAutomata.MAXIMUM_SUPPORTED_DISTANCE);
+      List<Query> queries = new ArrayList<>();
+
+      for (BytesRef term : terms) {
+         if (fieldTerms == null || inspected(fieldTerms.fieldMayContainFuzzy(term, maxEdits))) {
+            queries.add(new FuzzyQuery(new Term(field, term), maxEdits));
+         }
+      }
+
+      return buildExpansionQuery(queries, fieldBoost * bmaxquery.getFuzzyBoost());
+   }
+
+   private Query buildExpansionQuery(List<Query> queries, float boost) {
+      if (queries.isEmpty()) {
+         return null;
+      }
+
+      queryClauseCount += queries.size();
+
+      Query query;
+      if (queries.size() == 1) {
+         query = queries.get(0);
+      } else {
+         Builder builder = new Builder();
+         for (Query q : queries) {
+            builder.add(q, Occur.SHOULD);
+         }
+         query = builder.build();
+      }
+
+      return boost > 0f ? withBoostFactor(query, boost) : query;
+   }
+
+   /**
+    * Counts the outcome of a term inspection and returns it.
+    */
+   private boolean inspected(boolean mayContain) {
+      if (mayContain) {
+         inspectionHits++;
+      } else {
+         prunedClauses++;
+      }
+      return mayContain;
+   }
+
+   /**
+    * Returns the term dictionary of the given field or {@code null} if terms are not inspected.
+    */
+   private FieldTermsDictionary getFieldTerms(String field) {
+
+      // check for term inspection && available term cache
+      if (bmaxquery.isInspectTerms() && fieldTermCache != null) {
+         return fieldTermCache.get(field);
+      }
+
+      return null;
+   }
+
    /**
     * Builds a term query and manipulates the document frequency, if given.
     */
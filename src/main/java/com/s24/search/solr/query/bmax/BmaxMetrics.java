@@ -0,0 +1,146 @@
+package com.s24.search.solr.query.bmax;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.util.concurrent.TimeUnit;
+
+import org.apache.solr.core.SolrInfoBean;
+import org.apache.solr.metrics.SolrMetricManager;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.ExponentiallyDecayingReservoir;
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.Timer;
+import com.google.common.base.Objects;
+
+/**
+ * The metrics recorded while parsing bmax queries. Every query updates each metric once only, counts are accumulated
+ * by the query builder and added afterwards, so the metrics can stay enabled under full load.
+ * <p>
+ * Metrics created by {@link #register(SolrMetricManager, SolrInfoBean, String, String)} are reported by Solr's
+ * metrics API, metrics created by the default constructor are kept for parsers used outside of a core.
+ */
+public class BmaxMetrics {
+
+   static final String ANALYSIS_TIME = "analysisTime";
+   static final String BUILD_TIME = "buildTime";
+   static final String QUERY_CLAUSES = "queryClauses";
+   static final String INSPECTION_HITS = "inspectionHits";
+   static final String PRUNED_CLAUSES = "prunedClauses";
+   static final String FIELD_TERM_CACHE_BUILD_TIME = "fieldTermCache.buildTime";
+   static final String FIELD_TERM_CACHE_SIZE = "fieldTermCache.sizeInBytes";
+
+   private final Timer analysisTime;
+   private final Timer buildTime;
+   private final Histogram queryClauses;
+   private final Counter inspectionHits;
+   private final Counter prunedClauses;
+   private final Timer fieldTermCacheBuildTime;
+   private final Histogram fieldTermCacheSize;
+
+   /**
+    * Creates metrics not registered anywhere.
+    */
+   public BmaxMetrics() {
+      this(new Timer(), new Timer(), new Histogram(new ExponentiallyDecayingReservoir()), new Counter(),
+            new Counter(), new Timer(), new Histogram(new ExponentiallyDecayingReservoir()));
+   }
+
+   private BmaxMetrics(Timer analysisTime, Timer buildTime, Histogram queryClauses, Counter inspectionHits,
+         Counter prunedClauses, Timer fieldTermCacheBuildTime, Histogram fieldTermCacheSize) {
+      this.analysisTime = analysisTime;
+      this.buildTime = buildTime;
+      this.queryClauses = queryClauses;
+      this.inspectionHits = inspectionHits;
+      this.prunedClauses = prunedClauses;
+      this.fieldTermCacheBuildTime = fieldTermCacheBuildTime;
+      this.fieldTermCacheSize = fieldTermCacheSize;
+   }
+
+   /**
+    * Creates the metrics in the given registry, named after the category and scope of the given plugin. The reservoirs
+    * of the histograms and timers are the ones configured for the metric manager.
+    */
+   public static BmaxMetrics register(SolrMetricManager manager, SolrInfoBean info, String registryName,
+         String scope) {
+      checkNotNull(manager, "Pre-condition violated: manager must not be null.");
+      checkNotNull(info, "Pre-condition violated: info must not be null.");
+
+      String category = info.getCategory().toString();
+      return new BmaxMetrics(
+            manager.timer(info, registryName, ANALYSIS_TIME, category, scope),
+            manager.timer(info, registryName, BUILD_TIME, category, scope),
+            manager.histogram(info, registryName, QUERY_CLAUSES, category, scope),
+            manager.counter(info, registryName, INSPECTION_HITS, category, scope),
+            manager.counter(info, registryName, PRUNED_CLAUSES, category, scope),
+            manager.timer(info, registryName, FIELD_TERM_CACHE_BUILD_TIME, category, scope),
+            manager.histogram(info, registryName, FIELD_TERM_CACHE_SIZE, category, scope));
+   }
+
+   /**
+    * Records the time spent analyzing the query string.
+    */
+   public void analyzed(long nanos) {
+      analysisTime.update(nanos, TimeUnit.NANOSECONDS);
+   }
+
+   /**
+    * Records the time spent building the Lucene query and the clauses inspected by the given builder.
+    */
+   public void built(BmaxLuceneQueryBuilder builder, long nanos) {
+      buildTime.update(nanos, TimeUnit.NANOSECONDS);
+      queryClauses.update(builder.getQueryClauseCount());
+
+      if (builder.getInspectionHits() > 0) {
+         inspectionHits.inc(builder.getInspectionHits());
+      }
+      if (builder.getPrunedClauses() > 0) {
+         prunedClauses.inc(builder.getPrunedClauses());
+      }
+   }
+
+   /**
+    * Records the time spent loading the given dictionary into the field term cache and its size, on and off heap.
+    */
+   public void fieldTermsLoaded(FieldTermsDictionary fieldTerms, long nanos) {
+      fieldTermCacheBuildTime.update(nanos, TimeUnit.NANOSECONDS);
+      fieldTermCacheSize.update(fieldTerms.ramBytesUsed() + fieldTerms.offHeapBytesUsed());
+   }
+
+   Timer getAnalysisTime() {
+      return analysisTime;
+   }
+
+   Timer getBuildTime() {
+      return buildTime;
+   }
+
+   Histogram getQueryClauses() {
+      return queryClauses;
+   }
+
+   Counter getInspectionHits() {
+      return inspectionHits;
+   }
+
+   Counter getPrunedClauses() {
+      return prunedClauses;
+   }
+
+   Timer getFieldTermCacheBuildTime() {
+      return fieldTermCacheBuildTime;
+   }
+
+   Histogram getFieldTermCacheSize() {
+      return fieldTermCacheSize;
+   }
+
+   @Override
+   public String toString() {
+      return Objects.toStringHelper(this)
+            .add("queries", buildTime.getCount())
+            .add("inspectionHits", inspectionHits.getCount())
+            .add("prunedClauses", prunedClauses.getCount())
+            .toString();
+   }
+}
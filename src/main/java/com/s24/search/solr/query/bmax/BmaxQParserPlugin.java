@@ -2,19 +2,30 @@ package com.s24.search.solr.query.bmax;
 
 import static com.google.common.base.Preconditions.checkNotNull;
 
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
 import org.apache.lucene.analysis.Analyzer;
 import org.apache.solr.common.params.ModifiableSolrParams;
 import org.apache.solr.common.params.SolrParams;
 import org.apache.solr.common.util.NamedList;
+import org.apache.solr.core.PluginInfo;
+import org.apache.solr.metrics.SolrMetricManager;
+import org.apache.solr.metrics.SolrMetricProducer;
 import org.apache.solr.request.SolrQueryRequest;
 import org.apache.solr.search.QParser;
 import org.apache.solr.search.QParserPlugin;
+import org.apache.solr.util.plugin.PluginInfoInitialized;
+
+import com.codahale.metrics.MetricRegistry;
 
 /**
- * 
+ * Creates the {@link BmaxQueryParser}. The parsing is reported to Solr's metrics API as {@link BmaxMetrics}, in the
+ * <code>QUERYPARSER</code> category of the core's registry, scoped by the name the parser is configured with.
+ *
  * @author Shopping24 GmbH, Torsten Bøgh Köster (@tboeghk)
  */
-public class BmaxQParserPlugin extends QParserPlugin {
+public class BmaxQParserPlugin extends QParserPlugin implements PluginInfoInitialized, SolrMetricProducer {
    /**
     * Field type with query analyzer for penalize terms.
     */
@@ -27,6 +38,22 @@ public class BmaxQParserPlugin extends QParserPlugin {
    private Analyzer subtopicAnalyzer;
    private Analyzer queryParsingAnalyzer;
 
+   // replaced by registered metrics once the core initializes them
+   private volatile BmaxMetrics metrics = new BmaxMetrics();
+   private final Set<String> metricNames = ConcurrentHashMap.newKeySet();
+   private MetricRegistry registry;
+
+   // the configured name of the parser, the metrics are registered under
+   private String name;
+
+   @Override
+   public void init(PluginInfo info) {
+      checkNotNull(info, "Pre-condition violated: info must not be null.");
+
+      this.name = info.name;
+      init(info.initArgs);
+   }
+
    @Override
    public void init(@SuppressWarnings("rawtypes") NamedList args) {
       checkNotNull(args, "Pre-condition violated: args must not be null.");
@@ -64,6 +91,31 @@ public class BmaxQParserPlugin extends QParserPlugin {
       } 
       
       return new BmaxQueryParser(qstr, localParams, req.getParams(), req, queryParsingAnalyzer, 
-            synonymAnalyzer, subtopicAnalyzer, req.getSearcher().getCache("bmax.fieldTermCache"));
+            synonymAnalyzer, subtopicAnalyzer, req.getSearcher().getCache("bmax.fieldTermCache"), metrics);
+   }
+
+   /**
+    * Returns the configured name of the parser, the core registers the metrics and the info bean with. Falls back to
+    * the class name if the parser is not configured by name.
+    */
+   @Override
+   public String getName() {
+      return name != null ? name : super.getName();
+   }
+
+   @Override
+   public void initializeMetrics(SolrMetricManager manager, String registryName, String tag, String scope) {
+      this.registry = manager.registry(registryName);
+      this.metrics = BmaxMetrics.register(manager, this, registryName, scope);
+   }
+
+   @Override
+   public Set<String> getMetricNames() {
+      return metricNames;
+   }
+
+   @Override
+   public MetricRegistry getMetricRegistry() {
+      return registry;
    }
 }
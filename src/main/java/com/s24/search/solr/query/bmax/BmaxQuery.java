@@ -33,6 +33,11 @@ public class BmaxQuery {
    private float tieBreakerMultiplier = 0.0f;
    // tie breaker for pf boost queries
    private float phraseBoostTieBreaker = tieBreakerMultiplier;
+   // prefix and fuzzy expansions of the query terms
+   private boolean prefixEnabled = false;
+   private float prefixBoost = 0.1f;
+   private int fuzzyMaxEdits = 0;
+   private float fuzzyBoost = 0.1f;
    private boolean inspectTerms = false;
    private boolean buildTermsInspectionCache = false;
    private List<FieldParams> allPhraseFields;
@@ -77,6 +82,38 @@ public class BmaxQuery {
       this.subtopicBoost = subtopicBoost;
    }
 
+   public boolean isPrefixEnabled() {
+      return prefixEnabled;
+   }
+
+   public void setPrefixEnabled(boolean prefixEnabled) {
+      this.prefixEnabled = prefixEnabled;
+   }
+
+   public float getPrefixBoost() {
+      return prefixBoost;
+   }
+
+   public void setPrefixBoost(float prefixBoost) {
+      this.prefixBoost = prefixBoost;
+   }
+
+   public int getFuzzyMaxEdits() {
+      return fuzzyMaxEdits;
+   }
+
+   public void setFuzzyMaxEdits(int fuzzyMaxEdits) {
+      this.fuzzyMaxEdits = fuzzyMaxEdits;
+   }
+
+   public float getFuzzyBoost() {
+      return fuzzyBoost;
+   }
+
+   public void setFuzzyBoost(float fuzzyBoost) {
+      this.fuzzyBoost = fuzzyBoost;
+   }
+
    public List<BmaxTerm> getTerms() {
       return terms;
    }
@@ -1,14 +1,14 @@
 package com.s24.search.solr.query.bmax;
 
+import com.google.common.base.CharMatcher;
 import com.google.common.base.Joiner;
 import com.google.common.base.Predicate;
 import com.google.common.base.Predicates;
+import com.google.common.base.Splitter;
 import com.google.common.collect.Collections2;
 import com.google.common.collect.Iterables;
 import com.s24.search.solr.query.bmax.BmaxQuery.BmaxTerm;
 import com.s24.search.solr.util.BmaxDebugInfo;
-import eu.danieldk.dictomaton.DictionaryBuilder;
-import eu.danieldk.dictomaton.DictionaryBuilderException;
 import org.apache.lucene.analysis.Analyzer;
 import org.apache.lucene.index.TermsEnum;
 import org.apache.lucene.search.Query;
@@ -26,11 +26,14 @@ import org.apache.solr.util.SolrPluginUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.IOException;
+import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map.Entry;
+import java.util.function.Function;
 
 import static com.google.common.base.Preconditions.checkNotNull;
 
@@ -43,18 +46,27 @@ public class BmaxQueryParser extends ExtendedDismaxQParser {
    public static final String PARAM_SUBTOPIC_ENABLE = "bmax.subtopic";
    public static final String PARAM_SUBTOPIC_BOOST = "bmax.subtopic.boost";
    public static final String PARAM_SUBTOPIC_FIELDS = "bmax.subtopic.qf";
+   public static final String PARAM_PREFIX_ENABLE = "bmax.prefix";
+   public static final String PARAM_PREFIX_BOOST = "bmax.prefix.boost";
+   public static final String PARAM_FUZZY_MAX_EDITS = "bmax.fuzzy";
+   public static final String PARAM_FUZZY_BOOST = "bmax.fuzzy.boost";
    public static final String PARAM_TIE = DisMaxParams.TIE;
    public static final String PARAM_INSPECT_TERMS = "bmax.inspect";
    public static final String PARAM_BUILD_INSPECT_TERMS = "bmax.inspect.build";
+   public static final String PARAM_PERSIST_INSPECT_TERMS = "bmax.inspect.persist";
+   public static final String PARAM_OFF_HEAP_INSPECT_TERMS = "bmax.inspect.offheap";
+   public static final String PARAM_OFF_HEAP_INSPECT_TERMS_MIN_TERMS = "bmax.inspect.offheap.minTerms";
    public static final String PARAM_PHRASE_BOOST_TIE = "phrase.tie";
    public static final String PARAM_ENABLE_MATCH_NO_DOCS_QUERY_FOR_NO_TERMS = "bmax.no.docs";
 
    private static final String WILDCARD = "*:*";
+   static final String INSPECT_TERMS_DIRECTORY = "bmax";
 
    private final Analyzer synonymAnalyzer;
    private final Analyzer subtopicAnalyzer;
    private final Analyzer queryParsingAnalyzer;
    private final SolrCache<String, FieldTermsDictionary> fieldTermCache;
+   private final BmaxMetrics metrics;
    private final SolrParams params;
    private final boolean debugQuery;
 
@@ -68,17 +80,21 @@ public class BmaxQueryParser extends ExtendedDismaxQParser {
     * @param synonymAnalyzer
     *           the analyzer to parse synonyms out of the outcome of the <code>queryParsingAnalyzer</code>
     * @param subtopicAnalyzer
+    * @param metrics
+    *           the metrics to record the parsing of the query in.
     */
    public BmaxQueryParser(String qstr, SolrParams localParams, SolrParams params, SolrQueryRequest req,
          Analyzer queryParsingAnalyzer, Analyzer synonymAnalyzer, Analyzer subtopicAnalyzer,
-         SolrCache<String, FieldTermsDictionary> fieldTermCache) {
+         SolrCache<String, FieldTermsDictionary> fieldTermCache, BmaxMetrics metrics) {
       super(qstr, localParams, params, req);
       this.params = SolrParams.wrapDefaults(localParams, params);
       this.debugQuery = isDebugQuery();
 
       // mandatory
       checkNotNull(queryParsingAnalyzer, "Pre-condition violated: queryParsingAnalyzer must not be null.");
+      checkNotNull(metrics, "Pre-condition violated: metrics must not be null.");
       this.queryParsingAnalyzer = queryParsingAnalyzer;
+      this.metrics = metrics;
 
       // optional args
       this.synonymAnalyzer = synonymAnalyzer;
@@ -114,7 +130,9 @@ public class BmaxQueryParser extends ExtendedDismaxQParser {
    @Override
    public Query parse() throws SyntaxError {
       // parse query
+      long start = System.nanoTime();
       BmaxQuery query = analyzeQuery();
+      metrics.analyzed(System.nanoTime() - start);
 
       // analyze terms
       if (query.isBuildTermsInspectionCache() && fieldTermCache != null) {
@@ -122,15 +140,18 @@ public class BmaxQueryParser extends ExtendedDismaxQParser {
       }
 
       // build query
+      start = System.nanoTime();
       BmaxLuceneQueryBuilder queryBuilder = new BmaxLuceneQueryBuilder(query);
       Query result = queryBuilder
-            .withMultiplicativeBoost(getMultiplicativeBoosts())
+            .withMultiplicativeBoost(withPrebuilt(getMultiplicativeBoosts(), "boost",
+                  BmaxRequestContext::getMultiplicativeBoosts))
             .withBoostFunctions(getBoostFunctions())
-            .withBoostQueries(getBoostQueries())
+            .withBoostQueries(withPrebuilt(getBoostQueries(), DisMaxParams.BQ, BmaxRequestContext::getBoostQueries))
             .withSchema(getReq().getSchema())
             .withFieldTermCache(fieldTermCache)
             .withNoMatchDocsForNoTermsQuery(params.getBool(PARAM_ENABLE_MATCH_NO_DOCS_QUERY_FOR_NO_TERMS, false))
             .build();
+      metrics.built(queryBuilder, System.nanoTime() - start);
 
       // save debug stuff
       if (SolrRequestInfo.getRequestInfo() != null && debugQuery) {
@@ -149,34 +170,44 @@ public class BmaxQueryParser extends ExtendedDismaxQParser {
       return result;
    }
 
+   /**
+    * Adds the prebuilt boosts of the boost term component to the given boosts. Just like their query string
+    * counterparts, they are not applied if the local params override the given request param.
+    */
+   private <T> List<T> withPrebuilt(List<T> boosts, String param, Function<BmaxRequestContext, List<T>> prebuilt)
+         throws SyntaxError {
+      List<T> prebuiltBoosts = prebuilt.apply(BmaxRequestContext.get(req));
+      if (prebuiltBoosts.isEmpty() || (localParams != null && localParams.get(param) != null)) {
+         return boosts;
+      }
+
+      List<T> result = new ArrayList<>(boosts);
+      result.addAll(prebuiltBoosts);
+      return result;
+   }
+
    protected void buildFieldTermCache(BmaxQuery query) {
       checkNotNull(query, "Pre-condition violated: query must not be null.");
 
       long start = System.currentTimeMillis();
       try {
+         // persisted dictionaries live next to the index
+         FieldTermsDictionaryStore store = null;
+         if (params.getBool(PARAM_PERSIST_INSPECT_TERMS, false)) {
+            store = new FieldTermsDictionaryStore(Paths.get(getReq().getCore().getDataDir(), INSPECT_TERMS_DIRECTORY));
+         }
+
          // iterate query fields
          for (Entry<String, Float> field : query.getFieldsAndBoosts().entrySet()) {
 
             // fill on cache miss
             FieldTermsDictionary fieldTerms = fieldTermCache.get(field.getKey());
             if (fieldTerms == null) {
-               DictionaryBuilder builder = new DictionaryBuilder();
-               org.apache.lucene.index.Terms terms = getReq().getSearcher().getSlowAtomicReader().terms(field.getKey());
-               if (terms != null) {
-                  for (TermsEnum termsEnum = terms.iterator(); termsEnum.next() != null;) {
-                     String term = termsEnum.term().utf8ToString();
-                     try {
-                        builder.add(term);
-                     } catch (DictionaryBuilderException e) {
-                        // In rare cases there are entries like unicode signs that are not in lexicographical order.
-                        // Dictomaton will throw this exception, but we just want to ignore this entry.
-                        log.info("Term {} not added to the dictionary (may not in lexicographical order).", term,
-                              e.getMessage());
-                     }
-                  }
-               }
+               long loadStart = System.nanoTime();
+               fieldTerms = loadFieldTerms(field.getKey(), store);
+               metrics.fieldTermsLoaded(fieldTerms, System.nanoTime() - loadStart);
 
-               fieldTermCache.put(field.getKey(), new FieldTermsDictionary(builder.build()));
+               fieldTermCache.put(field.getKey(), fieldTerms);
             }
          }
 
@@ -190,6 +221,60 @@ public class BmaxQueryParser extends ExtendedDismaxQParser {
       }
    }
 
+   /**
+    * Maps the persisted dictionary of the given field if the store holds one for the current index version. Otherwise
+    * the dictionary is built from the index terms (and persisted if a store is given).
+    */
+   protected FieldTermsDictionary loadFieldTerms(String field, FieldTermsDictionaryStore store) throws IOException {
+      long indexVersion = getReq().getSearcher().getIndexReader().getVersion();
+
+      if (store != null) {
+         FieldTermsDictionary fieldTerms = store.load(field, indexVersion);
+         if (fieldTerms == null) {
+            fieldTerms = store.write(field, indexVersion, getReq().getSearcher().getSlowAtomicReader().terms(field));
+         }
+         return fieldTerms;
+      }
+
+      org.apache.lucene.index.Terms terms = getReq().getSearcher().getSlowAtomicReader().terms(field);
+
+      if (isOffHeapField(field, terms)) {
+         return OffHeapFieldTermsDictionary.build(terms, indexVersion);
+      }
+
+      return FieldTermsDictionary.build(terms);
+   }
+
+   /**
+    * Checks whether the dictionary of the given field should be held off-heap, either because the field is listed
+    * explicitly or because it has at least the configured number of terms.
+    */
+   private boolean isOffHeapField(String field, org.apache.lucene.index.Terms terms) throws IOException {
+      String[] offHeapFields = params.getParams(PARAM_OFF_HEAP_INSPECT_TERMS);
+      if (offHeapFields != null) {
+         for (String offHeapField : Splitter.on(CharMatcher.anyOf(", ")).omitEmptyStrings()
+               .split(Joiner.on(',').join(offHeapFields))) {
+            if ("*".equals(offHeapField) || field.equals(offHeapField)) {
+               return true;
+            }
+         }
+      }
+
+      long minTerms = params.getLong(PARAM_OFF_HEAP_INSPECT_TERMS_MIN_TERMS, -1);
+      if (minTerms >= 0 && terms != null) {
+         long termCount = terms.size();
+         if (termCount < 0) {
+            termCount = 0;
+            for (TermsEnum termsEnum = terms.iterator(); termsEnum.next() != null && termCount < minTerms;) {
+               termCount++;
+            }
+         }
+         return termCount >= minTerms;
+      }
+
+      return false;
+   }
+
    protected BmaxQuery analyzeQuery() {
       BmaxQuery query = new BmaxQuery();
 
@@ -198,6 +283,10 @@ public class BmaxQueryParser extends ExtendedDismaxQParser {
       query.setSynonymBoost(params.getFloat(PARAM_SYNONYM_BOOST, 0.1f));
       query.setSubtopicEnabled(params.getBool(PARAM_SUBTOPIC_ENABLE, true));
       query.setSubtopicBoost(params.getFloat(PARAM_SUBTOPIC_BOOST, 0.01f));
+      query.setPrefixEnabled(params.getBool(PARAM_PREFIX_ENABLE, false));
+      query.setPrefixBoost(params.getFloat(PARAM_PREFIX_BOOST, 0.1f));
+      query.setFuzzyMaxEdits(params.getInt(PARAM_FUZZY_MAX_EDITS, 0));
+      query.setFuzzyBoost(params.getFloat(PARAM_FUZZY_BOOST, 0.1f));
 
       final float tieBreaker = params.getFloat(PARAM_TIE, 0.00f);
       query.setTieBreakerMultiplier(tieBreaker);
@@ -254,9 +343,12 @@ public class BmaxQueryParser extends ExtendedDismaxQParser {
             }
          }
 
+         // analysis results are shared with the boost term component through the request context
+         final BmaxRequestContext context = BmaxRequestContext.get(req);
+
          // iterate terms
          if (!WILDCARD.equals(getString())) {
-            for (final CharSequence term : Terms.collect(getString(), queryParsingAnalyzer)) {
+            for (final CharSequence term : context.collect(getString(), queryParsingAnalyzer)) {
 
                // create bmax representation
                BmaxTerm bt = new BmaxTerm(term);
@@ -264,7 +356,7 @@ public class BmaxQueryParser extends ExtendedDismaxQParser {
                // add synonyms and extra synonyms
                if (query.isSynonymEnabled() && synonymAnalyzer != null) {
                   bt.getSynonyms().addAll(Collections2.filter(
-                        Terms.collect(term, synonymAnalyzer),
+                        context.collect(term, synonymAnalyzer),
                         Predicates.not(new Predicate<CharSequence>() {
                            @Override
                            public boolean apply(CharSequence t) {
@@ -275,12 +367,12 @@ public class BmaxQueryParser extends ExtendedDismaxQParser {
 
                // add subtopics.
                if (query.isSubtopicEnabled() && subtopicAnalyzer != null) {
-                  bt.getSubtopics().addAll(Terms.collect(term, subtopicAnalyzer));
+                  bt.getSubtopics().addAll(context.collect(term, subtopicAnalyzer));
 
                   // run synonyms through subtopics as well
                   if (!bt.getSynonyms().isEmpty() && synonymAnalyzer != null) {
                      for (CharSequence synonym : bt.getSynonyms()) {
-                        bt.getSubtopics().addAll(Terms.collect(synonym, subtopicAnalyzer));
+                        bt.getSubtopics().addAll(context.collect(synonym, subtopicAnalyzer));
                      }
                   }
                }
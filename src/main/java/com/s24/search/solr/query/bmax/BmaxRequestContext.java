@@ -0,0 +1,110 @@
+package com.s24.search.solr.query.bmax;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.queries.function.ValueSource;
+import org.apache.lucene.search.Query;
+import org.apache.solr.request.SolrQueryRequest;
+
+/**
+ * Request scoped state shared by the bmax search components and query parsers. The context lives in the
+ * {@linkplain SolrQueryRequest#getContext() request context}, so the analysis results of the boost term component
+ * are reused by the bmax query parser later on and every analyzer chain runs at most once per input and request.
+ */
+public class BmaxRequestContext {
+
+   private static final String CONTEXT_KEY = BmaxRequestContext.class.getName();
+
+   // analyzed terms by analyzer identity and input
+   private final Map<Analyzer, Map<String, Set<CharSequence>>> analyzedTerms = new IdentityHashMap<>();
+
+   // prebuilt boosts to be added by the query parser
+   private final List<Query> boostQueries = new ArrayList<>();
+   private final List<ValueSource> multiplicativeBoosts = new ArrayList<>();
+
+   // prebuilt rerank clauses, field terms and their weight
+   private final List<Map<Term, Float>> reRankClauses = new ArrayList<>();
+   private int reRankDocs = 0;
+
+   /**
+    * Returns the context of the given request, creates it on first access. Without a request (or request context)
+    * a fresh context is returned that is not shared.
+    */
+   public static BmaxRequestContext get(SolrQueryRequest req) {
+      if (req == null || req.getContext() == null) {
+         return new BmaxRequestContext();
+      }
+
+      return (BmaxRequestContext) req.getContext().computeIfAbsent(CONTEXT_KEY, k -> new BmaxRequestContext());
+   }
+
+   /**
+    * Analyzes the given input using the given {@link Analyzer} (-chain), see
+    * {@link Terms#collect(CharSequence, Analyzer)}. The terms are analyzed once per analyzer and input, callers get a
+    * copy they are free to modify.
+    */
+   public Set<CharSequence> collect(CharSequence input, Analyzer analyzer) {
+      checkNotNull(input, "Pre-condition violated: input must not be null.");
+      checkNotNull(analyzer, "Pre-condition violated: analyzer must not be null.");
+
+      return new HashSet<>(analyzedTerms.computeIfAbsent(analyzer, a -> new HashMap<>())
+            .computeIfAbsent(input.toString(), s -> Terms.collect(s, analyzer)));
+   }
+
+   /**
+    * Adds terms analyzed earlier (e.g. taken from a cache), so the given input will not be analyzed again by the
+    * given analyzer in this request.
+    */
+   public void add(CharSequence input, Analyzer analyzer, Set<CharSequence> terms) {
+      checkNotNull(input, "Pre-condition violated: input must not be null.");
+      checkNotNull(analyzer, "Pre-condition violated: analyzer must not be null.");
+      checkNotNull(terms, "Pre-condition violated: terms must not be null.");
+
+      analyzedTerms.computeIfAbsent(analyzer, a -> new HashMap<>()).put(input.toString(), terms);
+   }
+
+   /**
+    * Returns the prebuilt queries to be added to the main query as optional clauses (<code>bq</code>).
+    */
+   public List<Query> getBoostQueries() {
+      return boostQueries;
+   }
+
+   /**
+    * Returns the prebuilt functions the score of the main query is multiplied with (<code>boost</code>).
+    */
+   public List<ValueSource> getMultiplicativeBoosts() {
+      return multiplicativeBoosts;
+   }
+
+   /**
+    * Adds clauses to rerank the top documents with. Each clause maps field terms to their weight.
+    *
+    * @param reRankDocs
+    *           the number of top documents to rerank, the maximum of all added clauses is used.
+    */
+   public void addReRankClauses(List<Map<Term, Float>> clauses, int reRankDocs) {
+      checkNotNull(clauses, "Pre-condition violated: clauses must not be null.");
+
+      this.reRankClauses.addAll(clauses);
+      this.reRankDocs = Math.max(this.reRankDocs, reRankDocs);
+   }
+
+   public List<Map<Term, Float>> getReRankClauses() {
+      return reRankClauses;
+   }
+
+   public int getReRankDocs() {
+      return reRankDocs;
+   }
+}
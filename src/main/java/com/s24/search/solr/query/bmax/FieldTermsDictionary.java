@@ -1,67 +1,112 @@
 package com.s24.search.solr.query.bmax;
 
+import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkNotNull;
 
 import java.io.IOException;
-import java.io.ObjectOutputStream;
+import java.util.Collection;
+import java.util.Collections;
 
-import com.google.common.base.Objects;
-import com.google.common.io.ByteStreams;
-import com.google.common.io.CountingOutputStream;
-
-import eu.danieldk.dictomaton.Dictionary;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.util.Accountable;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.automaton.ByteRunAutomaton;
+import org.apache.lucene.util.automaton.LevenshteinAutomata;
 
 /**
- * Stores the set of terms that occur in a field in the documents.
+ * Stores the set of terms that occur in a field in the documents. Lookups are done on the UTF-8 term bytes, so neither
+ * building nor querying a dictionary materializes strings.
  */
-public class FieldTermsDictionary {
+public abstract class FieldTermsDictionary implements Accountable {
+
+   /**
+    * A term dictionary which does not know the terms of its field. It returns {@code true} for all calls to
+    * {@link #fieldMayContainTerm(BytesRef)}.
+    */
+   public static final FieldTermsDictionary UNKNOWN = new FieldTermsDictionary() {
+      @Override
+      public boolean fieldMayContainTerm(BytesRef term) {
+         return true;
+      }
+
+      @Override
+      public boolean fieldMayContainPrefix(BytesRef prefix) {
+         return true;
+      }
 
-   private final Dictionary terms;
-   private final long estimatedMemorySize;
+      @Override
+      public boolean fieldMayContainMatch(ByteRunAutomaton automaton) {
+         return true;
+      }
+
+      @Override
+      public long getTermCount() {
+         return 0;
+      }
+
+      @Override
+      public long ramBytesUsed() {
+         return 0;
+      }
+   };
 
    /**
-    * Creates a term dictionary which does not know the terms of its field. The returned dictionary will return
-    * {@code true} for all calls to {@link #fieldMayContainTerm(String)}.
+    * Builds an on-heap dictionary of the given index terms.
+    *
+    * @param indexTerms
+    *           the terms of a field, may be {@code null} if the field has no terms.
     */
-   public FieldTermsDictionary() {
-      this.terms = null;
-      this.estimatedMemorySize = 0;
+   public static FieldTermsDictionary build(Terms indexTerms) throws IOException {
+      return FstFieldTermsDictionary.build(indexTerms);
    }
 
    /**
-    * Creates a term dictionary with the given terms.
+    * Returns true if the field for which this entry contains the terms may contain the given term.
+    */
+   public abstract boolean fieldMayContainTerm(BytesRef term);
+
+   /**
+    * Returns true if the field may contain a term starting with the given prefix.
+    */
+   public abstract boolean fieldMayContainPrefix(BytesRef prefix);
+
+   /**
+    * Returns true if the field may contain a term within the given edit distance of the given term.
     *
-    * @param terms the terms.
+    * @param maxEdits
+    *           the maximum edit distance (including transpositions), at most
+    *           {@value LevenshteinAutomata#MAXIMUM_SUPPORTED_DISTANCE}.
     */
-   public FieldTermsDictionary(Dictionary terms) {
-      this.terms = checkNotNull(terms);
-
-      // A hack to estimate the memory size of the dictionary
-      long bytes = -1;
-      try (CountingOutputStream cos = new CountingOutputStream(ByteStreams.nullOutputStream());
-            ObjectOutputStream oos = new ObjectOutputStream(cos)) {
-         oos.writeObject(terms);
-         oos.flush();
-         bytes = cos.getCount();
-      } catch (IOException e) {
-         // ignore
-      }
-      this.estimatedMemorySize = bytes;
+   public boolean fieldMayContainFuzzy(BytesRef term, int maxEdits) {
+      checkNotNull(term, "Pre-condition violated: term must not be null.");
+      checkArgument(maxEdits >= 0 && maxEdits <= LevenshteinAutomata.MAXIMUM_SUPPORTED_DISTANCE,
+            "Pre-condition violated: expression maxEdits >= 0 && maxEdits <= 2 must be true.");
+
+      // the levenshtein automaton works on code points, it is converted to UTF-8 by the run automaton
+      return fieldMayContainMatch(new ByteRunAutomaton(
+            new LevenshteinAutomata(term.utf8ToString(), true).toAutomaton(maxEdits)));
    }
 
    /**
-    * Returns true if the field for which this entry contains the terms may contain the given term.
+    * Returns true if the field may contain a term accepted by the given (UTF-8 byte) automaton. The automaton is
+    * intersected with the terms, so only the prefixes of terms the automaton accepts are visited.
+    */
+   public abstract boolean fieldMayContainMatch(ByteRunAutomaton automaton);
+
+   /**
+    * Returns the number of terms in this dictionary.
+    */
+   public abstract long getTermCount();
+
+   /**
+    * Returns the number of bytes held outside of the Java heap. {@link #ramBytesUsed()} only reports the heap usage.
     */
-   public boolean fieldMayContainTerm(String term) {
-      // The term may be contained if we don't know the terms; otherwise, it is contained if it is contained ;)
-      return terms == null || terms.contains(term);
+   public long offHeapBytesUsed() {
+      return 0;
    }
 
    @Override
-   public String toString() {
-      return Objects.toStringHelper(this)
-            .add("termCount", terms == null ? 0 : terms.size())
-            .add("estimatedMemorySize", estimatedMemorySize)
-            .toString();
+   public Collection<Accountable> getChildResources() {
+      return Collections.emptyList();
    }
 }
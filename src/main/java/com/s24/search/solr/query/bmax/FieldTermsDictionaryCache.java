@@ -0,0 +1,50 @@
+package com.s24.search.solr.query.bmax;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import org.apache.solr.metrics.SolrMetricManager;
+import org.apache.solr.search.LRUCache;
+
+import com.codahale.metrics.Gauge;
+
+/**
+ * A {@linkplain LRUCache} for the term inspection cache that additionally reports the off-heap memory of its
+ * dictionaries as <code>CACHE.searcher.&lt;name&gt;.offHeapBytesUsed</code>. The heap memory is reported in the cache's
+ * <code>ramBytesUsed</code> as usual.
+ */
+public class FieldTermsDictionaryCache extends LRUCache<String, FieldTermsDictionary> {
+
+   // off-heap memory is released once a dictionary is garbage collected, so evicted entries are tracked until then
+   private final Map<FieldTermsDictionary, Boolean> dictionaries = Collections.synchronizedMap(new WeakHashMap<>());
+
+   @Override
+   public FieldTermsDictionary put(String key, FieldTermsDictionary value) {
+      if (value != null && value.offHeapBytesUsed() > 0) {
+         dictionaries.put(value, Boolean.TRUE);
+      }
+      return super.put(key, value);
+   }
+
+   /**
+    * Returns the off-heap bytes of all dictionaries that have been put into this cache and are still alive.
+    */
+   public long offHeapBytesUsed() {
+      long bytes = 0;
+      synchronized (dictionaries) {
+         for (FieldTermsDictionary dictionary : dictionaries.keySet()) {
+            bytes += dictionary.offHeapBytesUsed();
+         }
+      }
+      return bytes;
+   }
+
+   @Override
+   public void initializeMetrics(SolrMetricManager manager, String registryName, String tag, String scope) {
+      super.initializeMetrics(manager, registryName, tag, scope);
+
+      manager.registerGauge(this, registryName, (Gauge<Long>) this::offHeapBytesUsed, tag, true, "offHeapBytesUsed",
+            getCategory().toString(), scope);
+   }
+}
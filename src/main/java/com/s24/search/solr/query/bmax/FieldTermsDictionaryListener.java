@@ -0,0 +1,97 @@
+package com.s24.search.solr.query.bmax;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.Collection;
+
+import org.apache.solr.common.util.NamedList;
+import org.apache.solr.core.AbstractSolrEventListener;
+import org.apache.solr.core.SolrCore;
+import org.apache.solr.search.SolrCache;
+import org.apache.solr.search.SolrIndexSearcher;
+import org.apache.solr.util.SolrPluginUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Maps the term inspection dictionaries persisted by <code>bmax.inspect.persist</code> into the term inspection cache
+ * whenever a searcher is opened, so they are available right after the core is loaded instead of on the first
+ * <code>bmax.inspect.build</code> request. Register the listener for the <code>firstSearcher</code> and
+ * <code>newSearcher</code> events and supply the fields to map in the <code>qf</code> argument:
+ *
+ * <pre>
+ * &lt;listener event="firstSearcher" class="com.s24.search.solr.query.bmax.FieldTermsDictionaryListener"&gt;
+ *   &lt;str name="qf"&gt;title description brand&lt;/str&gt;
+ * &lt;/listener&gt;
+ * </pre>
+ *
+ * Only dictionaries persisted for the index version of the new searcher are mapped, fields without one are left to
+ * the next <code>bmax.inspect.build</code> request. The cache is <code>bmax.fieldTermCache</code> unless configured in
+ * the <code>cache</code> argument.
+ */
+public class FieldTermsDictionaryListener extends AbstractSolrEventListener {
+
+   private static final Logger log = LoggerFactory.getLogger(FieldTermsDictionaryListener.class);
+
+   private String cacheName;
+   private Collection<String> fields;
+   private FieldTermsDictionaryStore store;
+
+   public FieldTermsDictionaryListener(SolrCore core) {
+      super(core);
+   }
+
+   @Override
+   public void init(@SuppressWarnings("rawtypes") NamedList args) {
+      super.init(args);
+
+      cacheName = args.get("cache") != null ? (String) args.get("cache") : "bmax.fieldTermCache";
+      fields = SolrPluginUtils.parseFieldBoosts(
+            checkNotNull((String) args.get("qf"), "Pre-condition violated: qf must be configured.")).keySet();
+      store = new FieldTermsDictionaryStore(
+            Paths.get(getCore().getDataDir(), BmaxQueryParser.INSPECT_TERMS_DIRECTORY));
+   }
+
+   @Override
+   public void newSearcher(SolrIndexSearcher newSearcher, SolrIndexSearcher currentSearcher) {
+      @SuppressWarnings("unchecked")
+      SolrCache<String, FieldTermsDictionary> cache = newSearcher.getCache(cacheName);
+      if (cache == null) {
+         log.warn("Cache {} for term inspection is not configured.", cacheName);
+         return;
+      }
+
+      int mapped = map(cache, store, fields, newSearcher.getIndexReader().getVersion());
+      log.info("Mapped {} of {} persisted term inspection dictionaries.", mapped, fields.size());
+   }
+
+   /**
+    * Puts the persisted dictionaries of the given fields and index version into the given cache. Fields cached already
+    * are skipped.
+    *
+    * @return the number of dictionaries mapped.
+    */
+   static int map(SolrCache<String, FieldTermsDictionary> cache, FieldTermsDictionaryStore store,
+         Collection<String> fields, long indexVersion) {
+      int mapped = 0;
+      for (String field : fields) {
+         if (cache.get(field) != null) {
+            continue;
+         }
+
+         try {
+            FieldTermsDictionary fieldTerms = store.load(field, indexVersion);
+            if (fieldTerms != null) {
+               cache.put(field, fieldTerms);
+               mapped++;
+            }
+         } catch (IOException e) {
+            // the dictionary is built from the index on the next build request
+            log.warn("Could not map the persisted term inspection dictionary of " + field, e);
+         }
+      }
+      return mapped;
+   }
+}
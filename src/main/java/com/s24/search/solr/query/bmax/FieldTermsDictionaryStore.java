@@ -0,0 +1,120 @@
+package com.s24.search.solr.query.bmax;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+import org.apache.lucene.index.Terms;
+
+import com.google.common.base.CharMatcher;
+import com.google.common.hash.Hashing;
+
+/**
+ * Persists field term dictionaries to disk and memory maps them. Each field is stored in a single file that is tagged
+ * with the version of the index it was read from, so a dictionary is only reused as long as the index did not change.
+ * Files are named after the field, characters not safe in file names are replaced and a hash of the field name keeps
+ * the names of (dynamic) fields apart that differ in those characters only.
+ *
+ * @see OffHeapFieldTermsDictionary
+ */
+public class FieldTermsDictionaryStore {
+
+   private static final String SUFFIX = ".terms";
+   private static final String TEMP_PREFIX = "terms-";
+   private static final String TEMP_SUFFIX = ".tmp";
+   private static final CharMatcher SAFE_CHARS = CharMatcher.inRange('a', 'z')
+         .or(CharMatcher.inRange('A', 'Z'))
+         .or(CharMatcher.inRange('0', '9'))
+         .or(CharMatcher.anyOf("_-"));
+
+   private final Path directory;
+
+   /**
+    * Creates a store that keeps its files in the given directory. The directory is created on the first write.
+    */
+   public FieldTermsDictionaryStore(Path directory) {
+      this.directory = checkNotNull(directory, "Pre-condition violated: directory must not be null.");
+   }
+
+   /**
+    * Maps the persisted dictionary of the given field.
+    *
+    * @return the dictionary or {@code null} if no dictionary has been stored for the given field and index version.
+    */
+   public FieldTermsDictionary load(String field, long indexVersion) throws IOException {
+      checkNotNull(field, "Pre-condition violated: field must not be null.");
+
+      Path file = getFile(field);
+      if (!Files.isRegularFile(file)) {
+         return null;
+      }
+
+      try {
+         OffHeapFieldTermsDictionary dictionary = new OffHeapFieldTermsDictionary(map(file));
+         return dictionary.getIndexVersion() == indexVersion ? dictionary : null;
+      } catch (IllegalArgumentException e) {
+         // not a (supported) dictionary file, will be replaced on the next write
+         return null;
+      }
+   }
+
+   /**
+    * Writes the given terms into the file of the given field and maps it. A previously stored dictionary of the field
+    * is replaced.
+    *
+    * @param terms
+    *           the terms of a field, may be {@code null} if the field has no terms.
+    */
+   public FieldTermsDictionary write(String field, long indexVersion, Terms terms) throws IOException {
+      checkNotNull(field, "Pre-condition violated: field must not be null.");
+
+      Files.createDirectories(directory);
+      Path file = Files.createTempFile(directory, TEMP_PREFIX, TEMP_SUFFIX);
+
+      try {
+         // write into a mapping of the exact size and move into place
+         try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            MappedByteBuffer buffer = (MappedByteBuffer) OffHeapFieldTermsDictionary.write(terms, indexVersion,
+                  size -> map(channel, MapMode.READ_WRITE, size));
+            buffer.force();
+         }
+
+         Files.move(file, getFile(field), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+      } finally {
+         Files.deleteIfExists(file);
+      }
+
+      return new OffHeapFieldTermsDictionary(map(getFile(field)));
+   }
+
+   Path getFile(String field) {
+      String hash = Hashing.murmur3_32().hashString(field, StandardCharsets.UTF_8).toString();
+      return directory.resolve(SAFE_CHARS.negate().replaceFrom(field, '_') + "-" + hash + SUFFIX);
+   }
+
+   /**
+    * Maps the given file read-only. The mapping stays valid after the channel is closed.
+    */
+   private static MappedByteBuffer map(Path file) throws IOException {
+      try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+         return channel.map(MapMode.READ_ONLY, 0, channel.size());
+      }
+   }
+
+   private static MappedByteBuffer map(FileChannel channel, MapMode mode, int size) {
+      try {
+         return channel.map(mode, 0, size);
+      } catch (IOException e) {
+         throw new UncheckedIOException(e);
+      }
+   }
+}
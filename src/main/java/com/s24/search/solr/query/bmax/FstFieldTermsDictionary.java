@@ -0,0 +1,173 @@
+package com.s24.search.solr.query.bmax;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.io.IOException;
+
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.IntsRefBuilder;
+import org.apache.lucene.util.automaton.ByteRunAutomaton;
+import org.apache.lucene.util.fst.Builder;
+import org.apache.lucene.util.fst.FST;
+import org.apache.lucene.util.fst.NoOutputs;
+import org.apache.lucene.util.fst.Util;
+
+import com.google.common.base.Objects;
+
+/**
+ * A field term dictionary that keeps the UTF-8 bytes of the terms in an on-heap Lucene {@linkplain FST}.
+ */
+public class FstFieldTermsDictionary extends FieldTermsDictionary {
+
+   private static final NoOutputs OUTPUTS = NoOutputs.getSingleton();
+
+   private final FST<Object> terms;
+   private final long termCount;
+
+   /**
+    * Creates a term dictionary with the given terms.
+    *
+    * @param terms
+    *           the terms, {@code null} if the field does not contain any term.
+    * @param termCount
+    *           the number of terms in the dictionary.
+    */
+   public FstFieldTermsDictionary(FST<Object> terms, long termCount) {
+      this.terms = terms;
+      this.termCount = termCount;
+   }
+
+   /**
+    * Builds a dictionary of the given index terms. The terms enum delivers the terms in {@linkplain BytesRef} order,
+    * which is exactly the order the FST builder expects, so the terms are streamed into the FST.
+    *
+    * @param indexTerms
+    *           the terms of a field, may be {@code null} if the field has no terms.
+    */
+   public static FstFieldTermsDictionary build(Terms indexTerms) throws IOException {
+      Builder<Object> builder = new Builder<>(FST.INPUT_TYPE.BYTE1, OUTPUTS);
+
+      if (indexTerms != null) {
+         IntsRefBuilder scratch = new IntsRefBuilder();
+         TermsEnum termsEnum = indexTerms.iterator();
+         for (BytesRef term = termsEnum.next(); term != null; term = termsEnum.next()) {
+            builder.add(Util.toIntsRef(term, scratch), OUTPUTS.getNoOutput());
+         }
+      }
+
+      // finish() returns null for an empty dictionary
+      return new FstFieldTermsDictionary(builder.finish(), builder.getTermCount());
+   }
+
+   /**
+    * {@inheritDoc}
+    */
+   @Override
+   public boolean fieldMayContainTerm(BytesRef term) {
+      checkNotNull(term, "Pre-condition violated: term must not be null.");
+
+      if (terms == null) {
+         return false;
+      }
+
+      try {
+         return Util.get(terms, term) != null;
+      } catch (IOException e) {
+         // the FST is held in memory
+         throw new RuntimeException(e);
+      }
+   }
+
+   /**
+    * {@inheritDoc}
+    */
+   @Override
+   public boolean fieldMayContainPrefix(BytesRef prefix) {
+      checkNotNull(prefix, "Pre-condition violated: prefix must not be null.");
+
+      if (terms == null) {
+         return false;
+      }
+
+      try {
+         // follow the prefix bytes, any path left in the FST leads to a term
+         FST.BytesReader in = terms.getBytesReader();
+         FST.Arc<Object> arc = terms.getFirstArc(new FST.Arc<>());
+         for (int i = 0; i < prefix.length; i++) {
+            if (terms.findTargetArc(prefix.bytes[prefix.offset + i] & 0xff, arc, arc, in) == null) {
+               return false;
+            }
+         }
+         return true;
+      } catch (IOException e) {
+         // the FST is held in memory
+         throw new RuntimeException(e);
+      }
+   }
+
+   /**
+    * {@inheritDoc}
+    */
+   @Override
+   public boolean fieldMayContainMatch(ByteRunAutomaton automaton) {
+      checkNotNull(automaton, "Pre-condition violated: automaton must not be null.");
+
+      if (terms == null) {
+         return false;
+      }
+
+      try {
+         return intersects(terms.getFirstArc(new FST.Arc<>()), 0, automaton, terms.getBytesReader());
+      } catch (IOException e) {
+         // the FST is held in memory
+         throw new RuntimeException(e);
+      }
+   }
+
+   /**
+    * Depth first walk of the FST, following only the arcs the automaton has a transition for.
+    */
+   private boolean intersects(FST.Arc<Object> follow, int state, ByteRunAutomaton automaton, FST.BytesReader in)
+         throws IOException {
+      if (follow.isFinal() && automaton.isAccept(state)) {
+         return true;
+      }
+      if (!FST.targetHasArcs(follow)) {
+         return false;
+      }
+
+      FST.Arc<Object> arc = terms.readFirstTargetArc(follow, new FST.Arc<>(), in);
+      while (true) {
+         if (arc.label != FST.END_LABEL) {
+            int next = automaton.step(state, arc.label);
+            if (next != -1 && intersects(arc, next, automaton, in)) {
+               return true;
+            }
+         }
+         if (arc.isLast()) {
+            return false;
+         }
+         terms.readNextArc(arc, in);
+      }
+   }
+
+   @Override
+   public long getTermCount() {
+      return termCount;
+   }
+
+   @Override
+   public long ramBytesUsed() {
+      return terms == null ? 0 : terms.ramBytesUsed();
+   }
+
+   @Override
+   public String toString() {
+      return Objects.toStringHelper(this)
+            .add("termCount", termCount)
+            .add("estimatedMemorySize", ramBytesUsed())
+            .toString();
+   }
+}
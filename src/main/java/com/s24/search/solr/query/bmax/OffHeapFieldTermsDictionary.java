@@ -0,0 +1,295 @@
+package com.s24.search.solr.query.bmax;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.function.IntFunction;
+
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.automaton.ByteRunAutomaton;
+
+import com.google.common.base.Objects;
+
+/**
+ * A field term dictionary that keeps the UTF-8 bytes of the sorted terms in a {@linkplain ByteBuffer}, either a direct
+ * buffer or a memory mapped file. Terms are looked up by binary search, so the dictionary's heap footprint does not
+ * depend on the number of terms.
+ * <p>
+ * The buffer layout (big endian) is:
+ *
+ * <pre>
+ * int    magic
+ * int    version
+ * long   index version the terms were read from
+ * int    term count (n)
+ * int    n + 1 term start offsets, relative to the data section
+ * byte[] term data
+ * </pre>
+ */
+public class OffHeapFieldTermsDictionary extends FieldTermsDictionary {
+
+   static final int MAGIC = 0x424d5854;
+   static final int VERSION = 1;
+   static final int HEADER_SIZE = 4 + 4 + 8 + 4;
+
+   private final ByteBuffer buffer;
+   private final long indexVersion;
+   private final int termCount;
+   private final int dataStart;
+
+   /**
+    * Creates a dictionary on top of the given buffer.
+    *
+    * @param buffer
+    *           the buffer holding the sorted terms in the layout described above.
+    */
+   public OffHeapFieldTermsDictionary(ByteBuffer buffer) {
+      this.buffer = checkNotNull(buffer, "Pre-condition violated: buffer must not be null.");
+      checkArgument(buffer.capacity() >= HEADER_SIZE + 4, "Pre-condition violated: buffer too small.");
+      checkArgument(buffer.getInt(0) == MAGIC, "Pre-condition violated: buffer does not hold field terms.");
+      checkArgument(buffer.getInt(4) == VERSION, "Pre-condition violated: unsupported field terms version.");
+
+      this.indexVersion = buffer.getLong(8);
+      this.termCount = buffer.getInt(16);
+      this.dataStart = HEADER_SIZE + (termCount + 1) * 4;
+   }
+
+   /**
+    * Builds a dictionary of the given index terms in a direct buffer.
+    *
+    * @param indexTerms
+    *           the terms of a field, may be {@code null} if the field has no terms.
+    */
+   public static OffHeapFieldTermsDictionary build(Terms indexTerms, long indexVersion) throws IOException {
+      return new OffHeapFieldTermsDictionary(write(indexTerms, indexVersion, ByteBuffer::allocateDirect));
+   }
+
+   /**
+    * Writes the given index terms into a buffer of the exact size needed. The terms are iterated twice, first to size
+    * the buffer and then to fill it.
+    *
+    * @param indexTerms
+    *           the terms of a field, may be {@code null} if the field has no terms.
+    * @param allocator
+    *           allocates a buffer of the given size.
+    */
+   static ByteBuffer write(Terms indexTerms, long indexVersion, IntFunction<ByteBuffer> allocator)
+         throws IOException {
+      int termCount = 0;
+      long dataLength = 0;
+      if (indexTerms != null) {
+         TermsEnum termsEnum = indexTerms.iterator();
+         for (BytesRef term = termsEnum.next(); term != null; term = termsEnum.next()) {
+            termCount++;
+            dataLength += term.length;
+         }
+      }
+
+      long size = HEADER_SIZE + (termCount + 1) * 4L + dataLength;
+      if (size > Integer.MAX_VALUE) {
+         throw new IOException("Terms exceed the maximum buffer size: " + size);
+      }
+
+      ByteBuffer buffer = allocator.apply((int) size);
+      buffer.putInt(0, MAGIC);
+      buffer.putInt(4, VERSION);
+      buffer.putLong(8, indexVersion);
+      buffer.putInt(16, termCount);
+
+      ByteBuffer data = buffer.duplicate();
+      data.position(HEADER_SIZE + (termCount + 1) * 4);
+      int ord = 0;
+      int offset = 0;
+      if (indexTerms != null) {
+         TermsEnum termsEnum = indexTerms.iterator();
+         for (BytesRef term = termsEnum.next(); term != null; term = termsEnum.next()) {
+            buffer.putInt(HEADER_SIZE + ord++ * 4, offset);
+            data.put(term.bytes, term.offset, term.length);
+            offset += term.length;
+         }
+      }
+      buffer.putInt(HEADER_SIZE + ord * 4, offset);
+
+      return buffer;
+   }
+
+   /**
+    * Returns the version of the index the terms have been read from.
+    */
+   public long getIndexVersion() {
+      return indexVersion;
+   }
+
+   /**
+    * {@inheritDoc}
+    */
+   @Override
+   public boolean fieldMayContainTerm(BytesRef term) {
+      checkNotNull(term, "Pre-condition violated: term must not be null.");
+
+      int ord = lowerBound(term);
+      return ord < termCount && compare(ord, term) == 0;
+   }
+
+   /**
+    * {@inheritDoc}
+    */
+   @Override
+   public boolean fieldMayContainPrefix(BytesRef prefix) {
+      checkNotNull(prefix, "Pre-condition violated: prefix must not be null.");
+
+      // the first term not smaller than the prefix starts with it, if any does
+      int ord = lowerBound(prefix);
+      if (ord >= termCount || length(ord) < prefix.length) {
+         return false;
+      }
+
+      int start = start(ord);
+      for (int i = 0; i < prefix.length; i++) {
+         if (buffer.get(start + i) != prefix.bytes[prefix.offset + i]) {
+            return false;
+         }
+      }
+      return true;
+   }
+
+   /**
+    * {@inheritDoc}
+    */
+   @Override
+   public boolean fieldMayContainMatch(ByteRunAutomaton automaton) {
+      checkNotNull(automaton, "Pre-condition violated: automaton must not be null.");
+
+      return intersects(automaton, 0, 0, 0, termCount);
+   }
+
+   /**
+    * Depth first walk of the sorted terms. All terms in <code>[from, to)</code> share a prefix of the given length
+    * that leads the automaton into the given state. The range is split by the byte following that prefix, so each
+    * distinct prefix is visited at most once.
+    */
+   private boolean intersects(ByteRunAutomaton automaton, int state, int depth, int from, int to) {
+      int ord = from;
+
+      // a term equal to the shared prefix sorts first
+      if (ord < to && length(ord) == depth) {
+         if (automaton.isAccept(state)) {
+            return true;
+         }
+         ord++;
+      }
+
+      while (ord < to) {
+         int label = byteAt(ord, depth);
+         int end = upperBound(label, depth, ord, to);
+
+         int next = automaton.step(state, label);
+         if (next != -1 && intersects(automaton, next, depth + 1, ord, end)) {
+            return true;
+         }
+         ord = end;
+      }
+
+      return false;
+   }
+
+   /**
+    * Returns the ordinal of the first term not smaller than the given term.
+    */
+   private int lowerBound(BytesRef term) {
+      int low = 0;
+      int high = termCount;
+
+      while (low < high) {
+         int mid = (low + high) >>> 1;
+         if (compare(mid, term) < 0) {
+            low = mid + 1;
+         } else {
+            high = mid;
+         }
+      }
+
+      return low;
+   }
+
+   /**
+    * Returns the ordinal of the first term in <code>[from, to)</code> whose byte at the given position is greater
+    * than the given label. All terms in the range are longer than the position.
+    */
+   private int upperBound(int label, int position, int from, int to) {
+      int low = from;
+      int high = to;
+
+      while (low < high) {
+         int mid = (low + high) >>> 1;
+         if (byteAt(mid, position) <= label) {
+            low = mid + 1;
+         } else {
+            high = mid;
+         }
+      }
+
+      return low;
+   }
+
+   private int start(int ord) {
+      return dataStart + buffer.getInt(HEADER_SIZE + ord * 4);
+   }
+
+   private int length(int ord) {
+      return buffer.getInt(HEADER_SIZE + (ord + 1) * 4) - buffer.getInt(HEADER_SIZE + ord * 4);
+   }
+
+   private int byteAt(int ord, int position) {
+      return buffer.get(start(ord) + position) & 0xff;
+   }
+
+   /**
+    * Compares the term with the given ordinal to the given term in unsigned byte order, the order of the index terms.
+    */
+   private int compare(int ord, BytesRef term) {
+      int start = start(ord);
+      int length = length(ord);
+      int limit = Math.min(length, term.length);
+
+      for (int i = 0; i < limit; i++) {
+         int diff = (buffer.get(start + i) & 0xff) - (term.bytes[term.offset + i] & 0xff);
+         if (diff != 0) {
+            return diff;
+         }
+      }
+
+      return length - term.length;
+   }
+
+   @Override
+   public long getTermCount() {
+      return termCount;
+   }
+
+   /**
+    * The terms are held off-heap, only the object itself is on heap.
+    */
+   @Override
+   public long ramBytesUsed() {
+      return 0;
+   }
+
+   @Override
+   public long offHeapBytesUsed() {
+      return buffer.capacity();
+   }
+
+   @Override
+   public String toString() {
+      return Objects.toStringHelper(this)
+            .add("termCount", termCount)
+            .add("indexVersion", indexVersion)
+            .add("offHeapSize", buffer.capacity())
+            .toString();
+   }
+}
@@ -110,7 +110,7 @@ public class TermInspectingDismaxQParser extends QParser {
          // Add a term query to the result unless we have a field terms dictionary and we know, based on that
          // dictionary, that the term does not occur in the field
          for (Term term : terms) {
-            if (fieldTerms.fieldMayContainTerm(term.text())) {
+            if (fieldTerms.fieldMayContainTerm(term.bytes())) {
                filteredTerms.add(term.bytes());
             }
          }
@@ -95,6 +95,37 @@ public class Terms {
       return result;
    }
 
+   /**
+    * Collects the bytes of the terms from the given analyzer. Other than {@link #collectTerms(CharSequence, Analyzer,
+    * String)} the result is not bound to a field and can be shared among fields with the same analyzer.
+    */
+   public static Set<BytesRef> collectBytes(CharSequence input, Analyzer analyzer, String field) {
+      checkNotNull(input, "Pre-condition violated: input must not be null.");
+      checkNotNull(analyzer, "Pre-condition violated: analyzer must not be null.");
+      checkNotNull(field, "Pre-condition violated: field must not be null.");
+
+      Set<BytesRef> result = new HashSet<>();
+      TokenStream tokenStream = null;
+      try {
+         tokenStream = analyzer.tokenStream(field, new CharSequenceReader(input));
+         tokenStream.reset();
+         TermToBytesRefAttribute termAttribute = tokenStream.addAttribute(TermToBytesRefAttribute.class);
+
+         while (tokenStream.incrementToken()) {
+            // deep copy, the attribute's bytes are reused for the next token
+            result.add(BytesRef.deepCopyOf(termAttribute.getBytesRef()));
+         }
+      } catch (IOException e) {
+         throw new RuntimeException(e);
+      } finally {
+         TokenStreams.endQuietly(tokenStream);
+         TokenStreams.resetQuietly(tokenStream);
+         TokenStreams.closeQuietly(tokenStream);
+      }
+
+      return result;
+   }
+
    /**
     * Collects terms from the given analyzer relying on {@linkplain BytesRef}s and not strings.
     */
@@ -0,0 +1,95 @@
+package com.s24.search.solr.util;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.util.Collection;
+import java.util.Collections;
+
+import org.apache.lucene.util.Accountable;
+
+import com.google.common.base.Objects;
+
+/**
+ * Validates every read and write before delegating to the wrapped cache. The caches themselves leave the per document
+ * checks to the array access, as the documents read and written while scoring are bound by the segment's
+ * <code>maxDoc</code> already. Use this wrapper in tests and when debugging a function that reads outside its
+ * segment.
+ */
+public class CheckedFloatValueCache implements FloatValueCache {
+
+   private final FloatValueCache delegate;
+   private final int maxDoc;
+
+   /**
+    * @param delegate
+    *           the cache to validate the access to.
+    * @param maxDoc
+    *           the number of documents the cache is read and written for.
+    */
+   public CheckedFloatValueCache(FloatValueCache delegate, int maxDoc) {
+      checkNotNull(delegate, "Pre-condition violated: delegate must not be null.");
+      checkArgument(maxDoc >= 0, "Pre-condition violated: expression maxDoc >= 0 must be true.");
+
+      this.delegate = delegate;
+      this.maxDoc = maxDoc;
+   }
+
+   @Override
+   public int size() {
+      return delegate.size();
+   }
+
+   @Override
+   public float getFloat(int doc) {
+      checkArgument(doc >= 0 && doc < maxDoc,
+            "Pre-condition violated: expression doc >= 0 && doc < maxDoc must be true.");
+
+      return delegate.getFloat(doc);
+   }
+
+   @Override
+   public void getFloats(int startDoc, float[] dest, int offset, int len) {
+      checkNotNull(dest, "Pre-condition violated: dest must not be null.");
+      checkArgument(startDoc >= 0 && len >= 0 && startDoc + len <= maxDoc,
+            "Pre-condition violated: expression startDoc >= 0 && len >= 0 && startDoc + len <= maxDoc must be true.");
+      checkArgument(offset >= 0 && offset + len <= dest.length,
+            "Pre-condition violated: expression offset >= 0 && offset + len <= dest.length must be true.");
+
+      delegate.getFloats(startDoc, dest, offset, len);
+   }
+
+   @Override
+   public void setFloat(int doc, float value) {
+      checkArgument(doc >= 0 && doc < maxDoc,
+            "Pre-condition violated: expression doc >= 0 && doc < maxDoc must be true.");
+
+      delegate.setFloat(doc, value);
+   }
+
+   @Override
+   public boolean hasValue(int index) {
+      checkArgument(index >= 0 && index < maxDoc,
+            "Pre-condition violated: expression index >= 0 && index < maxDoc must be true.");
+
+      return delegate.hasValue(index);
+   }
+
+   @Override
+   public long ramBytesUsed() {
+      return delegate.ramBytesUsed();
+   }
+
+   @Override
+   public Collection<Accountable> getChildResources() {
+      return Collections.singletonList(delegate);
+   }
+
+   @Override
+   public String toString() {
+      return Objects.toStringHelper(this)
+            .add("maxDoc", maxDoc)
+            .add("delegate", delegate)
+            .toString();
+   }
+}
@@ -1,7 +1,5 @@
 package com.s24.search.solr.util;
 
-import static com.google.common.base.Preconditions.checkArgument;
-
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
@@ -10,7 +8,8 @@ import org.apache.lucene.util.Accountable;
 import org.apache.lucene.util.RamUsageEstimator;
 
 /**
- * Very simple, float array based implementation.
+ * Very simple, float array based implementation. Reads and writes are not validated beyond the bounds check of the
+ * array access, see {@link CheckedFloatValueCache}.
  * 
  * @author Shopping24 GmbH, Torsten Bøgh Köster (@tboeghk)
  */
@@ -38,9 +37,6 @@ public class FloatArrayValueCache implements FloatValueCache {
     */
    @Override
    public float getFloat(int index) {
-      checkArgument(index >= 0 && index < cache.length,
-            "Pre-condition violated: expression index >=0 && index < cache.length  must be true.");
-
       return cache[index];
    }
 
@@ -48,10 +44,15 @@ public class FloatArrayValueCache implements FloatValueCache {
     * {@inheritDoc}
     */
    @Override
-   public void setFloat(int index, float value) {
-      checkArgument(index >= 0 && index < cache.length,
-            "Pre-condition violated: expression index >=0 && index < cache.length  must be true.");
+   public void getFloats(int startDoc, float[] dest, int offset, int len) {
+      System.arraycopy(cache, startDoc, dest, offset, len);
+   }
 
+   /**
+    * {@inheritDoc}
+    */
+   @Override
+   public void setFloat(int index, float value) {
       cache[index] = value;
    }
 
@@ -60,9 +61,6 @@ public class FloatArrayValueCache implements FloatValueCache {
     */
    @Override
    public boolean hasValue(int index) {
-      checkArgument(index >= 0 && index < cache.length,
-            "Pre-condition violated: expression index >=0 && index < cache.length  must be true.");
-
       return !Float.isNaN(cache[index]);
    }
 
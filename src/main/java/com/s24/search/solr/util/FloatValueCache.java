@@ -3,7 +3,8 @@ package com.s24.search.solr.util;
 import org.apache.lucene.util.Accountable;
 
 /**
- * A interface for a per-doc float value cache.
+ * A interface for a per-doc float value cache. Implementations do not validate the documents read and written, see
+ * {@link CheckedFloatValueCache}.
  * 
  * @author Shopping24 GmbH, Torsten Bøgh Köster (@tboeghk)
  */
@@ -13,6 +14,18 @@ public interface FloatValueCache extends Accountable {
    
    float getFloat(int doc);
 
+   /**
+    * Reads the values of <code>len</code> consecutive documents starting with <code>startDoc</code> into
+    * <code>dest</code> starting at <code>offset</code>, {@link Float#NaN} for documents without a value. Decodes
+    * block-wise, so consumers reading in document order should prefer it over {@link #getFloat(int)}.
+    */
+   void getFloats(int startDoc, float[] dest, int offset, int len);
+
+   /**
+    * Sets the value of the given document. Functions may compute non finite values, e.g. <code>log(0)</code>, so the
+    * caches accept any value: {@link Float#NaN} is treated as a missing value and not stored, infinite values are
+    * clamped to the largest magnitude a cache holds.
+    */
    void setFloat(int doc, float value);
 
    boolean hasValue(int index);
@@ -0,0 +1,139 @@
+package com.s24.search.solr.util;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+
+import org.apache.lucene.util.Accountable;
+import org.apache.lucene.util.RamUsageEstimator;
+
+/**
+ * Dense cache holding IEEE 754 half-precision floats in a <code>short</code> array, half the memory of
+ * {@link FloatArrayValueCache}. Values keep 11 significant bits, a relative error of at most <code>2^-11</code>, for
+ * magnitudes between <code>2^-14</code> and the largest half-float <code>65504</code>. Smaller magnitudes lose
+ * precision gradually, larger ones are clamped to <code>65504</code>. {@link Float#NaN} marks documents without a
+ * value.
+ */
+public class HalfFloatArrayValueCache implements FloatValueCache {
+
+   static final float MAX_VALUE = 65504f;
+
+   private static final short NAN = 0x7e00;
+
+   private final short[] cache;
+
+   public HalfFloatArrayValueCache(int maxDocs) {
+      this.cache = new short[maxDocs];
+
+      // reset internal
+      Arrays.fill(cache, NAN);
+   }
+
+   /**
+    * {@inheritDoc}
+    */
+   @Override
+   public long ramBytesUsed() {
+      return RamUsageEstimator.sizeOf(cache);
+   }
+
+   /**
+    * {@inheritDoc}
+    */
+   @Override
+   public float getFloat(int index) {
+      return toFloat(cache[index]);
+   }
+
+   /**
+    * {@inheritDoc}
+    */
+   @Override
+   public void getFloats(int startDoc, float[] dest, int offset, int len) {
+      for (int i = 0; i < len; i++) {
+         dest[offset + i] = toFloat(cache[startDoc + i]);
+      }
+   }
+
+   /**
+    * {@inheritDoc}
+    */
+   @Override
+   public void setFloat(int index, float value) {
+      cache[index] = toHalf(Float.isNaN(value) ? value : Math.max(-MAX_VALUE, Math.min(MAX_VALUE, value)));
+   }
+
+   /**
+    * {@inheritDoc}
+    */
+   @Override
+   public boolean hasValue(int index) {
+      // NaN is the only pattern with all exponent bits and a mantissa bit set
+      return (cache[index] & 0x7fff) <= 0x7c00;
+   }
+
+   @Override
+   public int size() {
+      return cache.length;
+   }
+
+   @Override
+   public Collection<Accountable> getChildResources() {
+      return Collections.emptyList();
+   }
+
+   /**
+    * Converts the given float to the bits of the nearest half-float, ties to even.
+    */
+   static short toHalf(float value) {
+      int bits = Float.floatToIntBits(value);
+      int sign = (bits >>> 16) & 0x8000;
+      int exponent = ((bits >>> 23) & 0xff) - 127 + 15;
+      int mantissa = bits & 0x7fffff;
+
+      if (exponent == 0xff - 127 + 15) {
+         // infinity or NaN
+         return (short) (sign | 0x7c00 | (mantissa != 0 ? 0x200 : 0));
+      } else if (exponent >= 0x1f) {
+         // overflow
+         return (short) (sign | 0x7c00);
+      } else if (exponent <= 0) {
+         // subnormal half-float or zero
+         if (exponent < -10) {
+            return (short) sign;
+         }
+         return (short) (sign | round(mantissa | 0x800000, 14 - exponent));
+      }
+
+      // a carry into the exponent is the correctly rounded result
+      return (short) (sign | round((exponent << 23) | mantissa, 13));
+   }
+
+   private static int round(int value, int shift) {
+      int rounded = value >>> shift;
+      int rest = value & ((1 << shift) - 1);
+      int halfway = 1 << (shift - 1);
+
+      return rest > halfway || (rest == halfway && (rounded & 1) != 0) ? rounded + 1 : rounded;
+   }
+
+   /**
+    * Converts the bits of a half-float to the float of the same value.
+    */
+   static float toFloat(short half) {
+      int sign = (half & 0x8000) << 16;
+      int exponent = (half >>> 10) & 0x1f;
+      int mantissa = half & 0x3ff;
+
+      if (exponent == 0x1f) {
+         // infinity or NaN
+         return Float.intBitsToFloat(sign | 0x7f800000 | (mantissa << 13));
+      } else if (exponent == 0) {
+         // subnormal half-float or zero
+         float value = mantissa * 0x1p-24f;
+         return sign != 0 ? -value : value;
+      }
+
+      return Float.intBitsToFloat(sign | ((exponent + 127 - 15) << 23) | (mantissa << 13));
+   }
+}
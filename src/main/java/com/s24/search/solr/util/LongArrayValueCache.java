@@ -1,7 +1,5 @@
 package com.s24.search.solr.util;
 
-import static com.google.common.base.Preconditions.checkArgument;
-
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
@@ -46,9 +44,6 @@ public class LongArrayValueCache implements LongValueCache {
     */
    @Override
    public long get(int doc) {
-      checkArgument(doc >= 0 && doc < cache.length,
-            "Pre-condition violated: expression index >=0 && index < cache.length  must be true.");
-      
       return cache[doc];
    }
 
@@ -56,10 +51,15 @@ public class LongArrayValueCache implements LongValueCache {
     * {@inheritDoc}
     */
    @Override
-   public void set(int doc, long value) {
-      checkArgument(doc >= 0 && doc < cache.length,
-            "Pre-condition violated: expression index >=0 && index < cache.length  must be true.");
+   public void getLongs(int startDoc, long[] dest, int offset, int len) {
+      System.arraycopy(cache, startDoc, dest, offset, len);
+   }
 
+   /**
+    * {@inheritDoc}
+    */
+   @Override
+   public void set(int doc, long value) {
       cache[doc] = value;
    }
 
@@ -68,9 +68,6 @@ public class LongArrayValueCache implements LongValueCache {
     */
    @Override
    public boolean hasValue(int index) {
-      checkArgument(index >= 0 && index < cache.length,
-            "Pre-condition violated: expression index >=0 && index < cache.length  must be true.");
-      
       return cache[index] < Long.MAX_VALUE;
    }
 
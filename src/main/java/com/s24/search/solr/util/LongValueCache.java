@@ -8,6 +8,12 @@ public interface LongValueCache extends Accountable {
 
    long get(int doc);
 
+   /**
+    * Reads the values of <code>len</code> consecutive documents starting with <code>startDoc</code> into
+    * <code>dest</code> starting at <code>offset</code>, the same values {@link #get(int)} returns for each document.
+    */
+   void getLongs(int startDoc, long[] dest, int offset, int len);
+
    void set(int doc, long value);
 
    boolean hasValue(int index);
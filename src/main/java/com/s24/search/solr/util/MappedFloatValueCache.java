@@ -0,0 +1,255 @@
+package com.s24.search.solr.util;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.function.Consumer;
+
+import org.apache.lucene.util.Accountable;
+import org.apache.lucene.util.RamUsageEstimator;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Objects;
+
+/**
+ * Float values kept in a memory mapped file instead of the Java heap. The file survives restarts, so values computed
+ * once are reattached by {@link #open(Path, int)} instead of being computed again, and processes mapping the same file
+ * share the pages of the operating system's cache. {@link Float#NaN} marks documents without a value, like the other
+ * caches.
+ * <p>
+ * Values are written in place without locking, a reader sees either the old or the new value of a document. The file
+ * is unmapped by {@link #close()} like Lucene's <code>MMapDirectory</code> unmaps its files, instead of waiting for the
+ * garbage collector; the values must not be read afterwards.
+ */
+public class MappedFloatValueCache implements FloatValueCache, Closeable {
+
+   static final int MAGIC = 0x626d6178;
+   static final int VERSION = 1;
+   static final int HEADER_BYTES = 16;
+
+   private static final Logger log = LoggerFactory.getLogger(MappedFloatValueCache.class);
+
+   // null if unmapping is not supported, buffers are unmapped by the garbage collector then
+   private static final Consumer<ByteBuffer> UNMAPPER = unmapper();
+
+   private final Path file;
+   private final MappedByteBuffer buffer;
+   private final FloatBuffer values;
+
+   private MappedFloatValueCache(Path file, MappedByteBuffer buffer) {
+      this.file = file;
+      this.buffer = buffer;
+
+      // the values follow the header
+      ((Buffer) buffer).position(HEADER_BYTES);
+      this.values = buffer.slice().order(ByteOrder.LITTLE_ENDIAN).asFloatBuffer();
+   }
+
+   /**
+    * Maps the values of the given file, the file is created (with no values) if it does not exist or was not written
+    * for the given number of documents.
+    */
+   public static MappedFloatValueCache open(Path file, int maxDoc) throws IOException {
+      checkNotNull(file, "Pre-condition violated: file must not be null.");
+      checkArgument(maxDoc > 0, "Pre-condition violated: expression maxDoc > 0 must be true.");
+
+      MappedByteBuffer buffer = map(file, maxDoc);
+      if (buffer == null) {
+         // not there yet (or written for another segment): create it aside, so no process maps a half written file
+         Files.createDirectories(file.toAbsolutePath().getParent());
+         Path created = Files.createTempFile(file.toAbsolutePath().getParent(), file.getFileName().toString(), ".tmp");
+         try {
+            create(created, maxDoc);
+            // replaces a file written for another number of documents
+            Files.move(created, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+         } finally {
+            Files.deleteIfExists(created);
+         }
+
+         buffer = map(file, maxDoc);
+         if (buffer == null) {
+            throw new IOException("Could not map values of " + file);
+         }
+      }
+
+      return new MappedFloatValueCache(file, buffer);
+   }
+
+   /**
+    * Maps the given file, returns <code>null</code> if it does not exist or does not match.
+    */
+   private static MappedByteBuffer map(Path file, int maxDoc) throws IOException {
+      if (!Files.isRegularFile(file) || Files.size(file) != HEADER_BYTES + (long) Float.BYTES * maxDoc) {
+         return null;
+      }
+
+      try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+         MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, channel.size());
+         buffer.order(ByteOrder.LITTLE_ENDIAN);
+
+         return buffer.getInt(0) == MAGIC && buffer.getInt(4) == VERSION && buffer.getInt(8) == maxDoc ? buffer : null;
+      }
+   }
+
+   private static void create(Path file, int maxDoc) throws IOException {
+      try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+         MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0,
+               HEADER_BYTES + (long) Float.BYTES * maxDoc);
+         buffer.order(ByteOrder.LITTLE_ENDIAN);
+
+         for (int i = 0; i < maxDoc; i++) {
+            buffer.putFloat(HEADER_BYTES + Float.BYTES * i, Float.NaN);
+         }
+         buffer.putInt(0, MAGIC);
+         buffer.putInt(4, VERSION);
+         buffer.putInt(8, maxDoc);
+         buffer.force();
+         unmap(buffer);
+      }
+   }
+
+   /**
+    * Looks up the cleaner of mapped buffers: <code>Unsafe.invokeCleaner</code> on Java 9 and later, the cleaner of
+    * the buffer on Java 8.
+    */
+   private static Consumer<ByteBuffer> unmapper() {
+      try {
+         Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+         Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+         theUnsafe.setAccessible(true);
+         MethodHandle invokeCleaner = MethodHandles.lookup()
+               .findVirtual(unsafeClass, "invokeCleaner", MethodType.methodType(void.class, ByteBuffer.class))
+               .bindTo(theUnsafe.get(null));
+
+         return buffer -> invoke(invokeCleaner, buffer);
+      } catch (ReflectiveOperationException | RuntimeException e) {
+         // not available before Java 9
+      }
+
+      try {
+         MethodHandle cleaner = MethodHandles.lookup().findVirtual(Class.forName("sun.nio.ch.DirectBuffer"), "cleaner",
+               MethodType.methodType(Class.forName("sun.misc.Cleaner")));
+         MethodHandle clean = MethodHandles.lookup().findVirtual(Class.forName("sun.misc.Cleaner"), "clean",
+               MethodType.methodType(void.class));
+
+         return buffer -> invoke(MethodHandles.filterReturnValue(cleaner, clean), buffer);
+      } catch (ReflectiveOperationException | RuntimeException e) {
+         log.warn("Mapped values can not be unmapped, they are unmapped by the garbage collector.", e);
+         return null;
+      }
+   }
+
+   private static void invoke(MethodHandle handle, ByteBuffer buffer) {
+      try {
+         handle.invoke(buffer);
+      } catch (RuntimeException | Error e) {
+         throw e;
+      } catch (Throwable e) {
+         throw new IllegalStateException("Could not unmap buffer.", e);
+      }
+   }
+
+   private static void unmap(ByteBuffer buffer) {
+      if (UNMAPPER != null) {
+         UNMAPPER.accept(buffer);
+      }
+   }
+
+   /**
+    * {@inheritDoc}
+    */
+   @Override
+   public float getFloat(int doc) {
+      return values.get(doc);
+   }
+
+   /**
+    * {@inheritDoc}
+    */
+   @Override
+   public void getFloats(int startDoc, float[] dest, int offset, int len) {
+      for (int i = 0; i < len; i++) {
+         dest[offset + i] = values.get(startDoc + i);
+      }
+   }
+
+   /**
+    * {@inheritDoc}
+    */
+   @Override
+   public void setFloat(int doc, float value) {
+      values.put(doc, value);
+   }
+
+   /**
+    * {@inheritDoc}
+    */
+   @Override
+   public boolean hasValue(int index) {
+      return !Float.isNaN(values.get(index));
+   }
+
+   /**
+    * Writes the values to the file, e.g. once all values have been computed.
+    */
+   public void force() {
+      buffer.force();
+   }
+
+   public Path getFile() {
+      return file;
+   }
+
+   /**
+    * Unmaps the file, the values must not be read or written afterwards.
+    */
+   @Override
+   public void close() {
+      unmap(buffer);
+   }
+
+   @Override
+   public int size() {
+      return values.capacity();
+   }
+
+   /**
+    * Returns the heap used only, the values are kept off heap.
+    */
+   @Override
+   public long ramBytesUsed() {
+      return RamUsageEstimator.shallowSizeOfInstance(MappedFloatValueCache.class);
+   }
+
+   @Override
+   public Collection<Accountable> getChildResources() {
+      return Collections.emptyList();
+   }
+
+   @Override
+   public String toString() {
+      return Objects.toStringHelper(this)
+            .add("file", file)
+            .add("maxDoc", size())
+            .toString();
+   }
+}
@@ -2,32 +2,48 @@ package com.s24.search.solr.util.packed;
 
 import static com.google.common.base.Preconditions.checkArgument;
 
-import org.apache.lucene.util.FixedBitSet;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
 import org.apache.lucene.util.RamUsageEstimator;
+import org.apache.lucene.util.packed.PackedInts;
 
 import com.s24.search.solr.util.LongValueCache;
 
 /**
- * A sparse packed data structure
- * 
+ * A sparse packed data structure, indexed by rank like Lucene's <code>IndexedDISI</code>. The documents are split
+ * into blocks of {@value #BLOCK_SIZE}, a block holds a bit per document and a single packed array with the values of
+ * the documents set, ordered by document. The value of a document is found at the rank of its bit, the number of bits
+ * set before it, so memory is spent on the values present only.
+ * <p>
+ * Neither reads nor writes lock. A writer takes ownership of a block by a compare and set of its state: a value appended
+ * behind the last document of a block is written in place and published by setting its bit afterwards, all other
+ * changes copy the block and replace it, so readers always see the bits and values of a single block. Writers to
+ * different blocks never wait for each other. The rank of each word is stored with the block, so a read counts the
+ * bits of a single word.
+ *
  * @author Shopping24 GmbH, Torsten Bøgh Köster (@tboeghk)
  */
 public abstract class AbstractSparseValues implements LongValueCache {
 
-   // holds the per-bucket bits
-   private final long[] words;
+   static final int BLOCK_SHIFT = 9;
+   static final int BLOCK_SIZE = 1 << BLOCK_SHIFT;
+
+   private static final int WORDS_PER_BLOCK = BLOCK_SIZE >>> 6;
+   private static final int MIN_CAPACITY = 4;
+
+   // block states besides the number of values of a block open for writes
+   private static final int BUSY = -1;
+   private static final int REPLACED = -2;
 
-   // each word bucket is associated with a writer holding the bucket's values.
-   private final LongValueCache[] values;
+   private final AtomicReferenceArray<Block> blocks;
 
    public AbstractSparseValues(int maxValueCount) {
       checkArgument(maxValueCount > 0, "Pre-condition violated: expression maxValueCount > 0 must be true.");
 
-      // compute number of words
-      int wordCount = FixedBitSet.bits2words(maxValueCount);
-
-      this.words = new long[wordCount];
-      this.values = new LongValueCache[wordCount];
+      this.blocks = new AtomicReferenceArray<>(((maxValueCount - 1) >>> BLOCK_SHIFT) + 1);
    }
 
    /**
@@ -35,11 +51,13 @@ public abstract class AbstractSparseValues implements LongValueCache {
     */
    @Override
    public long ramBytesUsed() {
-      long bytes = RamUsageEstimator.sizeOf(words);
+      long bytes = RamUsageEstimator.alignObjectSize(
+            RamUsageEstimator.NUM_BYTES_ARRAY_HEADER + (long) RamUsageEstimator.NUM_BYTES_OBJECT_REF * blocks.length());
 
-      for (int i = 0; i < values.length; i++) {
-         if (values[i] != null) {
-            bytes += values[i].ramBytesUsed();
+      for (int i = 0; i < blocks.length(); i++) {
+         Block block = blocks.get(i);
+         if (block != null) {
+            bytes += block.ramBytesUsed();
          }
       }
 
@@ -48,12 +66,8 @@ public abstract class AbstractSparseValues implements LongValueCache {
 
    @Override
    public boolean hasValue(int index) {
-      checkArgument(index >= 0, "Pre-condition violated: expression index >= 0 must be true.");
-
-      // get word by div 64
-      int i = index >> 6;
-
-      return ((words[i] & (1L << index)) != 0);
+      Block block = blocks.get(index >>> BLOCK_SHIFT);
+      return block != null && block.has(index & (BLOCK_SIZE - 1));
    }
 
    /**
@@ -63,10 +77,11 @@ public abstract class AbstractSparseValues implements LongValueCache {
    public int getBitsPerValue() {
       int bits = 0;
 
-      // iterate writers and find maximum
-      for (int i = 0; i < values.length; i++) {
-         if (values[i] != null) {
-            bits = Math.max(bits, values[i].getBitsPerValue());
+      // iterate blocks and find maximum
+      for (int i = 0; i < blocks.length(); i++) {
+         Block block = blocks.get(i);
+         if (block != null) {
+            bits = Math.max(bits, block.values.getBitsPerValue());
          }
       }
 
@@ -78,56 +93,220 @@ public abstract class AbstractSparseValues implements LongValueCache {
     */
    @Override
    public void set(int index, long value) {
-      checkArgument(index >= 0, "Pre-condition violated: expression index >= 0 must be true.");
       checkArgument(value >= 0, "Pre-condition violated: expression value >= 0 must be true.");
 
-      // get index to work on
-      int i = index >> 6;
+      int b = index >>> BLOCK_SHIFT;
+      int i = index & (BLOCK_SIZE - 1);
+
+      for (;;) {
+         Block block = blocks.get(b);
+         if (block == null) {
+            Block created = new Block(MIN_CAPACITY, PackedInts.bitsRequired(value));
+            created.append(i, value, 0);
+            created.state.set(1);
+            if (blocks.compareAndSet(b, null, created)) {
+               return;
+            }
+            continue;
+         } else if (block.has(i) && block.get(i) == value) {
+            return;
+         }
 
-      // check preconditions
-      if (values[i] == null) {
+         // take ownership of the block, a replaced block is reloaded
+         int count = block.state.get();
+         if (count < 0) {
+            if (count == BUSY) {
+               Thread.yield();
+            }
+            continue;
+         } else if (!block.state.compareAndSet(count, BUSY)) {
+            continue;
+         }
 
-         // ensure growable writer is present
-         values[i] = createNewValues();
+         int release = count;
+         try {
+            if (i > block.last && count < block.values.size()
+                  && value <= PackedInts.maxValue(block.values.getBitsPerValue())) {
+               // append in place, the bit publishes the value
+               block.append(i, value, count);
+               release = count + 1;
+            } else {
+               blocks.set(b, block.copyWith(i, value, count));
+               release = REPLACED;
+            }
+         } finally {
+            block.state.set(release);
+         }
+         return;
       }
-
-      // flip index
-      words[i] ^= (1L << index);
-
-      // set value in writer
-      values[i].set(index % 64, value);
    }
 
-   protected abstract LongValueCache createNewValues();
-
    /**
-    * {@inheritDoc}. Returns the number of bits set in words.
+    * {@inheritDoc}. Returns the number of values set.
     */
    @Override
    public int size() {
       int size = 0;
 
-      for (int i = 0; i < words.length; i++) {
-         size += Long.bitCount(words[i]);
+      for (int i = 0; i < blocks.length(); i++) {
+         Block block = blocks.get(i);
+         if (block != null) {
+            for (int w = 0; w < WORDS_PER_BLOCK; w++) {
+               size += Long.bitCount(block.words.get(w));
+            }
+         }
       }
 
       return size;
    }
 
+   /**
+    * {@inheritDoc}. Reads block by block, the values of a word are read in rank order.
+    */
+   @Override
+   public void getLongs(int startDoc, long[] dest, int offset, int len) {
+      checkArgument(startDoc >= 0 && len >= 0,
+            "Pre-condition violated: expression startDoc >= 0 && len >= 0 must be true.");
+
+      Arrays.fill(dest, offset, offset + len, Long.MAX_VALUE);
+
+      int end = startDoc + len;
+      for (int doc = startDoc; doc < end;) {
+         int blockEnd = Math.min(end, ((doc >>> BLOCK_SHIFT) + 1) << BLOCK_SHIFT);
+
+         Block block = blocks.get(doc >>> BLOCK_SHIFT);
+         if (block != null) {
+            int blockStart = doc & ~(BLOCK_SIZE - 1);
+            for (int w = (doc - blockStart) >>> 6; blockStart + (w << 6) < blockEnd; w++) {
+               long word = block.words.get(w);
+               int rank = block.ranks[w];
+               for (; word != 0; word &= word - 1) {
+                  int d = blockStart + (w << 6) + Long.numberOfTrailingZeros(word);
+                  if (d >= blockEnd) {
+                     break;
+                  }
+                  if (d >= doc) {
+                     dest[offset + d - startDoc] = block.values.get(rank);
+                  }
+                  rank++;
+               }
+            }
+         }
+         doc = blockEnd;
+      }
+   }
+
    @Override
    public long get(int index) {
-      checkArgument(index >= 0, "Pre-condition violated: expression index >= 0 must be true.");
+      Block block = blocks.get(index >>> BLOCK_SHIFT);
+      return block == null ? Long.MAX_VALUE : block.get(index & (BLOCK_SIZE - 1));
+   }
+
+   /**
+    * The bits and values of a block of documents. Only the last values are written after the block has been
+    * published, and only by appending. The rank of a word is written before its first bit is published and not
+    * changed afterwards, so readers read the rank after the word.
+    */
+   private static final class Block {
 
-      // check for value
-      if (hasValue(index)) {
-         // get word by div 64
-         int i = index >> 6;
+      final AtomicLongArray words;
+      final PackedInts.Mutable values;
+      final int[] ranks = new int[WORDS_PER_BLOCK];
 
-         // get value in writer
-         return values[i].get(index % 64);
+      // the number of values while open for writes, BUSY while owned by a writer or REPLACED
+      final AtomicInteger state = new AtomicInteger();
+
+      // written by the owning writer only
+      int last = -1;
+
+      Block(int capacity, int bitsPerValue) {
+         this(new AtomicLongArray(WORDS_PER_BLOCK), PackedInts.getMutable(capacity, bitsPerValue, PackedInts.DEFAULT));
+      }
+
+      private Block(AtomicLongArray words, PackedInts.Mutable values) {
+         this.words = words;
+         this.values = values;
+      }
+
+      boolean has(int index) {
+         return (words.get(index >>> 6) & (1L << index)) != 0;
       }
 
-      return Long.MAX_VALUE;
+      long get(int index) {
+         int w = index >>> 6;
+         long word = words.get(w);
+         long bit = 1L << index;
+         if ((word & bit) == 0) {
+            return Long.MAX_VALUE;
+         }
+
+         return values.get(ranks[w] + Long.bitCount(word & (bit - 1)));
+      }
+
+      /**
+       * Appends the value behind the given number of values, the following words are empty and get their rank
+       * before the bit is published.
+       */
+      void append(int index, long value, int count) {
+         values.set(count, value);
+         last = index;
+
+         int w = index >>> 6;
+         for (int j = w + 1; j < WORDS_PER_BLOCK; j++) {
+            ranks[j] = count + 1;
+         }
+         words.set(w, words.get(w) | (1L << index));
+      }
+
+      /**
+       * Returns a copy of this block with the given value set, the values are repacked if needed.
+       */
+      Block copyWith(int index, long value, int count) {
+         int w = index >>> 6;
+         long bit = 1L << index;
+         boolean present = (words.get(w) & bit) != 0;
+         int position = ranks[w] + Long.bitCount(words.get(w) & (bit - 1));
+
+         int newCount = present ? count : count + 1;
+         int capacity = Math.min(BLOCK_SIZE, Math.max(MIN_CAPACITY, newCount + (newCount >>> 1)));
+         int bitsPerValue = Math.max(values.getBitsPerValue(), PackedInts.bitsRequired(value));
+
+         AtomicLongArray copiedWords = new AtomicLongArray(WORDS_PER_BLOCK);
+         for (int j = 0; j < WORDS_PER_BLOCK; j++) {
+            copiedWords.set(j, words.get(j));
+         }
+         copiedWords.set(w, copiedWords.get(w) | bit);
+
+         Block copy = new Block(copiedWords, PackedInts.getMutable(capacity, bitsPerValue, PackedInts.DEFAULT));
+         for (int j = 1; j < WORDS_PER_BLOCK; j++) {
+            copy.ranks[j] = copy.ranks[j - 1] + Long.bitCount(copiedWords.get(j - 1));
+         }
+
+         int skip = present ? 1 : 0;
+         if (position > 0) {
+            PackedInts.copy(values, 0, copy.values, 0, position, PackedInts.DEFAULT_BUFFER_SIZE);
+         }
+         copy.values.set(position, value);
+         if (count - position - skip > 0) {
+            PackedInts.copy(values, position + skip, copy.values, position + 1, count - position - skip,
+                  PackedInts.DEFAULT_BUFFER_SIZE);
+         }
+
+         copy.state.set(newCount);
+         copy.last = Math.max(last, index);
+         return copy;
+      }
+
+      long ramBytesUsed() {
+         return RamUsageEstimator.alignObjectSize(RamUsageEstimator.NUM_BYTES_OBJECT_HEADER
+               + 4 * RamUsageEstimator.NUM_BYTES_OBJECT_REF + Integer.BYTES)
+               + RamUsageEstimator.alignObjectSize(RamUsageEstimator.NUM_BYTES_OBJECT_HEADER + Integer.BYTES)
+               + RamUsageEstimator.alignObjectSize(
+                     RamUsageEstimator.NUM_BYTES_OBJECT_HEADER + RamUsageEstimator.NUM_BYTES_OBJECT_REF)
+               + RamUsageEstimator.alignObjectSize(
+                     RamUsageEstimator.NUM_BYTES_ARRAY_HEADER + (long) Long.BYTES * WORDS_PER_BLOCK)
+               + RamUsageEstimator.sizeOf(ranks)
+               + values.ramBytesUsed();
+      }
    }
-   
 }
@@ -0,0 +1,445 @@
+package com.s24.search.solr.util.packed;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import org.apache.lucene.util.Accountable;
+import org.apache.lucene.util.RamUsageEstimator;
+import org.apache.lucene.util.packed.PackedInts;
+
+import com.google.common.base.Objects;
+import com.s24.search.solr.util.FloatValueCache;
+
+/**
+ * A float value cache that picks its representation per block of documents from the values observed, so no tuning is
+ * needed for sparse or dense functions:
+ * <ul>
+ * <li>Blocks start sparse, holding the values of the documents set only.</li>
+ * <li>Once the fill rate of a block passes {@value #SPARSE_MAX_VALUES} of {@value #BLOCK_SIZE} documents, the block is
+ * promoted to a dense float array.</li>
+ * <li>{@link #compact()} packs dense blocks with the bits per value needed for the range of the block's values,
+ * quantized with the given precision. Dense blocks are packed as well once all their documents have a value, so
+ * lazily filled caches get packed without compacting. A packed block is unpacked again if a value is changed.</li>
+ * </ul>
+ * Safe for concurrent use like the other packed caches: sparse and packed blocks are immutable and replaced by compare
+ * and set, dense blocks are written in place.
+ */
+public class AdaptiveFloatValueCache implements FloatValueCache {
+
+   public static final int DEFAULT_PRECISION = 10000;
+
+   static final int BLOCK_SHIFT = 12;
+   static final int BLOCK_SIZE = 1 << BLOCK_SHIFT;
+   static final int SPARSE_MAX_VALUES = BLOCK_SIZE >>> 3;
+
+   private static final int BLOCK_MASK = BLOCK_SIZE - 1;
+   private static final int WORDS_PER_BLOCK = BLOCK_SIZE >>> 6;
+
+   // quantized values beyond this can not be held exactly by a double
+   private static final double MAX_QUANTIZED = 1L << 53;
+
+   private final int maxDoc;
+   private final int precision;
+   private final AtomicReferenceArray<Block> blocks;
+
+   /**
+    * @param maxDoc
+    *           the number of documents.
+    * @param precision
+    *           the values are multiplied with when packed, e.g. <code>10000</code> to keep four decimal places.
+    */
+   public AdaptiveFloatValueCache(int maxDoc, int precision) {
+      checkArgument(maxDoc > 0, "Pre-condition violated: expression maxDoc > 0 must be true.");
+      checkArgument(precision > 0, "Pre-condition violated: expression precision > 0 must be true.");
+
+      this.maxDoc = maxDoc;
+      this.precision = precision;
+      this.blocks = new AtomicReferenceArray<>(((maxDoc - 1) >>> BLOCK_SHIFT) + 1);
+   }
+
+   /**
+    * {@inheritDoc}
+    */
+   @Override
+   public float getFloat(int doc) {
+      Block block = blocks.get(doc >>> BLOCK_SHIFT);
+      return block == null ? Float.NaN : block.get(doc & BLOCK_MASK);
+   }
+
+   /**
+    * {@inheritDoc}
+    */
+   @Override
+   public void getFloats(int startDoc, float[] dest, int offset, int len) {
+      checkArgument(startDoc >= 0 && len >= 0 && startDoc + len <= maxDoc,
+            "Pre-condition violated: expression startDoc >= 0 && startDoc + len <= maxDoc must be true.");
+
+      int end = startDoc + len;
+      for (int doc = startDoc; doc < end;) {
+         int blockEnd = Math.min(end, ((doc >>> BLOCK_SHIFT) + 1) << BLOCK_SHIFT);
+         int destStart = offset + doc - startDoc;
+
+         Block block = blocks.get(doc >>> BLOCK_SHIFT);
+         if (block == null) {
+            Arrays.fill(dest, destStart, destStart + blockEnd - doc, Float.NaN);
+         } else {
+            block.get(doc & BLOCK_MASK, dest, destStart, blockEnd - doc);
+         }
+         doc = blockEnd;
+      }
+   }
+
+   /**
+    * {@inheritDoc}. Infinite values are kept exactly, their blocks are not packed.
+    */
+   @Override
+   public void setFloat(int doc, float value) {
+      if (Float.isNaN(value)) {
+         return;
+      }
+
+      int i = doc >>> BLOCK_SHIFT;
+      while (true) {
+         Block block = blocks.get(i);
+         boolean missing = block == null || Float.isNaN(block.get(doc & BLOCK_MASK));
+         Block updated = (block == null ? SparseBlock.EMPTY : block).set(doc & BLOCK_MASK, value);
+         if (updated == block || blocks.compareAndSet(i, block, updated)) {
+            // the last missing value of the block has been set
+            if (missing && updated instanceof DenseBlock
+                  && ((DenseBlock) updated).filled >= Math.min(BLOCK_SIZE, maxDoc - (i << BLOCK_SHIFT))) {
+               blocks.compareAndSet(i, updated, ((DenseBlock) updated).pack(precision));
+            }
+            return;
+         }
+      }
+   }
+
+   /**
+    * {@inheritDoc}
+    */
+   @Override
+   public boolean hasValue(int doc) {
+      return !Float.isNaN(getFloat(doc));
+   }
+
+   /**
+    * Packs the dense blocks, e.g. once all values have been computed. A value written to a dense block concurrently may
+    * get lost, it is computed again then.
+    */
+   public void compact() {
+      for (int i = 0; i < blocks.length(); i++) {
+         Block block = blocks.get(i);
+         if (block instanceof DenseBlock) {
+            blocks.compareAndSet(i, block, ((DenseBlock) block).pack(precision));
+         }
+      }
+   }
+
+   /**
+    * Returns the number of documents.
+    */
+   @Override
+   public int size() {
+      return maxDoc;
+   }
+
+   /**
+    * {@inheritDoc}
+    */
+   @Override
+   public long ramBytesUsed() {
+      long bytes = RamUsageEstimator.alignObjectSize(
+            RamUsageEstimator.NUM_BYTES_ARRAY_HEADER + (long) RamUsageEstimator.NUM_BYTES_OBJECT_REF * blocks.length());
+
+      for (int i = 0; i < blocks.length(); i++) {
+         Block block = blocks.get(i);
+         if (block != null && block != SparseBlock.EMPTY) {
+            bytes += block.ramBytesUsed();
+         }
+      }
+
+      return bytes;
+   }
+
+   @Override
+   public Collection<Accountable> getChildResources() {
+      return Collections.emptyList();
+   }
+
+   @Override
+   public String toString() {
+      int sparse = 0, dense = 0, packed = 0;
+      for (int i = 0; i < blocks.length(); i++) {
+         Block block = blocks.get(i);
+         if (block instanceof SparseBlock) {
+            sparse++;
+         } else if (block instanceof DenseBlock) {
+            dense++;
+         } else if (block instanceof PackedBlock) {
+            packed++;
+         }
+      }
+
+      return Objects.toStringHelper(this)
+            .add("maxDoc", maxDoc)
+            .add("blocks.sparse", sparse)
+            .add("blocks.dense", dense)
+            .add("blocks.packed", packed)
+            .add("bytes", ramBytesUsed())
+            .toString();
+   }
+
+   /**
+    * The values of a block of documents. Returns {@link Float#NaN} for documents without a value.
+    */
+   private interface Block extends Accountable {
+
+      float get(int index);
+
+      /**
+       * Reads the values of consecutive documents of this block.
+       */
+      void get(int index, float[] dest, int offset, int len);
+
+      /**
+       * Sets the value, returns the block holding it: either this block or a new one that replaces it.
+       */
+      Block set(int index, float value);
+   }
+
+   /**
+    * Holds the values of the documents set only, ordered by document. The bits mark the documents set, the values of
+    * a document are found by the rank of its bit.
+    */
+   private static final class SparseBlock implements Block {
+
+      static final SparseBlock EMPTY = new SparseBlock(new long[WORDS_PER_BLOCK], new int[WORDS_PER_BLOCK],
+            new float[0]);
+
+      private final long[] words;
+
+      // the number of values before each word
+      private final int[] ranks;
+
+      private final float[] values;
+
+      SparseBlock(long[] words, int[] ranks, float[] values) {
+         this.words = words;
+         this.ranks = ranks;
+         this.values = values;
+      }
+
+      @Override
+      public float get(int index) {
+         int w = index >>> 6;
+         long bit = 1L << index;
+         if ((words[w] & bit) == 0) {
+            return Float.NaN;
+         }
+         return values[ranks[w] + Long.bitCount(words[w] & (bit - 1))];
+      }
+
+      @Override
+      public void get(int index, float[] dest, int offset, int len) {
+         Arrays.fill(dest, offset, offset + len, Float.NaN);
+
+         // visit the set bits of the range only, the values of consecutive bits are consecutive
+         int end = index + len;
+         for (int w = index >>> 6; w < WORDS_PER_BLOCK && w << 6 < end; w++) {
+            long word = words[w];
+            int position = ranks[w];
+            while (word != 0) {
+               int i = (w << 6) + Long.numberOfTrailingZeros(word);
+               if (i >= end) {
+                  break;
+               }
+               if (i >= index) {
+                  dest[offset + i - index] = values[position];
+               }
+               position++;
+               word &= word - 1;
+            }
+         }
+      }
+
+      @Override
+      public Block set(int index, float value) {
+         int w = index >>> 6;
+         long bit = 1L << index;
+         int position = ranks[w] + Long.bitCount(words[w] & (bit - 1));
+
+         // replace a value
+         if ((words[w] & bit) != 0) {
+            if (Float.floatToIntBits(values[position]) == Float.floatToIntBits(value)) {
+               return this;
+            }
+            float[] updated = values.clone();
+            updated[position] = value;
+            return new SparseBlock(words, ranks, updated);
+         }
+
+         // too many values to be held sparse
+         if (values.length >= SPARSE_MAX_VALUES) {
+            return DenseBlock.copyOf(this).set(index, value);
+         }
+
+         // insert a value
+         long[] updatedWords = words.clone();
+         updatedWords[w] |= bit;
+         int[] updatedRanks = ranks.clone();
+         for (int i = w + 1; i < updatedRanks.length; i++) {
+            updatedRanks[i]++;
+         }
+         float[] updatedValues = new float[values.length + 1];
+         System.arraycopy(values, 0, updatedValues, 0, position);
+         updatedValues[position] = value;
+         System.arraycopy(values, position, updatedValues, position + 1, values.length - position);
+
+         return new SparseBlock(updatedWords, updatedRanks, updatedValues);
+      }
+
+      @Override
+      public long ramBytesUsed() {
+         return RamUsageEstimator.shallowSizeOf(this) + RamUsageEstimator.sizeOf(words)
+               + RamUsageEstimator.sizeOf(ranks) + RamUsageEstimator.sizeOf(values);
+      }
+   }
+
+   /**
+    * Holds a value for every document, {@link Float#NaN} marks documents without a value.
+    */
+   private static final class DenseBlock implements Block {
+
+      private final float[] values = new float[BLOCK_SIZE];
+
+      // the number of documents with a value, may miss concurrent writes
+      private int filled;
+
+      DenseBlock() {
+         Arrays.fill(values, Float.NaN);
+      }
+
+      /**
+       * Returns a dense copy of the given block.
+       */
+      static DenseBlock copyOf(Block block) {
+         DenseBlock dense = new DenseBlock();
+         block.get(0, dense.values, 0, BLOCK_SIZE);
+         for (float value : dense.values) {
+            if (!Float.isNaN(value)) {
+               dense.filled++;
+            }
+         }
+         return dense;
+      }
+
+      @Override
+      public float get(int index) {
+         return values[index];
+      }
+
+      @Override
+      public void get(int index, float[] dest, int offset, int len) {
+         System.arraycopy(values, index, dest, offset, len);
+      }
+
+      @Override
+      public Block set(int index, float value) {
+         if (Float.isNaN(values[index])) {
+            filled++;
+         }
+         values[index] = value;
+         return this;
+      }
+
+      /**
+       * Returns a packed copy of this block, or this block if packing does not save memory.
+       */
+      Block pack(int precision) {
+         long min = Long.MAX_VALUE;
+         long max = Long.MIN_VALUE;
+         for (float value : values) {
+            if (Float.isNaN(value)) {
+               continue;
+            }
+            if (Float.isInfinite(value) || Math.abs(value * (double) precision) >= MAX_QUANTIZED) {
+               return this;
+            }
+            long quantized = Math.round(value * (double) precision);
+            min = Math.min(min, quantized);
+            max = Math.max(max, quantized);
+         }
+
+         // zero marks missing values
+         int bitsPerValue = PackedInts.bitsRequired(max - min + 1);
+         if (min > max || bitsPerValue >= Float.SIZE) {
+            return this;
+         }
+
+         PackedInts.Mutable packed = PackedInts.getMutable(BLOCK_SIZE, bitsPerValue, PackedInts.COMPACT);
+         for (int i = 0; i < BLOCK_SIZE; i++) {
+            if (!Float.isNaN(values[i])) {
+               packed.set(i, Math.round(values[i] * (double) precision) - min + 1);
+            }
+         }
+         return new PackedBlock(packed, min, precision);
+      }
+
+      @Override
+      public long ramBytesUsed() {
+         return RamUsageEstimator.shallowSizeOf(this) + RamUsageEstimator.sizeOf(values);
+      }
+   }
+
+   /**
+    * Holds the quantized values relative to the minimum of the block, using the bits needed for the range of values.
+    */
+   private static final class PackedBlock implements Block {
+
+      private final PackedInts.Reader packed;
+      private final long min;
+      private final int precision;
+
+      PackedBlock(PackedInts.Reader packed, long min, int precision) {
+         this.packed = packed;
+         this.min = min;
+         this.precision = precision;
+      }
+
+      @Override
+      public float get(int index) {
+         long value = packed.get(index);
+         return value == 0 ? Float.NaN : (float) ((value - 1 + min) / (double) precision);
+      }
+
+      @Override
+      public void get(int index, float[] dest, int offset, int len) {
+         // decode the packed values block-wise
+         long[] scratch = new long[len];
+         for (int read = 0; read < len;) {
+            read += packed.get(index + read, scratch, read, len - read);
+         }
+         for (int i = 0; i < len; i++) {
+            dest[offset + i] = scratch[i] == 0 ? Float.NaN : (float) ((scratch[i] - 1 + min) / (double) precision);
+         }
+      }
+
+      @Override
+      public Block set(int index, float value) {
+         if (Float.floatToIntBits(get(index)) == Float.floatToIntBits(value)) {
+            return this;
+         }
+
+         return DenseBlock.copyOf(this).set(index, value);
+      }
+
+      @Override
+      public long ramBytesUsed() {
+         return RamUsageEstimator.shallowSizeOf(this) + packed.ramBytesUsed();
+      }
+   }
+}
@@ -0,0 +1,48 @@
+package com.s24.search.solr.util.packed;
+
+/**
+ * Quantizes values to the upper 16 bits of their float representation, the <code>bfloat16</code> format: the full
+ * float range with 8 significant bits. The relative error is at most <code>2^-8</code> of the value's magnitude, the
+ * codes of all values fit into 17 bits and the codes of values within a power of two of each other into 8 bits. Values
+ * rounding beyond the largest finite <code>bfloat16</code> are clamped to it.
+ */
+public class BFloat16Quantizer implements FloatQuantizer {
+
+   public static final BFloat16Quantizer INSTANCE = new BFloat16Quantizer();
+
+   // the magnitude of the largest finite bfloat16, the next code is infinity
+   private static final int MAX_MAGNITUDE = 0x7f7f;
+   private static final float MAX_FINITE = Float.intBitsToFloat(MAX_MAGNITUDE << 16);
+
+   private BFloat16Quantizer() {
+   }
+
+   @Override
+   public long encode(float value) {
+      int bits = Float.floatToIntBits(value);
+
+      // round to nearest even, the sign bit is not affected for finite values
+      int half = (bits + 0x7fff + ((bits >>> 16) & 1)) >>> 16;
+      int magnitude = Math.min(half & 0x7fff, MAX_MAGNITUDE);
+
+      return (half & 0x8000) != 0 ? -magnitude : magnitude;
+   }
+
+   @Override
+   public float decode(long code) {
+      int half = code < 0 ? 0x8000 | (int) -code : (int) code;
+      return Float.intBitsToFloat(half << 16);
+   }
+
+   @Override
+   public float maxError(float value) {
+      // half a step of 8 significant bits, the subnormal step otherwise, a full step for clamped values
+      float magnitude = Math.abs(value);
+      return magnitude > MAX_FINITE ? magnitude * 0x1p-7f : magnitude * 0x1p-8f + 0x1p-134f;
+   }
+
+   @Override
+   public String toString() {
+      return "BFloat16Quantizer";
+   }
+}
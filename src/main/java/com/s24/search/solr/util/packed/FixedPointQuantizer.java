@@ -0,0 +1,56 @@
+package com.s24.search.solr.util.packed;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import com.google.common.base.Objects;
+
+/**
+ * Quantizes values to a fixed number of steps per unit, e.g. <code>10000</code> keeps four decimal places. The error
+ * is at most half a step, <code>0.5 / precision</code>, for values with a magnitude below <code>2^62 / precision</code>;
+ * larger values are clamped. Negative values are encoded as negative codes.
+ */
+public class FixedPointQuantizer implements FloatQuantizer {
+
+   // keeps the zig zag encoding of a code below Long.MAX_VALUE
+   private static final long MAX_CODE = (1L << 62) - 1;
+
+   private final int precision;
+
+   /**
+    * @param precision
+    *           the number of steps per unit.
+    */
+   public FixedPointQuantizer(int precision) {
+      checkArgument(precision > 0, "Pre-condition violated: expression precision > 0 must be true.");
+
+      this.precision = precision;
+   }
+
+   @Override
+   public long encode(float value) {
+      long code = Math.round(value * (double) precision);
+      return Math.max(-MAX_CODE, Math.min(MAX_CODE, code));
+   }
+
+   @Override
+   public float decode(long code) {
+      return (float) (code / (double) precision);
+   }
+
+   @Override
+   public float maxError(float value) {
+      // the step plus the float rounding of the decoded value
+      return 0.5f / precision + Math.ulp(value);
+   }
+
+   public int getPrecision() {
+      return precision;
+   }
+
+   @Override
+   public String toString() {
+      return Objects.toStringHelper(this)
+            .add("precision", precision)
+            .toString();
+   }
+}
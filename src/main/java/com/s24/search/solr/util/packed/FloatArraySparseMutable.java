@@ -1,30 +1,55 @@
 package com.s24.search.solr.util.packed;
 
-import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
 
 import com.s24.search.solr.util.FloatValueCache;
 
+/**
+ * A sparse packed float cache. The values are quantized by a {@link FloatQuantizer} and zig zag encoded, so negative
+ * values of small magnitude are packed as compact as positive ones.
+ */
 public class FloatArraySparseMutable extends LongArraySparseMutable implements FloatValueCache {
 
    public static final int DEFAULT_PRECISION = 10000;
 
-   private final float precision;
+   private final FloatQuantizer quantizer;
 
    public FloatArraySparseMutable(int maxValueCount, int precision) {
+      this(maxValueCount, new FixedPointQuantizer(precision));
+   }
+
+   public FloatArraySparseMutable(int maxValueCount, FloatQuantizer quantizer) {
       super(maxValueCount);
-      
-      this.precision = precision;
+
+      this.quantizer = checkNotNull(quantizer, "Pre-condition violated: quantizer must not be null.");
    }
-   
-   
+
    /**
-    * sets the value for the given document id
+    * sets the value for the given document id. {@link Float#NaN} is not stored, infinite values are clamped by the
+    * quantizer.
     */
    public void setFloat(int doc, float value) {
-      checkArgument(doc >= 0, "Pre-condition violated: expression doc >= 0 must be true.");
-      checkArgument(value >= 0, "Pre-condition violated: expression value >= 0 must be true.");
+      if (Float.isNaN(value)) {
+         return;
+      }
+
+      long code = quantizer.encode(value);
+      set(doc, (code << 1) ^ (code >> 63));
+   }
 
-      set(doc, Math.round(value * precision));
+   /**
+    * {@inheritDoc}
+    */
+   @Override
+   public void getFloats(int startDoc, float[] dest, int offset, int len) {
+      long[] scratch = new long[Math.min(len, 64)];
+      for (int done = 0; done < len; done += scratch.length) {
+         int n = Math.min(scratch.length, len - done);
+         getLongs(startDoc + done, scratch, 0, n);
+         for (int i = 0; i < n; i++) {
+            dest[offset + done + i] = scratch[i] == Long.MAX_VALUE ? Float.NaN : decode(scratch[i]);
+         }
+      }
    }
 
    /**
@@ -33,9 +58,17 @@ public class FloatArraySparseMutable extends LongArraySparseMutable implements F
     */
    public float getFloat(int doc) {
       if (hasValue(doc)) {
-         return (float) get(doc) / precision;
+         return decode(get(doc));
       }
 
       return Float.NaN;
    }
+
+   public FloatQuantizer getQuantizer() {
+      return quantizer;
+   }
+
+   private float decode(long zigZag) {
+      return quantizer.decode((zigZag >>> 1) ^ -(zigZag & 1));
+   }
 }
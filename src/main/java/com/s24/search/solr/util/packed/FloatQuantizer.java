@@ -0,0 +1,25 @@
+package com.s24.search.solr.util.packed;
+
+/**
+ * Maps float values to the longs stored by the packed caches and back. The encoding preserves the order of the values,
+ * so the offset of the packed writers keeps working for negative values. Each quantizer states the error a decoded
+ * value may have.
+ */
+public interface FloatQuantizer {
+
+   /**
+    * Encodes the given value, infinite values are clamped to the largest magnitude encoded. The smaller the magnitude of the codes, the fewer bits are needed to pack them.
+    * Never returns {@link Long#MIN_VALUE} or {@link Long#MAX_VALUE}, the caches use them to mark missing values.
+    */
+   long encode(float value);
+
+   /**
+    * Decodes a value encoded by {@link #encode(float)}.
+    */
+   float decode(long code);
+
+   /**
+    * Returns the maximum absolute difference between the given value and its decoded encoding.
+    */
+   float maxError(float value);
+}
@@ -1,11 +1,11 @@
 package com.s24.search.solr.util.packed;
 
-import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
 
 import com.s24.search.solr.util.FloatValueCache;
 
 /**
- * A growable writer that stores floats.
+ * A growable writer that stores floats, quantized by a {@link FloatQuantizer}.
  * 
  * @author Shopping24 GmbH, Torsten Bøgh Köster (@tboeghk)
  */
@@ -13,22 +13,45 @@ public class OffsetGrowableFloatWriter extends OffsetGrowableWriter implements F
 
    public static final int DEFAULT_PRECISION = 10000;
 
-   private final float precision;
+   private final FloatQuantizer quantizer;
 
    public OffsetGrowableFloatWriter(int precision, int startBitsPerValue, int valueCount, float acceptableOverheadRatio) {
+      this(new FixedPointQuantizer(precision), startBitsPerValue, valueCount, acceptableOverheadRatio);
+   }
+
+   public OffsetGrowableFloatWriter(FloatQuantizer quantizer, int startBitsPerValue, int valueCount,
+         float acceptableOverheadRatio) {
       super(startBitsPerValue, valueCount, acceptableOverheadRatio);
 
-      this.precision = precision;
+      this.quantizer = checkNotNull(quantizer, "Pre-condition violated: quantizer must not be null.");
    }
 
    /**
-    * sets the value for the given document id
+    * sets the value for the given document id, negative values are stored relative to the block's minimum like
+    * positive ones. {@link Float#NaN} is not stored, infinite values are clamped by the quantizer.
     */
    public void setFloat(int doc, float value) {
-      checkArgument(doc >= 0, "Pre-condition violated: expression doc >= 0 must be true.");
-      checkArgument(value >= 0, "Pre-condition violated: expression value >= 0 must be true.");
+      if (Float.isNaN(value)) {
+         return;
+      }
+
+      set(doc, quantizer.encode(value));
+   }
 
-      set(doc, Math.round(value * precision));
+   /**
+    * {@inheritDoc}
+    */
+   @Override
+   public void getFloats(int startDoc, float[] dest, int offset, int len) {
+      long[] scratch = new long[Math.min(len, 1024)];
+      for (int done = 0; done < len; done += scratch.length) {
+         int n = Math.min(scratch.length, len - done);
+         // quantizers never return the missing value
+         getLongs(startDoc + done, scratch, 0, n, Long.MIN_VALUE);
+         for (int i = 0; i < n; i++) {
+            dest[offset + done + i] = scratch[i] == Long.MIN_VALUE ? Float.NaN : quantizer.decode(scratch[i]);
+         }
+      }
    }
 
    /**
@@ -37,9 +60,13 @@ public class OffsetGrowableFloatWriter extends OffsetGrowableWriter implements F
     */
    public float getFloat(int doc) {
       if (hasValue(doc)) {
-         return (float) get(doc) / precision;
+         return quantizer.decode(get(doc));
       }
 
       return Float.NaN;
    }
+
+   public FloatQuantizer getQuantizer() {
+      return quantizer;
+   }
 }
@@ -1,27 +1,47 @@
 package com.s24.search.solr.util.packed;
 
-import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.StampedLock;
 
-import org.apache.lucene.search.DocIdSetIterator;
-import org.apache.lucene.util.BitSetIterator;
-import org.apache.lucene.util.SparseFixedBitSet;
+import org.apache.lucene.util.Accountable;
+import org.apache.lucene.util.RamUsageEstimator;
 import org.apache.lucene.util.packed.GrowableWriter;
 
 import com.s24.search.solr.util.LongValueCache;
 
 /**
- * A growable writer that works with a internal minimum value, that is added as an offset to the values returned. Using
+ * A growable writer that works with internal minimum values, that are added as an offset to the values returned. Using
  * this technique, we reduce the cardinality of values stored in the growable writer, which reduces ram usage.
- * 
+ * <p>
+ * The documents are split into blocks of {@value #BLOCK_SIZE}, each with its own minimum and growable writer, so a new
+ * minimum rebalances the values of its block only. The minimum is lowered beyond the new value by the range of the
+ * block's values, so filling a block in descending order rebalances it a logarithmic number of times instead of on
+ * every value.
+ * <p>
+ * Safe for concurrent use: writes, which may resize the writer of a block or rebalance it to a new minimum, are
+ * serialized per block. Reads do not lock, they are validated against concurrent writes to their block and retried
+ * under the block's read lock only if a write happened in between. A block never changes its number of values, so
+ * reads of a concurrently resized block return wrong values at worst, which fail the validation.
+ *
  * @author Shopping24 GmbH, Torsten Bøgh Köster (@tboeghk)
  */
-public class OffsetGrowableWriter extends GrowableWriter implements LongValueCache {
+public class OffsetGrowableWriter implements LongValueCache {
 
-   // track ids that have been modified
-   private final SparseFixedBitSet valuesFilled;
+   static final int BLOCK_SHIFT = 10;
+   static final int BLOCK_SIZE = 1 << BLOCK_SHIFT;
 
-   // initial minimum value
-   private long minimumValue = Long.MAX_VALUE;
+   private static final int WORDS_PER_BLOCK = BLOCK_SIZE >>> 6;
+
+   private final int valueCount;
+   private final int startBitsPerValue;
+   private final float acceptableOverheadRatio;
+   private final long minimalValue;
+
+   // created on the first write to a block
+   private final AtomicReferenceArray<Block> blocks;
 
    public OffsetGrowableWriter(int startBitsPerValue, int valueCount, float acceptableOverheadRatio) {
       this(startBitsPerValue, valueCount, acceptableOverheadRatio, Long.MAX_VALUE);
@@ -29,51 +49,69 @@ public class OffsetGrowableWriter extends GrowableWriter implements LongValueCac
 
    public OffsetGrowableWriter(int startBitsPerValue, int valueCount, float acceptableOverheadRatio,
          long minimalValue) {
-      super(startBitsPerValue, valueCount, acceptableOverheadRatio);
-
-      this.minimumValue = minimalValue;
-      this.valuesFilled = new SparseFixedBitSet(valueCount);
-
-      // reset contents
-      fill(0, valueCount, 0l);
+      this.valueCount = valueCount;
+      this.startBitsPerValue = startBitsPerValue;
+      this.acceptableOverheadRatio = acceptableOverheadRatio;
+      this.minimalValue = minimalValue;
+      this.blocks = new AtomicReferenceArray<>((valueCount + BLOCK_SIZE - 1) >>> BLOCK_SHIFT);
    }
 
    /**
-    * Add bitset ram bytes
+    * {@inheritDoc}
     */
    @Override
    public long ramBytesUsed() {
-      return super.ramBytesUsed() + valuesFilled.ramBytesUsed();
+      long bytes = RamUsageEstimator.shallowSizeOfInstance(OffsetGrowableWriter.class)
+            + RamUsageEstimator.alignObjectSize(RamUsageEstimator.NUM_BYTES_ARRAY_HEADER
+                  + (long) RamUsageEstimator.NUM_BYTES_OBJECT_REF * blocks.length());
+
+      for (int i = 0; i < blocks.length(); i++) {
+         Block block = blocks.get(i);
+         if (block != null) {
+            bytes += block.ramBytesUsed();
+         }
+      }
+
+      return bytes;
    }
 
-   public long getCurrentMinimumValue() {
-      return minimumValue;
+   @Override
+   public Collection<Accountable> getChildResources() {
+      return Collections.emptyList();
+   }
+
+   @Override
+   public int size() {
+      return valueCount;
    }
 
    /**
-    * Ensures that the value to add is above the current minimum value or reduces the minimum value to the value given.
-    * In that case, alle values stored are fixed to meet the new minimium value.
+    * Returns the maximum bits per value used by a block.
     */
-   protected void ensureMinimumBoundary(long value) {
-
-      // we have a new offset: rebalance all values using the diff;
-      if (value < minimumValue) {
-         long diff = minimumValue - value;
-
-         try {
-            
-            for (DocIdSetIterator ids = new BitSetIterator(valuesFilled, 0L); ids.nextDoc() != DocIdSetIterator.NO_MORE_DOCS;) {
-               long v = super.get(ids.docID());
-
-               super.set(ids.docID(), (v + diff));
-            }
-         } catch (IOException e) {
-            // ignored
+   @Override
+   public int getBitsPerValue() {
+      int bits = startBitsPerValue;
+      for (int i = 0; i < blocks.length(); i++) {
+         Block block = blocks.get(i);
+         if (block != null) {
+            bits = Math.max(bits, block.values.getBitsPerValue());
          }
+      }
+      return bits;
+   }
 
-         // update new minimum value
-         this.minimumValue = value;
+   /**
+    * Returns the smallest minimum value of all blocks.
+    */
+   public long getCurrentMinimumValue() {
+      long minimum = minimalValue;
+      for (int i = 0; i < blocks.length(); i++) {
+         Block block = blocks.get(i);
+         if (block != null) {
+            minimum = Math.min(minimum, block.minimum);
+         }
       }
+      return minimum;
    }
 
    /**
@@ -81,33 +119,195 @@ public class OffsetGrowableWriter extends GrowableWriter implements LongValueCac
     */
    @Override
    public void set(int index, long value) {
-      ensureMinimumBoundary(value);
-      long diff = value - minimumValue;
+      int b = index >>> BLOCK_SHIFT;
 
-      // insert value
-      super.set(index, diff);
+      Block block = blocks.get(b);
+      if (block == null) {
+         int length = Math.min(BLOCK_SIZE, valueCount - (b << BLOCK_SHIFT));
+         blocks.compareAndSet(b, null, new Block(length));
+         block = blocks.get(b);
+      }
 
-      // mark set
-      valuesFilled.set(index);
+      block.set(index & (BLOCK_SIZE - 1), value);
    }
 
    /**
-    * {@inheritDoc}
+    * {@inheritDoc}. Documents without a value return <code>0</code>.
     */
    @Override
    public long get(int index) {
-      if (valuesFilled.get(index)) {
-         return super.get(index) + minimumValue;
-      }
+      Block block = blocks.get(index >>> BLOCK_SHIFT);
+      return block == null ? 0L : block.get(index & (BLOCK_SIZE - 1));
+   }
+
+   /**
+    * {@inheritDoc}. The packed values are decoded block-wise.
+    */
+   @Override
+   public void getLongs(int startDoc, long[] dest, int offset, int len) {
+      getLongs(startDoc, dest, offset, len, 0L);
+   }
+
+   /**
+    * Reads the values of consecutive documents like {@link #getLongs(int, long[], int, int)}, documents without a
+    * value are set to the given missing value.
+    */
+   protected void getLongs(int startDoc, long[] dest, int offset, int len, long missingValue) {
+      int end = startDoc + len;
+      for (int doc = startDoc; doc < end;) {
+         int blockEnd = Math.min(end, ((doc >>> BLOCK_SHIFT) + 1) << BLOCK_SHIFT);
 
-      // should be zero (filled in constructor)
-      return super.get(index);
+         Block block = blocks.get(doc >>> BLOCK_SHIFT);
+         if (block == null) {
+            Arrays.fill(dest, offset + doc - startDoc, offset + blockEnd - startDoc, missingValue);
+         } else {
+            block.get(doc & (BLOCK_SIZE - 1), dest, offset + doc - startDoc, blockEnd - doc, missingValue);
+         }
+         doc = blockEnd;
+      }
    }
 
    /**
     * Checks whether for the given index there has been a value set
     */
+   @Override
    public boolean hasValue(int index) {
-      return valuesFilled.get(index);
+      Block block = blocks.get(index >>> BLOCK_SHIFT);
+      return block != null && block.has(index & (BLOCK_SIZE - 1));
+   }
+
+   /**
+    * The values of a block of documents, stored relative to the block's minimum. All fields are guarded by the
+    * block's lock.
+    */
+   private final class Block {
+
+      final StampedLock lock = new StampedLock();
+      final GrowableWriter values;
+      final long[] filled = new long[WORDS_PER_BLOCK];
+
+      long minimum = minimalValue;
+      long maximum = Long.MIN_VALUE;
+
+      Block(int length) {
+         this.values = new GrowableWriter(startBitsPerValue, length, acceptableOverheadRatio);
+      }
+
+      void set(int index, long value) {
+         long stamp = lock.writeLock();
+         try {
+            ensureMinimumBoundary(value);
+
+            // insert value and mark set
+            values.set(index, value - minimum);
+            filled[index >>> 6] |= 1L << index;
+         } finally {
+            lock.unlockWrite(stamp);
+         }
+      }
+
+      /**
+       * Ensures that the value to add is above the minimum value of the block or lowers the minimum value. In that
+       * case, the values stored in the block are fixed to meet the new minimum value.
+       */
+      private void ensureMinimumBoundary(long value) {
+         maximum = Math.max(maximum, value);
+
+         if (value < minimum) {
+            long newMinimum = value;
+
+            // the block has values: leave room for further descending values, doubling the range
+            if (minimum != Long.MAX_VALUE) {
+               long slack = Math.max(minimum - value, maximum - minimum);
+               if (slack > 0 && value - slack < value) {
+                  newMinimum = value - slack;
+               }
+               if (value >= 0 && newMinimum < 0) {
+                  newMinimum = 0;
+               }
+
+               // we have a new offset: rebalance the block's values using the diff
+               long diff = minimum - newMinimum;
+               for (int w = 0; w < WORDS_PER_BLOCK; w++) {
+                  for (long word = filled[w]; word != 0; word &= word - 1) {
+                     int doc = (w << 6) + Long.numberOfTrailingZeros(word);
+                     values.set(doc, values.get(doc) + diff);
+                  }
+               }
+            }
+
+            // update new minimum value
+            minimum = newMinimum;
+         }
+      }
+
+      boolean has(int index) {
+         long stamp = lock.tryOptimisticRead();
+         boolean has = (filled[index >>> 6] & (1L << index)) != 0;
+         if (lock.validate(stamp)) {
+            return has;
+         }
+
+         stamp = lock.readLock();
+         try {
+            return (filled[index >>> 6] & (1L << index)) != 0;
+         } finally {
+            lock.unlockRead(stamp);
+         }
+      }
+
+      long get(int index) {
+         long stamp = lock.tryOptimisticRead();
+         long value = read(index);
+         if (lock.validate(stamp)) {
+            return value;
+         }
+
+         stamp = lock.readLock();
+         try {
+            return read(index);
+         } finally {
+            lock.unlockRead(stamp);
+         }
+      }
+
+      private long read(int index) {
+         return (filled[index >>> 6] & (1L << index)) != 0 ? values.get(index) + minimum : 0L;
+      }
+
+      void get(int index, long[] dest, int offset, int len, long missingValue) {
+         long stamp = lock.tryOptimisticRead();
+         read(index, dest, offset, len, missingValue);
+         if (lock.validate(stamp)) {
+            return;
+         }
+
+         stamp = lock.readLock();
+         try {
+            read(index, dest, offset, len, missingValue);
+         } finally {
+            lock.unlockRead(stamp);
+         }
+      }
+
+      private void read(int index, long[] dest, int offset, int len, long missingValue) {
+         for (int read = 0; read < len;) {
+            read += values.get(index + read, dest, offset + read, len - read);
+         }
+
+         long min = minimum;
+         for (int i = 0; i < len; i++) {
+            int doc = index + i;
+            dest[offset + i] = (filled[doc >>> 6] & (1L << doc)) != 0 ? dest[offset + i] + min : missingValue;
+         }
+      }
+
+      long ramBytesUsed() {
+         return RamUsageEstimator.alignObjectSize(RamUsageEstimator.NUM_BYTES_OBJECT_HEADER
+               + 4 * RamUsageEstimator.NUM_BYTES_OBJECT_REF + 2 * Long.BYTES)
+               + RamUsageEstimator.shallowSizeOfInstance(StampedLock.class)
+               + RamUsageEstimator.sizeOf(filled)
+               + values.ramBytesUsed();
+      }
    }
 }
@@ -6,9 +6,21 @@ import static org.mockito.Mockito.reset;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
+import org.apache.lucene.analysis.Analyzer;
 import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.analysis.standard.StandardTokenizer;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.BooleanClause;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.BoostQuery;
+import org.apache.lucene.search.DisjunctionMaxQuery;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.TermQuery;
+import org.apache.solr.common.SolrException;
+import org.apache.solr.common.SolrException.ErrorCode;
 import org.apache.solr.common.params.DisMaxParams;
 import org.apache.solr.common.params.ModifiableSolrParams;
+import org.apache.solr.common.params.ShardParams;
 import org.apache.solr.common.params.SolrParams;
 import org.apache.solr.common.util.NamedList;
 import org.apache.solr.handler.component.ResponseBuilder;
@@ -16,6 +28,8 @@ import org.apache.solr.request.SolrQueryRequest;
 import org.apache.solr.response.SolrQueryResponse;
 import org.apache.solr.schema.FieldType;
 import org.apache.solr.schema.IndexSchema;
+import org.apache.solr.schema.SchemaField;
+import org.apache.solr.search.SolrCache;
 import org.apache.solr.search.SolrIndexSearcher;
 import org.hamcrest.CoreMatchers;
 import org.junit.Assert;
@@ -23,7 +37,17 @@ import org.junit.Before;
 import org.junit.Test;
 import org.mockito.ArgumentCaptor;
 
+import com.s24.search.solr.component.termstrategy.BmaxReRankQuery;
+import com.s24.search.solr.component.termstrategy.TermRankingClauses;
+import com.s24.search.solr.query.bmax.BmaxRequestContext;
+
+import java.io.Reader;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class BmaxBoostTermComponentTest {
 
@@ -365,4 +389,264 @@ public class BmaxBoostTermComponentTest {
         Assert.assertThat(argument.getValue().getParams("bq"),
                 CoreMatchers.equalTo(new String[] {"{!dismax qf='field1^1.0 field2^3.0 ' mm=1 bq=''} b c", "{!dismax qf='field1^-100.0 field2^-300.0 ' mm=1 bq=''} b c"}) );
     }
+
+    @Test
+    public void testThatPrebuiltQueriesAreHandedToTheRequestContext() throws Exception {
+        Map<Object, Object> requestContext = new HashMap<>();
+        when(request.getContext()).thenReturn(requestContext);
+        SchemaField field1 = new SchemaField("field1", boostTermFieldType);
+        SchemaField field2 = new SchemaField("field2", boostTermFieldType);
+        when(schema.getFieldOrNull("field1")).thenReturn(field1);
+        when(schema.getFieldOrNull("field2")).thenReturn(field2);
+
+        BmaxBoostTermComponent component = new BmaxBoostTermComponent();
+        component.init(initArgs);
+        ModifiableSolrParams params = new ModifiableSolrParams();
+        params.set("q", "a b c");
+
+        params.set(SYNONYM_ENABLE, false);
+        params.set(BOOST_ENABLE, true);
+        params.set(PENALIZE_ENABLE, true);
+        params.set(BOOST_STRATEGY, VALUE_STRATEGY_ADDITIVELY);
+        params.set(PENALIZE_STRATEGY, VALUE_STRATEGY_MULTIPLICATIVE);
+        params.set(PREBUILT_QUERIES, true);
+        params.set(DisMaxParams.QF, "field1 field2^3");
+        when(request.getParams()).thenReturn(params);
+
+        component.prepareInternal(responseBuilder);
+
+        ArgumentCaptor<SolrParams> argument = ArgumentCaptor.forClass(SolrParams.class);
+        verify(request).setParams(argument.capture());
+        Assert.assertNull(argument.getValue().getParams("bq"));
+        Assert.assertNull(argument.getValue().getParams("boost"));
+
+        BmaxRequestContext context = BmaxRequestContext.get(request);
+        Assert.assertEquals(1, context.getBoostQueries().size());
+        Assert.assertEquals(1, context.getMultiplicativeBoosts().size());
+
+        BooleanQuery boostQuery = (BooleanQuery) context.getBoostQueries().get(0);
+        Assert.assertEquals(1, boostQuery.getMinimumNumberShouldMatch());
+        Assert.assertEquals(2, boostQuery.clauses().size());
+        // 'a' was removed as it is a stopword in StandardAnalyzer
+        Query expected = new DisjunctionMaxQuery(Arrays.asList(
+                new BoostQuery(new TermQuery(new Term("field1", "b")), 1f),
+                new BoostQuery(new TermQuery(new Term("field2", "b")), 3f)), 0f);
+        Assert.assertTrue(boostQuery.clauses().stream().map(BooleanClause::getQuery).anyMatch(expected::equals));
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testThatBoostTermsAreCached() throws Exception {
+        SolrCache<Object, BoostTermExpansion> cache = mock(SolrCache.class);
+        when(solrIndexSearcher.getCache(BOOSTER_CACHE)).thenReturn(cache);
+
+        BmaxBoostTermComponent component = new BmaxBoostTermComponent();
+        component.init(initArgs);
+        ModifiableSolrParams params = new ModifiableSolrParams();
+        params.set("q", "a b c");
+
+        params.set(SYNONYM_ENABLE, false);
+        params.set(BOOST_ENABLE, true);
+        params.set(PENALIZE_ENABLE, false);
+        params.set(BOOST_STRATEGY, VALUE_STRATEGY_ADDITIVELY);
+        params.set(DisMaxParams.QF, "field1");
+        when(request.getParams()).thenReturn(params);
+
+        // cache miss, both boost and penalize terms are cached
+        component.prepareInternal(responseBuilder);
+
+        ArgumentCaptor<Object> key = ArgumentCaptor.forClass(Object.class);
+        ArgumentCaptor<BoostTermExpansion> expansion = ArgumentCaptor.forClass(BoostTermExpansion.class);
+        verify(cache).put(key.capture(), expansion.capture());
+        Assert.assertEquals("b c", expansion.getValue().getExpandedQuery());
+        Assert.assertEquals(new HashSet<>(Arrays.asList("b", "c")), expansion.getValue().getBoostTerms());
+        Assert.assertEquals(new HashSet<>(Arrays.asList("b", "c")), expansion.getValue().getPenalizeTerms());
+
+        // cache hit, the cached terms are used without analyzing again
+        when(cache.get(key.getValue())).thenReturn(new BoostTermExpansion(expansion.getValue().getQueryTerms(),
+                "b c", Collections.singleton("cached"), Collections.emptySet()));
+        reset(request);
+        when(request.getSearcher()).thenReturn(solrIndexSearcher);
+        when(request.getParams()).thenReturn(params);
+
+        component.prepareInternal(new ResponseBuilder(request, response, Collections.emptyList()));
+
+        ArgumentCaptor<SolrParams> argument = ArgumentCaptor.forClass(SolrParams.class);
+        verify(request).setParams(argument.capture());
+        Assert.assertThat(argument.getValue().getParams("bq"),
+                CoreMatchers.equalTo(new String[] {"{!dismax qf='field1^1.0 ' mm=1 bq=''} cached"}) );
+    }
+
+    @Test
+    public void testThatPrebuiltQueriesFallBackToQueryStringsForOtherQueryTypes() throws Exception {
+        Map<Object, Object> requestContext = new HashMap<>();
+        when(request.getContext()).thenReturn(requestContext);
+        SchemaField field1 = new SchemaField("field1", boostTermFieldType);
+        when(schema.getFieldOrNull("field1")).thenReturn(field1);
+
+        initArgs.add("boostQueryType", "edismax");
+        BmaxBoostTermComponent component = new BmaxBoostTermComponent();
+        component.init(initArgs);
+        ModifiableSolrParams params = new ModifiableSolrParams();
+        params.set("q", "a b c");
+
+        params.set(SYNONYM_ENABLE, false);
+        params.set(BOOST_ENABLE, true);
+        params.set(PENALIZE_ENABLE, false);
+        params.set(BOOST_STRATEGY, VALUE_STRATEGY_ADDITIVELY);
+        params.set(PREBUILT_QUERIES, true);
+        params.set(DisMaxParams.QF, "field1");
+        when(request.getParams()).thenReturn(params);
+
+        component.prepareInternal(responseBuilder);
+
+        // edismax is parsed from the query string
+        ArgumentCaptor<SolrParams> argument = ArgumentCaptor.forClass(SolrParams.class);
+        verify(request).setParams(argument.capture());
+        Assert.assertThat(argument.getValue().getParams("bq"),
+                CoreMatchers.equalTo(new String[] {"{!edismax qf='field1^1.0 ' mm=1 bq=''} b c"}) );
+        Assert.assertTrue(BmaxRequestContext.get(request).getBoostQueries().isEmpty());
+    }
+
+    @Test
+    public void testThatPrebuiltRerankAppliesBoostAndPenalizeTogether() throws Exception {
+        Map<Object, Object> requestContext = new HashMap<>();
+        when(request.getContext()).thenReturn(requestContext);
+        SchemaField field1 = new SchemaField("field1", boostTermFieldType);
+        when(schema.getFieldOrNull("field1")).thenReturn(field1);
+
+        BmaxBoostTermComponent component = new BmaxBoostTermComponent();
+        component.init(initArgs);
+        ModifiableSolrParams params = new ModifiableSolrParams();
+        params.set("q", "a b c");
+
+        params.set(SYNONYM_ENABLE, false);
+        params.set(BOOST_ENABLE, true);
+        params.set(PENALIZE_ENABLE, true);
+        params.set(BOOST_STRATEGY, VALUE_STRATEGY_RERANK);
+        params.set(PENALIZE_STRATEGY, VALUE_STRATEGY_RERANK);
+        params.set(BOOST_DOC_COUNT, 100);
+        params.set(PREBUILT_QUERIES, true);
+        params.set(DisMaxParams.QF, "field1");
+        when(request.getParams()).thenReturn(params);
+
+        component.prepareInternal(responseBuilder);
+
+        ArgumentCaptor<SolrParams> argument = ArgumentCaptor.forClass(SolrParams.class);
+        verify(request).setParams(argument.capture());
+        Assert.assertNull(argument.getValue().getParams("rq"));
+
+        // boost and penalize clauses for 'b' and 'c', reranking the maximum of both doc counts
+        Assert.assertThat(responseBuilder.getRankQuery(), CoreMatchers.instanceOf(BmaxReRankQuery.class));
+        Assert.assertEquals(4, BmaxRequestContext.get(request).getReRankClauses().size());
+        Assert.assertEquals(400, BmaxRequestContext.get(request).getReRankDocs());
+    }
+
+    @Test
+    public void testThatDistributedRequestsShipClausesToShards() throws Exception {
+        Map<Object, Object> requestContext = new HashMap<>();
+        when(request.getContext()).thenReturn(requestContext);
+        SchemaField field1 = new SchemaField("field1", boostTermFieldType);
+        when(schema.getFieldOrNull("field1")).thenReturn(field1);
+
+        BmaxBoostTermComponent component = new BmaxBoostTermComponent();
+        component.init(initArgs);
+        ModifiableSolrParams params = new ModifiableSolrParams();
+        params.set("q", "a b c");
+
+        params.set(SYNONYM_ENABLE, false);
+        params.set(BOOST_ENABLE, true);
+        params.set(PENALIZE_ENABLE, true);
+        params.set(BOOST_STRATEGY, VALUE_STRATEGY_ADDITIVELY);
+        params.set(PENALIZE_STRATEGY, VALUE_STRATEGY_RERANK);
+        params.set(PREBUILT_QUERIES, true);
+        params.set(DisMaxParams.QF, "field1");
+        when(request.getParams()).thenReturn(params);
+        responseBuilder.shards = new String[] { "shard1", "shard2" };
+
+        component.prepareInternal(responseBuilder);
+
+        // the aggregator neither adds query strings nor prebuilt queries
+        ArgumentCaptor<SolrParams> argument = ArgumentCaptor.forClass(SolrParams.class);
+        verify(request).setParams(argument.capture());
+        SolrParams shardParams = argument.getValue();
+        Assert.assertNull(shardParams.getParams("bq"));
+        Assert.assertNull(shardParams.getParams("rq"));
+        Assert.assertNotNull(shardParams.get(SHARD_CLAUSES));
+        Assert.assertNull(responseBuilder.getRankQuery());
+        Assert.assertTrue(BmaxRequestContext.get(request).getBoostQueries().isEmpty());
+
+        // the shard applies the clauses without analyzing
+        SolrQueryRequest shardRequest = mock(SolrQueryRequest.class);
+        ModifiableSolrParams shardRequestParams = new ModifiableSolrParams(shardParams);
+        shardRequestParams.set(COMPONENT_NAME, true);
+        shardRequestParams.set(ShardParams.IS_SHARD, true);
+        when(shardRequest.getParams()).thenReturn(shardRequestParams);
+        when(shardRequest.getContext()).thenReturn(new HashMap<>());
+        ResponseBuilder shardResponseBuilder = new ResponseBuilder(shardRequest, response, Collections.emptyList());
+
+        component.prepare(shardResponseBuilder);
+
+        BmaxRequestContext shardContext = BmaxRequestContext.get(shardRequest);
+        Assert.assertEquals(1, shardContext.getBoostQueries().size());
+        Assert.assertEquals(2, shardContext.getReRankClauses().size());
+        Assert.assertEquals(Collections.singletonMap(new Term("field1", "b"), -100f),
+                shardContext.getReRankClauses().get(0));
+        Assert.assertThat(shardResponseBuilder.getRankQuery(), CoreMatchers.instanceOf(BmaxReRankQuery.class));
+    }
+
+    @Test
+    public void testThatShardsRejectUnknownStrategies() throws Exception {
+        ModifiableSolrParams params = new ModifiableSolrParams();
+        params.set(COMPONENT_NAME, true);
+        params.set(ShardParams.IS_SHARD, true);
+        params.set(SHARD_CLAUSES, TermRankingClauses.encode(Collections.singletonList(new TermRankingClauses(
+                "unknown", 1f, 400, Collections.singletonList(Collections.singletonMap(new Term("field1", "b"), 1f))))));
+        when(request.getParams()).thenReturn(params);
+        when(request.getContext()).thenReturn(new HashMap<>());
+
+        BmaxBoostTermComponent component = new BmaxBoostTermComponent();
+        component.init(initArgs);
+
+        try {
+            component.prepare(responseBuilder);
+            Assert.fail("Unknown strategies must be rejected.");
+        } catch (SolrException e) {
+            Assert.assertEquals(ErrorCode.BAD_REQUEST.code, e.code());
+        }
+    }
+
+    @Test
+    public void testThatSynonymsAreAnalyzedPerTermLikeTheQueryParser() throws Exception {
+        AtomicInteger analyzed = new AtomicInteger();
+        Analyzer synonymAnalyzer = new Analyzer() {
+            @Override
+            protected TokenStreamComponents createComponents(String fieldName) {
+                return new TokenStreamComponents(new StandardTokenizer());
+            }
+
+            @Override
+            protected Reader initReader(String fieldName, Reader reader) {
+                analyzed.incrementAndGet();
+                return reader;
+            }
+        };
+        FieldType synonymFieldType = mock(FieldType.class);
+        when(schema.getFieldTypeByName("synonymFieldType")).thenReturn(synonymFieldType);
+        when(synonymFieldType.getQueryAnalyzer()).thenReturn(synonymAnalyzer);
+
+        BmaxBoostTermComponent component = new BmaxBoostTermComponent();
+        component.init(initArgs);
+        ModifiableSolrParams params = new ModifiableSolrParams();
+        params.set("q", "a b c");
+        BmaxRequestContext context = new BmaxRequestContext();
+
+        Assert.assertEquals("b c b c", component.getExpandedQuery(params, schema, true, context));
+        Assert.assertEquals(2, analyzed.get());
+
+        // the query parser analyzes the synonyms of the same terms, they are taken from the request context
+        Assert.assertEquals(Collections.singleton("b"), context.collect("b", synonymAnalyzer));
+        Assert.assertEquals(Collections.singleton("c"), context.collect("c", synonymAnalyzer));
+        Assert.assertEquals(2, analyzed.get());
+    }
 }
@@ -0,0 +1,113 @@
+package com.s24.search.solr.component.termstrategy;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field.Store;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.BoostQuery;
+import org.apache.lucene.search.DisjunctionMaxQuery;
+import org.apache.lucene.search.Explanation;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.RAMDirectory;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class BmaxTermRescorerTest {
+
+    private Directory directory;
+    private DirectoryReader reader;
+
+    @Before
+    public void setUp() throws Exception {
+        directory = new RAMDirectory();
+        try (IndexWriter writer = new IndexWriter(directory, new IndexWriterConfig(new StandardAnalyzer()))) {
+            // two segments to rescore across leaves
+            addDocument(writer, "bike", "red");
+            addDocument(writer, "car", "red");
+            writer.commit();
+            addDocument(writer, "bike", "blue");
+            addDocument(writer, "bicycle", "green");
+        }
+        reader = DirectoryReader.open(directory);
+    }
+
+    private static void addDocument(IndexWriter writer, String title, String color) throws Exception {
+        Document doc = new Document();
+        doc.add(new StringField("title", title, Store.NO));
+        doc.add(new StringField("color", color, Store.NO));
+        writer.addDocument(doc);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        reader.close();
+        directory.close();
+    }
+
+    @Test
+    public void testBoostAndPenalizeInOnePass() throws Exception {
+        // boost "bike" in title (or less in color), penalize "red"
+        Map<Term, Float> boost = new LinkedHashMap<>();
+        boost.put(new Term("title", "bike"), 10f);
+        boost.put(new Term("color", "bike"), 1f);
+        Map<Term, Float> penalize = Collections.singletonMap(new Term("color", "red"), -100f);
+        List<Map<Term, Float>> clauses = Arrays.asList(boost, penalize);
+        BmaxTermRescorer rescorer = new BmaxTermRescorer(clauses);
+
+        IndexSearcher searcher = new IndexSearcher(reader);
+        TopDocs firstPass = new TopDocs(4, new ScoreDoc[] {
+                new ScoreDoc(0, 4f), new ScoreDoc(1, 3f), new ScoreDoc(2, 2f), new ScoreDoc(3, 1f) }, 4f);
+
+        TopDocs rescored = rescorer.rescore(searcher, firstPass, 3);
+
+        // scored like {!rerank} scores the query of the clauses
+        Query query = AbstractTermRankingStrategy.toQuery(clauses);
+        assertEquals(3, rescored.scoreDocs.length);
+        assertEquals(2, rescored.scoreDocs[0].doc);
+        assertEquals(2f + 2f * searcher.explain(query, 2).getValue(), rescored.scoreDocs[0].score, 1e-4f);
+        assertEquals(3, rescored.scoreDocs[1].doc);
+        assertEquals(1f, rescored.scoreDocs[1].score, 0f);
+        assertEquals(0, rescored.scoreDocs[2].doc);
+        assertEquals(4f + 2f * searcher.explain(query, 0).getValue(), rescored.scoreDocs[2].score, 1e-4f);
+        assertTrue(rescored.scoreDocs[2].score < 0f);
+
+        Explanation explanation = rescorer.explain(searcher, Explanation.match(4f, "first pass"), 0);
+        assertEquals(rescored.scoreDocs[2].score, explanation.getValue(), 1e-4f);
+    }
+
+    @Test
+    public void testFieldTermsAreSummedWithinTheField() throws Exception {
+        // a field analysis yielding two tokens is scored like dismax scores it: summed within the field
+        Map<Term, Float> clause = new LinkedHashMap<>();
+        clause.put(new Term("title", "bike"), 2f);
+        clause.put(new Term("color", "blue"), 2f);
+        clause.put(new Term("color", "red"), 2f);
+
+        BooleanQuery query = (BooleanQuery) AbstractTermRankingStrategy.toQuery(Collections.singletonList(clause));
+        DisjunctionMaxQuery dismax = (DisjunctionMaxQuery) query.clauses().get(0).getQuery();
+        assertEquals(2, dismax.getDisjuncts().size());
+
+        BoostQuery color = (BoostQuery) dismax.getDisjuncts().get(1);
+        assertEquals(2f, color.getBoost(), 0f);
+        assertEquals(2, ((BooleanQuery) color.getQuery()).clauses().size());
+    }
+}
@@ -0,0 +1,48 @@
+package com.s24.search.solr.component.termstrategy;
+
+import org.apache.lucene.index.Term;
+import org.apache.lucene.util.BytesRef;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+
+public class TermRankingClausesTest {
+
+    @Test
+    public void testEncodeAndDecode() {
+        Map<Term, Float> clause = new LinkedHashMap<>();
+        clause.put(new Term("field1", "bürste"), 1f);
+        clause.put(new Term("field2", new BytesRef(new byte[] { 0, (byte) 0xff })), 3f);
+
+        List<TermRankingClauses> clauses = Arrays.asList(
+                new TermRankingClauses("bq", 2f, 400, Collections.singletonList(clause)),
+                new TermRankingClauses("rq", -100f, 50, Collections.emptyList()));
+
+        String encoded = TermRankingClauses.encode(clauses);
+        List<TermRankingClauses> decoded = TermRankingClauses.decode(encoded);
+
+        assertEquals(2, decoded.size());
+        assertEquals("bq", decoded.get(0).getStrategy());
+        assertEquals(2f, decoded.get(0).getFactor(), 0f);
+        assertEquals(400, decoded.get(0).getDocs());
+        assertEquals(Collections.singletonList(clause), decoded.get(0).getClauses());
+        assertEquals("rq", decoded.get(1).getStrategy());
+        assertEquals(-100f, decoded.get(1).getFactor(), 0f);
+        assertEquals(50, decoded.get(1).getDocs());
+        assertEquals(Collections.emptyList(), decoded.get(1).getClauses());
+
+        // safe to be sent as a request param
+        assertEquals(true, encoded.matches("[A-Za-z0-9_-]+"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testDecodeMalformed() {
+        TermRankingClauses.decode("AQ");
+    }
+}
@@ -0,0 +1,72 @@
+package com.s24.search.solr.functions;
+
+import org.apache.log4j.BasicConfigurator;
+import org.apache.lucene.queries.function.ValueSource;
+import org.apache.lucene.queries.function.valuesource.ConstValueSource;
+import org.apache.lucene.queries.function.valuesource.DivFloatFunction;
+import org.apache.lucene.queries.function.valuesource.IntFieldSource;
+import org.apache.lucene.queries.function.valuesource.ProductFloatFunction;
+import org.apache.lucene.queries.function.valuesource.SumFloatFunction;
+import org.apache.solr.SolrTestCaseJ4;
+import org.apache.solr.SolrTestCaseJ4.SuppressSSL;
+import org.apache.solr.schema.ExternalFileField;
+import org.apache.solr.schema.SchemaField;
+import org.apache.solr.schema.StrField;
+import org.apache.solr.search.SolrCache;
+import org.apache.solr.search.SolrIndexSearcher;
+import org.apache.solr.search.function.FileFloatSource;
+import org.apache.solr.util.RefCounted;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+@SuppressSSL
+public class CachedBoostListenerTest extends SolrTestCaseJ4 {
+
+   @BeforeClass
+   public static void setupCachedBoostCore() throws Exception {
+      BasicConfigurator.resetConfiguration();
+      BasicConfigurator.configure();
+
+      // setup core
+      initCore("bmax-cached-boost-solrconfig.xml", "bmax-simple-schema.xml");
+   }
+
+   @Test
+   public void testFunctionsAreBuiltAndCarriedOver() throws Exception {
+      // built for the first searcher, the broken function is logged only
+      FloatCachingValueSource constant = cachedValueSource("constant");
+      assertNotNull(constant);
+      assertNull(cachedValueSource("broken"));
+
+      // the entry warmed by the regenerator is kept by the listener
+      assertU(adoc("id", "1"));
+      assertU(commit());
+      assertSame(constant, cachedValueSource("constant"));
+      assertNull(cachedValueSource("broken"));
+   }
+
+   @Test
+   public void testFunctionsOfExternalFileFieldsAreDetected() throws Exception {
+      SchemaField field = new SchemaField("popularity_ext", new ExternalFileField());
+      SchemaField keyField = new SchemaField("id", new StrField());
+      ValueSource file = new FileFloatSource(field, keyField, 0f, createTempDir().toString());
+
+      // nested in the arguments of other functions
+      assertTrue(CachedBoostListener.readsExternalFile(new ProductFloatFunction(new ValueSource[] {
+            new ConstValueSource(2f),
+            new SumFloatFunction(new ValueSource[] { new DivFloatFunction(file, new ConstValueSource(1f)) }) })));
+      assertFalse(CachedBoostListener.readsExternalFile(new ProductFloatFunction(new ValueSource[] {
+            new ConstValueSource(2f), new IntFieldSource("popularity") })));
+   }
+
+   private FloatCachingValueSource cachedValueSource(String key) {
+      RefCounted<SolrIndexSearcher> searcher = h.getCore().getSearcher();
+      try {
+         @SuppressWarnings("unchecked")
+         SolrCache<String, FloatCachingValueSource> cache = searcher.get().getCache("bmax.boostCache");
+         return cache.get(key);
+      } finally {
+         searcher.decref();
+      }
+   }
+}
@@ -0,0 +1,168 @@
+package com.s24.search.solr.functions;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyBoolean;
+import static org.mockito.Matchers.anyFloat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field.Store;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.queries.function.FunctionValues;
+import org.apache.lucene.queries.function.ValueSource;
+import org.apache.lucene.queries.function.valuesource.QueryValueSource;
+import org.apache.lucene.search.BooleanClause.Occur;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.BoostQuery;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.RAMDirectory;
+import org.apache.solr.search.SolrCache;
+import org.apache.solr.search.SolrIndexSearcher;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class CachedQueryValueSourceTest {
+
+   private Directory directory;
+   private DirectoryReader reader;
+
+   @Before
+   public void setUp() throws Exception {
+      directory = new RAMDirectory();
+      try (IndexWriter writer = new IndexWriter(directory, new IndexWriterConfig(new StandardAnalyzer()))) {
+         // two segments
+         for (String category : new String[] { "bike", "accessory" }) {
+            addDocument(writer, category);
+         }
+         writer.commit();
+         for (String category : new String[] { "spare", "bike" }) {
+            addDocument(writer, category);
+         }
+      }
+      reader = DirectoryReader.open(directory);
+   }
+
+   private static void addDocument(IndexWriter writer, String category) throws Exception {
+      Document doc = new Document();
+      doc.add(new StringField("category", category, Store.NO));
+      writer.addDocument(doc);
+   }
+
+   @After
+   public void tearDown() throws Exception {
+      reader.close();
+      directory.close();
+   }
+
+   @Test
+   public void testCachedValuesMatchQueryFunction() throws Exception {
+      Query query = new BooleanQuery.Builder()
+            .add(new BoostQuery(new TermQuery(new Term("category", "accessory")), 2f), Occur.SHOULD)
+            .add(new TermQuery(new Term("category", "spare")), Occur.SHOULD)
+            .build();
+
+      float[] expected = values(new QueryValueSource(query, 0f));
+      for (int cacheHint = 0; cacheHint <= 2; cacheHint++) {
+         float[] cached = values(new CachedQueryValueSource(query, 1f, null, cacheHint));
+         float[] negated = values(new CachedQueryValueSource(query, -1f, null, cacheHint));
+
+         for (int doc = 0; doc < expected.length; doc++) {
+            assertEquals(expected[doc], cached[doc], 0.0001f);
+            assertEquals(-expected[doc], negated[doc], 0.0001f);
+         }
+      }
+
+      assertEquals(0f, expected[0], 0f);
+      assertTrue(expected[1] > expected[2]);
+      assertTrue(expected[2] > 0f);
+      assertEquals(0f, expected[3], 0f);
+   }
+
+   @Test
+   public void testCachedValuesAreCarriedOverPerSegment() throws Exception {
+      Query query = new TermQuery(new Term("category", "bike"));
+      Map<Object, Object> entries = new HashMap<>();
+      SolrCache<Object, Object> cache = cache(entries);
+      CachedQueryValueSource valueSource = new CachedQueryValueSource(query, 1f, "bmax.boosterCache",
+            FloatCachingValueSource.CACHE_SPARSE);
+
+      assertArrayEquals(values(new QueryValueSource(query, 0f)), values(valueSource, searcher(reader, cache)),
+            0.0001f);
+      assertEquals(1, entries.size());
+
+      // the first segment is merged away, the doc ids of the second one are shifted
+      try (IndexWriter writer = new IndexWriter(directory, new IndexWriterConfig(new StandardAnalyzer()))) {
+         writer.deleteDocuments(new Term("category", "accessory"));
+         writer.forceMerge(1);
+      }
+      DirectoryReader merged = DirectoryReader.openIfChanged(reader);
+      reader.close();
+      reader = merged;
+
+      // the entry is carried over as is, like the NoOpRegenerator does
+      assertArrayEquals(values(new QueryValueSource(query, 0f)), values(valueSource, searcher(reader, cache)),
+            0.0001f);
+      assertEquals(1, entries.size());
+   }
+
+   /**
+    * Returns a cache backed by the given map.
+    */
+   @SuppressWarnings("unchecked")
+   private static SolrCache<Object, Object> cache(Map<Object, Object> entries) {
+      SolrCache<Object, Object> cache = mock(SolrCache.class);
+      when(cache.get(any())).thenAnswer(invocation -> entries.get(invocation.getArguments()[0]));
+      when(cache.put(any(), any())).thenAnswer(
+            invocation -> entries.put(invocation.getArguments()[0], invocation.getArguments()[1]));
+      return cache;
+   }
+
+   /**
+    * Returns a Solr searcher over the given reader, scoring like a plain searcher.
+    */
+   private static SolrIndexSearcher searcher(DirectoryReader reader, SolrCache<Object, Object> cache) throws Exception {
+      IndexSearcher delegate = new IndexSearcher(reader);
+      SolrIndexSearcher searcher = mock(SolrIndexSearcher.class);
+      when(searcher.<Object, Object> getCache("bmax.boosterCache")).thenReturn(cache);
+      when(searcher.rewrite(any(Query.class)))
+            .thenAnswer(invocation -> delegate.rewrite((Query) invocation.getArguments()[0]));
+      when(searcher.createWeight(any(Query.class), anyBoolean(), anyFloat())).thenAnswer(invocation -> delegate
+            .createWeight((Query) invocation.getArguments()[0], true, (Float) invocation.getArguments()[2]));
+      return searcher;
+   }
+
+   private float[] values(ValueSource valueSource) throws Exception {
+      return values(valueSource, new IndexSearcher(reader));
+   }
+
+   private float[] values(ValueSource valueSource, IndexSearcher searcher) throws Exception {
+      Map<?, ?> context = ValueSource.newContext(searcher);
+      valueSource.createWeight(context, searcher);
+
+      float[] values = new float[reader.maxDoc()];
+      for (LeafReaderContext leaf : reader.leaves()) {
+         FunctionValues functionValues = valueSource.getValues(context, leaf);
+         for (int doc = 0; doc < leaf.reader().maxDoc(); doc++) {
+            values[leaf.docBase + doc] = functionValues.floatVal(doc);
+         }
+      }
+      return values;
+   }
+}
@@ -0,0 +1,163 @@
+package com.s24.search.solr.functions;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field.Store;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.queries.function.FunctionValues;
+import org.apache.lucene.queries.function.ValueSource;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.RAMDirectory;
+import org.apache.lucene.util.FixedBitSet;
+import org.apache.solr.search.BitDocSet;
+import org.apache.solr.search.DocSet;
+import org.apache.solr.search.SolrCache;
+import org.apache.solr.search.SolrIndexSearcher;
+import org.apache.solr.search.SortedIntDocSet;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class DocSetFactorValueSourceTest {
+
+   private Directory directory;
+   private DirectoryReader reader;
+
+   @Before
+   public void setUp() throws Exception {
+      directory = new RAMDirectory();
+      try (IndexWriter writer = new IndexWriter(directory, new IndexWriterConfig(new StandardAnalyzer()))) {
+         // two segments
+         for (String category : new String[] { "bike", "accessory" }) {
+            addDocument(writer, category);
+         }
+         writer.commit();
+         for (String category : new String[] { "spare", "bike" }) {
+            addDocument(writer, category);
+         }
+      }
+      reader = DirectoryReader.open(directory);
+   }
+
+   private static void addDocument(IndexWriter writer, String category) throws Exception {
+      Document doc = new Document();
+      doc.add(new StringField("category", category, Store.NO));
+      writer.addDocument(doc);
+   }
+
+   @After
+   public void tearDown() throws Exception {
+      reader.close();
+      directory.close();
+   }
+
+   @Test
+   public void testFactorForMatchingDocuments() throws Exception {
+      ValueSource valueSource = new DocSetFactorValueSource(Arrays.asList(
+            new TermQuery(new Term("category", "accessory")),
+            new TermQuery(new Term("category", "spare"))), 0.01f, null);
+
+      IndexSearcher searcher = new IndexSearcher(reader);
+      Map<?, ?> context = ValueSource.newContext(searcher);
+      valueSource.createWeight(context, searcher);
+
+      float[] values = new float[reader.maxDoc()];
+      for (LeafReaderContext leaf : reader.leaves()) {
+         FunctionValues functionValues = valueSource.getValues(context, leaf);
+         for (int doc = 0; doc < leaf.reader().maxDoc(); doc++) {
+            values[leaf.docBase + doc] = functionValues.floatVal(doc);
+         }
+      }
+
+      assertEquals(2, reader.leaves().size());
+      assertEquals(1f, values[0], 0f);
+      assertEquals(0.01f, values[1], 0f);
+      assertEquals(0.01f, values[2], 0f);
+      assertEquals(1f, values[3], 0f);
+   }
+
+   @Test
+   public void testFactorForSingleQuery() throws Exception {
+      ValueSource valueSource = new DocSetFactorValueSource(
+            Collections.singletonList(new TermQuery(new Term("category", "bike"))), 2f, null);
+
+      IndexSearcher searcher = new IndexSearcher(reader);
+      Map<?, ?> context = ValueSource.newContext(searcher);
+      valueSource.createWeight(context, searcher);
+
+      float[] values = new float[reader.maxDoc()];
+      for (LeafReaderContext leaf : reader.leaves()) {
+         FunctionValues functionValues = valueSource.getValues(context, leaf);
+         for (int doc = 0; doc < leaf.reader().maxDoc(); doc++) {
+            values[leaf.docBase + doc] = functionValues.floatVal(doc);
+         }
+      }
+
+      assertArrayEquals(new float[] { 2f, 1f, 1f, 2f }, values, 0f);
+   }
+
+   @Test
+   @SuppressWarnings("unchecked")
+   public void testCachedDocSetsOfEachQueryAreCombined() throws Exception {
+      TermQuery accessory = new TermQuery(new Term("category", "accessory"));
+      TermQuery spare = new TermQuery(new Term("category", "spare"));
+
+      // the doc sets are taken from the cache, sparse ones stay sorted
+      SolrCache<Query, DocSet> cache = mock(SolrCache.class);
+      when(cache.get(accessory)).thenReturn(new SortedIntDocSet(new int[] { 1 }));
+      SolrIndexSearcher searcher = mock(SolrIndexSearcher.class);
+      when(searcher.getCache("docsets")).thenReturn(cache);
+
+      FixedBitSet spareBits = new FixedBitSet(reader.maxDoc());
+      spareBits.set(2);
+      when(cache.get(spare)).thenReturn(new BitDocSet(spareBits));
+
+      ValueSource valueSource = new DocSetFactorValueSource(Arrays.asList(accessory, spare), 0.01f, "docsets");
+      Map<Object, Object> context = new HashMap<>();
+      context.put("searcher", searcher);
+      valueSource.createWeight(context, searcher);
+
+      float[] values = new float[reader.maxDoc()];
+      for (LeafReaderContext leaf : reader.leaves()) {
+         FunctionValues functionValues = valueSource.getValues(context, leaf);
+         for (int doc = 0; doc < leaf.reader().maxDoc(); doc++) {
+            values[leaf.docBase + doc] = functionValues.floatVal(doc);
+         }
+      }
+
+      assertArrayEquals(new float[] { 1f, 0.01f, 0.01f, 1f }, values, 0f);
+      verify(cache, never()).put(any(Query.class), any(DocSet.class));
+   }
+
+   @Test
+   public void testEquals() {
+      TermQuery query = new TermQuery(new Term("category", "accessory"));
+
+      assertEquals(new DocSetFactorValueSource(Collections.singletonList(query), 0.01f, null),
+            new DocSetFactorValueSource(Collections.singletonList(query), 0.01f, null));
+      assertNotEquals(new DocSetFactorValueSource(Collections.singletonList(query), 0.01f, null),
+            new DocSetFactorValueSource(Collections.singletonList(query), 0.1f, null));
+   }
+}
@@ -3,23 +3,57 @@ package com.s24.search.solr.functions;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 import static org.mockito.Matchers.any;
 import static org.mockito.Mockito.when;
 
+import java.lang.ref.WeakReference;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field.Store;
+import org.apache.lucene.document.NumericDocValuesField;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
 
 import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.Term;
 import org.apache.lucene.queries.function.FunctionValues;
 import org.apache.lucene.queries.function.ValueSource;
+import org.apache.lucene.queries.function.docvalues.FloatDocValues;
+import org.apache.lucene.queries.function.valuesource.LongFieldSource;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.RAMDirectory;
 import org.junit.Before;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
 
+import com.s24.search.solr.util.packed.OffsetGrowableFloatWriter;
+
 public class FloatCachingValueSourceTest {
 
-   private static final int MAX_DOC = 42;
+   // the largest value the half float cache holds
+   private static final float MAX_HALF = 65504f;
+
+   @Rule
+   public TemporaryFolder temporaryFolder = new TemporaryFolder();
 
    @Mock
    private ValueSource mockSource;
@@ -33,7 +67,7 @@ public class FloatCachingValueSourceTest {
    public void setUp() throws Exception {
       MockitoAnnotations.initMocks(this);
       when(mockSource.getValues(any(Map.class), any(LeafReaderContext.class))).thenReturn(mockValues);
-      valueSource = new FloatCachingValueSource(mockSource, MAX_DOC, FloatCachingValueSource.CACHE_FAST);
+      valueSource = new FloatCachingValueSource(mockSource, FloatCachingValueSource.CACHE_FAST);
    }
 
    @Test
@@ -49,8 +83,27 @@ public class FloatCachingValueSourceTest {
       assertFalse(valueSource.equals(null));
       assertFalse(valueSource.equals(new Object()));
       assertTrue(valueSource.equals(valueSource));
-      assertTrue(valueSource.equals(new FloatCachingValueSource(mockSource, MAX_DOC, FloatCachingValueSource.CACHE_FAST)));
-      assertEquals(valueSource.hashCode(), new FloatCachingValueSource(mockSource, MAX_DOC, FloatCachingValueSource.CACHE_FAST).hashCode());
+      assertTrue(valueSource.equals(new FloatCachingValueSource(mockSource, FloatCachingValueSource.CACHE_FAST)));
+      assertEquals(valueSource.hashCode(), new FloatCachingValueSource(mockSource, FloatCachingValueSource.CACHE_FAST).hashCode());
+   }
+
+   @Test
+   public void testParseCacheHint() throws Exception {
+      assertEquals(FloatCachingValueSource.CACHE_FAST, FloatCachingValueSource.parseCacheHint(null));
+      assertEquals(FloatCachingValueSource.CACHE_ADAPTIVE, FloatCachingValueSource.parseCacheHint("adaptive"));
+      assertEquals(FloatCachingValueSource.CACHE_FAST, FloatCachingValueSource.parseCacheHint("fast"));
+      assertEquals(FloatCachingValueSource.CACHE_OFFSET_PACKED,
+            FloatCachingValueSource.parseCacheHint("CACHE_OFFSET_PACKED"));
+      assertEquals(FloatCachingValueSource.CACHE_SPARSE, FloatCachingValueSource.parseCacheHint(" sparse "));
+      assertEquals(FloatCachingValueSource.CACHE_HALF, FloatCachingValueSource.parseCacheHint("half"));
+      assertEquals(FloatCachingValueSource.CACHE_BFLOAT16, FloatCachingValueSource.parseCacheHint("bfloat16"));
+      assertTrue(FloatCachingValueSource.createCache(10, FloatCachingValueSource.CACHE_BFLOAT16)
+            instanceof OffsetGrowableFloatWriter);
+   }
+
+   @Test(expected = IllegalArgumentException.class)
+   public void testParseUnknownCacheHint() throws Exception {
+      FloatCachingValueSource.parseCacheHint("dense");
    }
 
    @Test
@@ -62,4 +115,297 @@ public class FloatCachingValueSourceTest {
    public void testToString() throws Exception {
       assertNotNull(valueSource.toString());
    }
+
+   @Test
+   public void testValuesAreCachedPerSegmentAndWarmedAcrossReopen() throws Exception {
+      final AtomicInteger computed = new AtomicInteger();
+      ValueSource docIdSource = docIdSource(computed);
+      FloatCachingValueSource cachingSource = new FloatCachingValueSource(docIdSource,
+            FloatCachingValueSource.CACHE_SPARSE);
+
+      try (Directory directory = new RAMDirectory();
+            IndexWriter writer = new IndexWriter(directory, new IndexWriterConfig(new StandardAnalyzer()))) {
+         // two segments
+         writer.addDocument(new Document());
+         writer.addDocument(new Document());
+         writer.commit();
+         writer.addDocument(new Document());
+         writer.commit();
+
+         DirectoryReader reader = DirectoryReader.open(directory);
+         assertEquals(2, reader.leaves().size());
+
+         // every segment is cached, leaf doc ids do not collide
+         for (int i = 0; i < 2; i++) {
+            assertValues(cachingSource, reader);
+         }
+         assertEquals(3, computed.get());
+
+         // unchanged segments keep their values after reopening
+         writer.addDocument(new Document());
+         writer.commit();
+         DirectoryReader reopened = DirectoryReader.openIfChanged(reader);
+         reader.close();
+
+         assertEquals(3, reopened.leaves().size());
+         assertValues(cachingSource, reopened);
+         assertEquals(4, computed.get());
+
+         // warming computes the values of new segments only, queries read cached values
+         writer.addDocument(new Document());
+         writer.commit();
+         DirectoryReader warmed = DirectoryReader.openIfChanged(reopened);
+         reopened.close();
+
+         ExecutorService executor = Executors.newFixedThreadPool(2);
+         try {
+            cachingSource.warm(new IndexSearcher(warmed), executor);
+         } finally {
+            executor.shutdown();
+         }
+         assertEquals(5, computed.get());
+         assertValues(cachingSource, warmed);
+         assertEquals(5, computed.get());
+         warmed.close();
+      }
+   }
+
+   @Test
+   public void testAdaptiveValuesArePackedWhenWarmedOrFilledLazily() throws Exception {
+      final AtomicInteger computed = new AtomicInteger();
+
+      try (Directory directory = new RAMDirectory();
+            IndexWriter writer = new IndexWriter(directory, new IndexWriterConfig(new StandardAnalyzer()))) {
+         for (int i = 0; i < 10000; i++) {
+            writer.addDocument(new Document());
+         }
+         writer.forceMerge(1);
+
+         try (DirectoryReader reader = DirectoryReader.open(writer)) {
+            FloatCachingValueSource warmed = new FloatCachingValueSource(docIdSource(computed),
+                  FloatCachingValueSource.CACHE_ADAPTIVE);
+            warmed.warm(new IndexSearcher(reader));
+            assertValues(warmed, reader);
+            assertEquals(10000, computed.get());
+
+            // filling every document of a block packs it without warming
+            FloatCachingValueSource lazy = new FloatCachingValueSource(docIdSource(computed),
+                  FloatCachingValueSource.CACHE_ADAPTIVE);
+            assertValues(lazy, reader);
+            assertEquals(20000, computed.get());
+
+            // less than the float arrays of the three blocks, 26 bits are needed for the ids of a block
+            for (FloatCachingValueSource cachingSource : new FloatCachingValueSource[] { warmed, lazy }) {
+               assertTrue(cachingSource.toString(), cachingSource.cachedBytes() < 3 * 4096 * Float.BYTES);
+            }
+         }
+      }
+   }
+
+   @Test
+   public void testSegmentsDoNotKeepValueSourcesReachable() throws Exception {
+      try (Directory directory = new RAMDirectory();
+            IndexWriter writer = new IndexWriter(directory, new IndexWriterConfig(new StandardAnalyzer()))) {
+         writer.addDocument(new Document());
+         writer.commit();
+
+         try (DirectoryReader reader = DirectoryReader.open(directory)) {
+            // a value source per searcher, the segment outlives it
+            FloatCachingValueSource cachingSource = new FloatCachingValueSource(docIdSource(new AtomicInteger()),
+                  FloatCachingValueSource.CACHE_FAST);
+            cachingSource.warm(new IndexSearcher(reader));
+            WeakReference<FloatCachingValueSource> reference = new WeakReference<>(cachingSource);
+            cachingSource = null;
+
+            for (int i = 0; i < 10 && reference.get() != null; i++) {
+               System.gc();
+               Thread.sleep(10);
+            }
+            assertNull(reference.get());
+         }
+      }
+   }
+
+   @Test
+   public void testMappedValuesAreReattachedAndMergedSegmentsRemoved() throws Exception {
+      final AtomicInteger computed = new AtomicInteger();
+      final AtomicBoolean closing = new AtomicBoolean();
+      Path values = temporaryFolder.newFolder().toPath();
+
+      try (Directory directory = new RAMDirectory();
+            IndexWriter writer = new IndexWriter(directory, new IndexWriterConfig(new StandardAnalyzer()))) {
+         writer.addDocument(new Document());
+         writer.addDocument(new Document());
+         writer.commit();
+         writer.addDocument(new Document());
+         writer.commit();
+
+         // the files are kept when the segments are closed with the core
+         try (DirectoryReader reader = DirectoryReader.open(directory)) {
+            new FloatCachingValueSource(docIdSource(computed), FloatCachingValueSource.CACHE_MAPPED, values,
+                  closing::get).warm(new IndexSearcher(reader));
+            assertEquals(3, computed.get());
+            assertEquals(2, Files.list(values).count());
+            closing.set(true);
+         }
+         assertEquals(2, Files.list(values).count());
+         closing.set(false);
+
+         // a new value source, e.g. after a restart, reattaches the values
+         DirectoryReader reader = DirectoryReader.open(directory);
+         FloatCachingValueSource restarted = new FloatCachingValueSource(docIdSource(computed),
+               FloatCachingValueSource.CACHE_MAPPED, values, closing::get);
+         restarted.warm(new IndexSearcher(reader));
+         assertValues(restarted, reader);
+         assertEquals(3, computed.get());
+
+         // the files of merged segments are removed once the segments are closed
+         writer.forceMerge(1);
+         writer.commit();
+         DirectoryReader merged = DirectoryReader.openIfChanged(reader);
+         restarted.warm(new IndexSearcher(merged));
+         assertValues(restarted, merged);
+         assertEquals(6, computed.get());
+         assertEquals(3, Files.list(values).count());
+
+         reader.close();
+         assertEquals(1, Files.list(values).count());
+         merged.close();
+      }
+   }
+
+   @Test
+   public void testUpdatedDocValuesAreCachedAnew() throws Exception {
+      for (int hint : new int[] { FloatCachingValueSource.CACHE_FAST, FloatCachingValueSource.CACHE_MAPPED }) {
+         FloatCachingValueSource cachingSource = new FloatCachingValueSource(new LongFieldSource("popularity"), hint,
+               temporaryFolder.newFolder().toPath());
+
+         try (Directory directory = new RAMDirectory();
+               IndexWriter writer = new IndexWriter(directory, new IndexWriterConfig(new StandardAnalyzer()))) {
+            for (int i = 0; i < 2; i++) {
+               Document document = new Document();
+               document.add(new StringField("id", Integer.toString(i), Store.NO));
+               document.add(new NumericDocValuesField("popularity", i + 1));
+               writer.addDocument(document);
+            }
+            writer.commit();
+
+            DirectoryReader reader = DirectoryReader.open(directory);
+            cachingSource.warm(new IndexSearcher(reader));
+            assertEquals(1f, cachingSource.getValues(new HashMap<>(), reader.leaves().get(0)).floatVal(0), 0f);
+
+            // the update keeps the segment core
+            writer.updateNumericDocValue(new Term("id", "0"), "popularity", 5L);
+            writer.commit();
+            DirectoryReader updated = DirectoryReader.openIfChanged(reader);
+            assertSame(reader.leaves().get(0).reader().getCoreCacheHelper().getKey(),
+                  updated.leaves().get(0).reader().getCoreCacheHelper().getKey());
+
+            cachingSource.warm(new IndexSearcher(updated));
+            FunctionValues values = cachingSource.getValues(new HashMap<>(), updated.leaves().get(0));
+            assertEquals(5f, values.floatVal(0), 0f);
+            assertEquals(2f, values.floatVal(1), 0f);
+            assertTrue(cachingSource.toString(), cachingSource.toString().contains("cache.segments=1"));
+
+            reader.close();
+            updated.close();
+         }
+      }
+   }
+
+   @Test
+   public void testNonFiniteValuesAreCachedByEveryHint() throws Exception {
+      final float[] values = { Float.NEGATIVE_INFINITY, Float.NaN, Float.POSITIVE_INFINITY, 1f };
+      ValueSource nonFiniteSource = new ValueSource() {
+         @Override
+         public FunctionValues getValues(@SuppressWarnings("rawtypes") Map context, LeafReaderContext readerContext) {
+            return new FloatDocValues(this) {
+               @Override
+               public float floatVal(int doc) {
+                  return values[doc % values.length];
+               }
+            };
+         }
+
+         @Override
+         public boolean equals(Object o) {
+            return o == this;
+         }
+
+         @Override
+         public int hashCode() {
+            return 0;
+         }
+
+         @Override
+         public String description() {
+            return "log(x)";
+         }
+      };
+
+      try (Directory directory = new RAMDirectory();
+            IndexWriter writer = new IndexWriter(directory, new IndexWriterConfig(new StandardAnalyzer()))) {
+         for (int i = 0; i < 8; i++) {
+            writer.addDocument(new Document());
+         }
+         writer.commit();
+
+         try (DirectoryReader reader = DirectoryReader.open(directory)) {
+            for (int hint = FloatCachingValueSource.CACHE_FAST; hint <= FloatCachingValueSource.CACHE_BFLOAT16; hint++) {
+               FloatCachingValueSource cachingSource = hint == FloatCachingValueSource.CACHE_MAPPED
+                     ? new FloatCachingValueSource(nonFiniteSource, hint, temporaryFolder.newFolder().toPath())
+                     : new FloatCachingValueSource(nonFiniteSource, hint);
+               cachingSource.warm(new IndexSearcher(reader));
+
+               // infinities are clamped at most, NaN is a missing value computed again
+               FunctionValues cached = cachingSource.getValues(new HashMap<>(), reader.leaves().get(0));
+               for (int doc = 0; doc < 8; doc += values.length) {
+                  assertTrue("hint: " + hint, cached.floatVal(doc) <= -MAX_HALF);
+                  assertTrue("hint: " + hint, Float.isNaN(cached.floatVal(doc + 1)));
+                  assertTrue("hint: " + hint, cached.floatVal(doc + 2) >= MAX_HALF);
+                  assertEquals("hint: " + hint, 1f, cached.floatVal(doc + 3), 0.01f);
+               }
+            }
+         }
+      }
+   }
+
+   private static ValueSource docIdSource(final AtomicInteger computed) {
+      return new ValueSource() {
+         @Override
+         public FunctionValues getValues(@SuppressWarnings("rawtypes") Map context, LeafReaderContext readerContext) {
+            return new FloatDocValues(this) {
+               @Override
+               public float floatVal(int doc) {
+                  computed.incrementAndGet();
+                  return readerContext.docBase + doc;
+               }
+            };
+         }
+
+         @Override
+         public boolean equals(Object o) {
+            return o == this;
+         }
+
+         @Override
+         public int hashCode() {
+            return 0;
+         }
+
+         @Override
+         public String description() {
+            return "docid";
+         }
+      };
+   }
+
+   private static void assertValues(ValueSource valueSource, IndexReader reader) throws Exception {
+      for (LeafReaderContext leaf : reader.leaves()) {
+         FunctionValues values = valueSource.getValues(new HashMap<>(), leaf);
+         for (int doc = 0; doc < leaf.reader().maxDoc(); doc++) {
+            assertEquals(leaf.docBase + doc, values.floatVal(doc), 0.0);
+         }
+      }
+   }
 }
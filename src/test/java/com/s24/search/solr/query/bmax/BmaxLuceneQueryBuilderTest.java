@@ -1,20 +1,35 @@
 package com.s24.search.solr.query.bmax;
 
 import com.s24.search.solr.query.bmax.BmaxQuery.BmaxTerm;
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.TokenFilter;
+import org.apache.lucene.analysis.Tokenizer;
 import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.analysis.standard.StandardTokenizer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field.Store;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.MultiFields;
 import org.apache.lucene.search.*;
+import org.apache.lucene.store.RAMDirectory;
 import org.apache.lucene.util.BytesRef;
 import org.apache.solr.schema.FieldType;
 import org.apache.solr.schema.IndexSchema;
 import org.apache.solr.schema.SchemaField;
 import org.apache.solr.search.FieldParams;
+import org.apache.solr.search.SolrCache;
 import org.hamcrest.Description;
 import org.hamcrest.TypeSafeMatcher;
 import org.junit.Before;
 import org.junit.Test;
 import org.mockito.Mockito;
 
+import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.stream.Collectors;
 
 import static com.s24.search.solr.query.bmax.AbstractLuceneQueryTest.*;
@@ -106,6 +121,103 @@ public class BmaxLuceneQueryBuilderTest {
                   ))));
    }
 
+   @Test
+   public void testPrefixAndFuzzyOnlyForFieldsWithCandidates() throws Exception {
+      BmaxQuery bmaxQuery = new BmaxQuery();
+      bmaxQuery.getFieldsAndBoosts().put("field1", 10f);
+      bmaxQuery.getFieldsAndBoosts().put("field2", 1f);
+      bmaxQuery.getTerms().add(new BmaxTerm("foo"));
+      bmaxQuery.setAllPhraseFields(Collections.emptyList());
+      bmaxQuery.setInspectTerms(true);
+      bmaxQuery.setPrefixEnabled(true);
+      bmaxQuery.setFuzzyMaxEdits(1);
+
+      // field1 contains "foobar" and "fob", field2 only "foo"
+      @SuppressWarnings("unchecked")
+      SolrCache<String, FieldTermsDictionary> cache = Mockito.mock(SolrCache.class);
+      when(cache.get("field1")).thenReturn(dictionary("foobar", "fob"));
+      when(cache.get("field2")).thenReturn(dictionary("foo"));
+
+      BmaxLuceneQueryBuilder builder = new BmaxLuceneQueryBuilder(bmaxQuery).withSchema(schema)
+            .withFieldTermCache(cache);
+      BooleanQuery query = (BooleanQuery) builder.build();
+      DisjunctionMaxQuery dismax = (DisjunctionMaxQuery) query.clauses().get(0).getQuery();
+
+      Set<String> disjuncts = dismax.getDisjuncts().stream().map(Query::toString).collect(Collectors.toSet());
+      assertEquals(new HashSet<>(Arrays.asList(
+            "field2:(foo)",
+            "field1:foo*",
+            "field1:foo~1",
+            "(field2:foo*)^0.1",
+            "(field2:foo~1)^0.1")), disjuncts);
+      assertEquals(5, builder.getQueryClauseCount());
+
+      // only the term query of field1 is pruned
+      assertEquals(5, builder.getInspectionHits());
+      assertEquals(1, builder.getPrunedClauses());
+   }
+
+   private static FieldTermsDictionary dictionary(String... terms) throws IOException {
+      RAMDirectory directory = new RAMDirectory();
+      try (IndexWriter writer = new IndexWriter(directory, new IndexWriterConfig(new StandardAnalyzer()))) {
+         for (String term : terms) {
+            Document doc = new Document();
+            doc.add(new StringField("field", term, Store.NO));
+            writer.addDocument(doc);
+         }
+      }
+      try (DirectoryReader reader = DirectoryReader.open(directory)) {
+         return FieldTermsDictionary.build(MultiFields.getTerms(reader, "field"));
+      }
+   }
+
+   @Test
+   public void testFieldsWithSameAnalyzerAreAnalyzedOnce() throws Exception {
+      final AtomicInteger analyzed = new AtomicInteger();
+      when(fieldType.getQueryAnalyzer()).thenReturn(new Analyzer() {
+         @Override
+         protected TokenStreamComponents createComponents(String fieldName) {
+            Tokenizer tokenizer = new StandardTokenizer();
+            return new TokenStreamComponents(tokenizer, new TokenFilter(tokenizer) {
+               @Override
+               public boolean incrementToken() throws IOException {
+                  return input.incrementToken();
+               }
+
+               @Override
+               public void reset() throws IOException {
+                  super.reset();
+                  analyzed.incrementAndGet();
+               }
+            });
+         }
+      });
+
+      BmaxQuery bmaxQuery = new BmaxQuery();
+      bmaxQuery.getFieldsAndBoosts().put("field1", 10f);
+      bmaxQuery.getFieldsAndBoosts().put("field2", 1f);
+      bmaxQuery.getFieldsAndBoosts().put("field3", 1f);
+      BmaxTerm term = new BmaxTerm("foo");
+      term.getSynonyms().add("bar");
+      bmaxQuery.getTerms().add(term);
+      bmaxQuery.setAllPhraseFields(Collections.emptyList());
+
+      Query query = new BmaxLuceneQueryBuilder(bmaxQuery).withSchema(schema).build();
+
+      // term and synonym analyzed once for all three fields (plus the reset when closing the stream)
+      assertEquals(4, analyzed.get());
+      assertThat(query,
+            bq(
+                  c(BooleanClause.Occur.MUST, dmq(
+                        tis(10f, "field1", "foo"),
+                        tis(1f, "field1", "bar"),
+                        tis(1f, "field2", "foo"),
+                        tis(0.1f, "field2", "bar"),
+                        tis(1f, "field3", "foo"),
+                        tis(0.1f, "field3", "bar")
+                  ))));
+   }
+
    @Test
    public void testPhraseBoost() throws Exception {
 
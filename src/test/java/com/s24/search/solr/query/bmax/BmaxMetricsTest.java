@@ -0,0 +1,75 @@
+package com.s24.search.solr.query.bmax;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Collections;
+
+import org.apache.solr.common.util.NamedList;
+import org.apache.solr.core.PluginInfo;
+import org.apache.solr.metrics.SolrMetricManager;
+import org.junit.Test;
+
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.collect.ImmutableMap;
+import com.s24.search.solr.query.bmax.BmaxQuery.BmaxTerm;
+
+public class BmaxMetricsTest {
+
+   private static final String REGISTRY = "solr.core.test";
+
+   @Test
+   public void testMetricsAreRegisteredForThePlugin() {
+      SolrMetricManager manager = new SolrMetricManager();
+      BmaxQParserPlugin plugin = new BmaxQParserPlugin();
+      plugin.initializeMetrics(manager, REGISTRY, "tag", "bmax");
+
+      MetricRegistry registry = manager.registry(REGISTRY);
+      assertSame(registry, plugin.getMetricRegistry());
+      for (String name : new String[] { BmaxMetrics.ANALYSIS_TIME, BmaxMetrics.BUILD_TIME,
+            BmaxMetrics.QUERY_CLAUSES, BmaxMetrics.INSPECTION_HITS, BmaxMetrics.PRUNED_CLAUSES,
+            BmaxMetrics.FIELD_TERM_CACHE_BUILD_TIME, BmaxMetrics.FIELD_TERM_CACHE_SIZE }) {
+         String fullName = MetricRegistry.name("QUERYPARSER", "bmax", name);
+         assertTrue(fullName, registry.getNames().contains(fullName));
+         assertTrue(fullName, plugin.getMetricNames().contains(fullName));
+      }
+   }
+
+   @Test
+   public void testMetricsAreScopedByTheConfiguredName() {
+      NamedList<Object> initArgs = new NamedList<>();
+      initArgs.add("queryParsingFieldType", "bmax_query");
+      BmaxQParserPlugin plugin = new BmaxQParserPlugin();
+      plugin.init(new PluginInfo("queryParser",
+            ImmutableMap.of("name", "mybmax", "class", BmaxQParserPlugin.class.getName()), initArgs, null));
+
+      // the core registers the plugin with the scope returned by getName()
+      assertEquals("mybmax", plugin.getName());
+      assertEquals(BmaxQParserPlugin.class.getName(), new BmaxQParserPlugin().getName());
+   }
+
+   @Test
+   public void testBuildIsRecordedOnce() {
+      BmaxQuery bmaxQuery = new BmaxQuery();
+      bmaxQuery.getTerms().add(new BmaxTerm("foo"));
+      bmaxQuery.setAllPhraseFields(Collections.emptyList());
+      BmaxLuceneQueryBuilder builder = new BmaxLuceneQueryBuilder(bmaxQuery);
+      builder.build();
+
+      BmaxMetrics metrics = new BmaxMetrics();
+      metrics.analyzed(1000L);
+      metrics.built(builder, 2000L);
+      metrics.fieldTermsLoaded(FieldTermsDictionary.UNKNOWN, 3000L);
+
+      assertEquals(1, metrics.getAnalysisTime().getCount());
+      assertEquals(1, metrics.getBuildTime().getCount());
+      assertEquals(2000L, metrics.getBuildTime().getSnapshot().getMax());
+      assertEquals(1, metrics.getQueryClauses().getCount());
+      assertEquals(builder.getQueryClauseCount(), metrics.getQueryClauses().getSnapshot().getMax());
+      assertEquals(0, metrics.getInspectionHits().getCount());
+      assertEquals(0, metrics.getPrunedClauses().getCount());
+      assertEquals(1, metrics.getFieldTermCacheBuildTime().getCount());
+      assertEquals(1, metrics.getFieldTermCacheSize().getCount());
+   }
+}
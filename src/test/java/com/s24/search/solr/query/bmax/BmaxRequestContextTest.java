@@ -0,0 +1,68 @@
+package com.s24.search.solr.query.bmax;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.TokenFilter;
+import org.apache.lucene.analysis.Tokenizer;
+import org.apache.lucene.analysis.standard.StandardTokenizer;
+import org.apache.solr.request.SolrQueryRequest;
+import org.junit.Test;
+
+public class BmaxRequestContextTest {
+
+   @Test
+   public void testContextIsSharedWithinRequest() {
+      Map<Object, Object> requestContext = new HashMap<>();
+      SolrQueryRequest request = mock(SolrQueryRequest.class);
+      when(request.getContext()).thenReturn(requestContext);
+
+      BmaxRequestContext context = BmaxRequestContext.get(request);
+
+      assertSame(context, BmaxRequestContext.get(request));
+      assertNotSame(context, BmaxRequestContext.get(null));
+   }
+
+   @Test
+   public void testInputIsAnalyzedOnce() {
+      final AtomicInteger analyzed = new AtomicInteger();
+      Analyzer analyzer = new Analyzer() {
+         @Override
+         protected TokenStreamComponents createComponents(String fieldName) {
+            Tokenizer tokenizer = new StandardTokenizer();
+            return new TokenStreamComponents(tokenizer, new TokenFilter(tokenizer) {
+               @Override
+               public boolean incrementToken() throws IOException {
+                  return input.incrementToken();
+               }
+
+               @Override
+               public void reset() throws IOException {
+                  super.reset();
+                  analyzed.incrementAndGet();
+               }
+            });
+         }
+      };
+
+      BmaxRequestContext context = new BmaxRequestContext();
+      Set<CharSequence> terms = context.collect("foo bar", analyzer);
+      terms.add("baz");
+
+      // analyzed once (plus the reset when closing the stream), the modification does not leak
+      assertEquals(new HashSet<>(Arrays.asList("foo", "bar")), context.collect("foo bar", analyzer));
+      assertEquals(2, analyzed.get());
+   }
+}
@@ -0,0 +1,201 @@
+package com.s24.search.solr.query.bmax;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field.Store;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.MultiFields;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.RAMDirectory;
+import org.apache.lucene.util.BytesRef;
+import org.apache.solr.search.SolrCache;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class FieldTermsDictionaryTest {
+
+   @Rule
+   public TemporaryFolder folder = new TemporaryFolder();
+
+   private Directory directory;
+   private DirectoryReader reader;
+
+   @Before
+   public void setUp() throws Exception {
+      directory = new RAMDirectory();
+      try (IndexWriter writer = new IndexWriter(directory, new IndexWriterConfig(new StandardAnalyzer()))) {
+         for (String term : new String[] { "bike", "bicycle", "fahrrad", "über", "🚲" }) {
+            Document doc = new Document();
+            doc.add(new StringField("field1", term, Store.NO));
+            writer.addDocument(doc);
+         }
+      }
+      reader = DirectoryReader.open(directory);
+   }
+
+   @After
+   public void tearDown() throws Exception {
+      reader.close();
+      directory.close();
+   }
+
+   @Test
+   public void testContainsIndexedTerms() throws Exception {
+      FieldTermsDictionary dictionary = FieldTermsDictionary.build(MultiFields.getTerms(reader, "field1"));
+
+      assertTrue(dictionary.fieldMayContainTerm(new BytesRef("bike")));
+      assertTrue(dictionary.fieldMayContainTerm(new BytesRef("bicycle")));
+      assertTrue(dictionary.fieldMayContainTerm(new BytesRef("über")));
+      assertTrue(dictionary.fieldMayContainTerm(new BytesRef("🚲")));
+      assertFalse(dictionary.fieldMayContainTerm(new BytesRef("bik")));
+      assertFalse(dictionary.fieldMayContainTerm(new BytesRef("bikes")));
+      assertFalse(dictionary.fieldMayContainTerm(new BytesRef("")));
+   }
+
+   @Test
+   public void testOffHeapDictionary() throws Exception {
+      FieldTermsDictionary dictionary = OffHeapFieldTermsDictionary.build(MultiFields.getTerms(reader, "field1"),
+            reader.getVersion());
+
+      assertEquals(5, dictionary.getTermCount());
+      assertTrue(dictionary.offHeapBytesUsed() > 0);
+      assertTrue(dictionary.fieldMayContainTerm(new BytesRef("bike")));
+      assertTrue(dictionary.fieldMayContainTerm(new BytesRef("🚲")));
+      assertFalse(dictionary.fieldMayContainTerm(new BytesRef("bikes")));
+   }
+
+   @Test
+   public void testPrefixAndFuzzy() throws Exception {
+      FieldTermsDictionary fst = FieldTermsDictionary.build(MultiFields.getTerms(reader, "field1"));
+      FieldTermsDictionary offHeap = OffHeapFieldTermsDictionary.build(MultiFields.getTerms(reader, "field1"),
+            reader.getVersion());
+
+      for (FieldTermsDictionary dictionary : Arrays.asList(fst, offHeap)) {
+         assertTrue(dictionary.fieldMayContainPrefix(new BytesRef("")));
+         assertTrue(dictionary.fieldMayContainPrefix(new BytesRef("bi")));
+         assertTrue(dictionary.fieldMayContainPrefix(new BytesRef("bike")));
+         assertTrue(dictionary.fieldMayContainPrefix(new BytesRef("üb")));
+         assertFalse(dictionary.fieldMayContainPrefix(new BytesRef("bikes")));
+         assertFalse(dictionary.fieldMayContainPrefix(new BytesRef("c")));
+
+         assertTrue(dictionary.fieldMayContainFuzzy(new BytesRef("bike"), 0));
+         assertTrue(dictionary.fieldMayContainFuzzy(new BytesRef("bikes"), 1));
+         assertTrue(dictionary.fieldMayContainFuzzy(new BytesRef("bkie"), 1));
+         assertTrue(dictionary.fieldMayContainFuzzy(new BytesRef("uber"), 1));
+         assertTrue(dictionary.fieldMayContainFuzzy(new BytesRef("fahrad"), 1));
+         assertFalse(dictionary.fieldMayContainFuzzy(new BytesRef("bikes"), 0));
+         assertFalse(dictionary.fieldMayContainFuzzy(new BytesRef("bakers"), 2));
+         assertFalse(dictionary.fieldMayContainFuzzy(new BytesRef("auto"), 2));
+      }
+   }
+
+   @Test
+   public void testEmptyField() throws Exception {
+      FieldTermsDictionary dictionary = FieldTermsDictionary.build(MultiFields.getTerms(reader, "field2"));
+
+      assertFalse(dictionary.fieldMayContainTerm(new BytesRef("bike")));
+      assertFalse(dictionary.fieldMayContainPrefix(new BytesRef("")));
+      assertFalse(dictionary.fieldMayContainFuzzy(new BytesRef("bike"), 2));
+   }
+
+   @Test
+   public void testPersistedDictionary() throws Exception {
+      FieldTermsDictionaryStore store = new FieldTermsDictionaryStore(folder.getRoot().toPath());
+      assertNull(store.load("field1", reader.getVersion()));
+
+      FieldTermsDictionary written = store.write("field1", reader.getVersion(), MultiFields.getTerms(reader, "field1"));
+      FieldTermsDictionary loaded = store.load("field1", reader.getVersion());
+      assertNotNull(loaded);
+      assertNull(store.load("field1", reader.getVersion() + 1));
+
+      for (FieldTermsDictionary dictionary : Arrays.asList(written, loaded)) {
+         assertEquals(5, dictionary.getTermCount());
+         assertTrue(dictionary.fieldMayContainTerm(new BytesRef("bike")));
+         assertTrue(dictionary.fieldMayContainTerm(new BytesRef("bicycle")));
+         assertTrue(dictionary.fieldMayContainTerm(new BytesRef("über")));
+         assertTrue(dictionary.fieldMayContainTerm(new BytesRef("🚲")));
+         assertFalse(dictionary.fieldMayContainTerm(new BytesRef("bik")));
+         assertFalse(dictionary.fieldMayContainTerm(new BytesRef("bikes")));
+         assertFalse(dictionary.fieldMayContainTerm(new BytesRef("")));
+      }
+   }
+
+   @Test
+   public void testPersistedFieldNamesAreSanitized() throws Exception {
+      FieldTermsDictionaryStore store = new FieldTermsDictionaryStore(folder.getRoot().toPath());
+
+      // short names, path separators and names differing in unsafe characters only
+      for (String field : Arrays.asList("f", "attr/../x", "attr_x", "attr.x")) {
+         store.write(field, reader.getVersion(), MultiFields.getTerms(reader, "field1"));
+
+         assertEquals(folder.getRoot().toPath(), store.getFile(field).getParent());
+         assertNotNull(field, store.load(field, reader.getVersion()));
+      }
+      assertEquals(4, folder.getRoot().list().length);
+   }
+
+   @Test
+   public void testPersistedEmptyField() throws Exception {
+      FieldTermsDictionaryStore store = new FieldTermsDictionaryStore(folder.getRoot().toPath());
+      FieldTermsDictionary dictionary = store.write("field2", reader.getVersion(), MultiFields.getTerms(reader, "field2"));
+
+      assertEquals(0, dictionary.getTermCount());
+      assertFalse(dictionary.fieldMayContainTerm(new BytesRef("bike")));
+      assertFalse(dictionary.fieldMayContainPrefix(new BytesRef("")));
+      assertFalse(dictionary.fieldMayContainFuzzy(new BytesRef("bike"), 2));
+   }
+
+   @Test
+   public void testPersistedDictionariesAreMappedIntoTheCache() throws Exception {
+      FieldTermsDictionaryStore store = new FieldTermsDictionaryStore(folder.getRoot().toPath());
+      store.write("field1", reader.getVersion(), MultiFields.getTerms(reader, "field1"));
+      store.write("field2", reader.getVersion() - 1, MultiFields.getTerms(reader, "field2"));
+
+      Map<String, FieldTermsDictionary> entries = new HashMap<>();
+      @SuppressWarnings("unchecked")
+      SolrCache<String, FieldTermsDictionary> cache = mock(SolrCache.class);
+      when(cache.get(anyString())).thenAnswer(invocation -> entries.get(invocation.getArguments()[0]));
+      when(cache.put(anyString(), any(FieldTermsDictionary.class))).thenAnswer(invocation -> entries
+            .put((String) invocation.getArguments()[0], (FieldTermsDictionary) invocation.getArguments()[1]));
+
+      // a stale dictionary and a field never persisted are left to the build request
+      assertEquals(1, FieldTermsDictionaryListener.map(cache, store, Arrays.asList("field1", "field2", "field3"),
+            reader.getVersion()));
+      assertEquals(Collections.singleton("field1"), entries.keySet());
+      assertTrue(entries.get("field1").fieldMayContainTerm(new BytesRef("bike")));
+
+      // cached fields are kept
+      FieldTermsDictionary cached = entries.get("field1");
+      assertEquals(0, FieldTermsDictionaryListener.map(cache, store, Arrays.asList("field1"), reader.getVersion()));
+      assertSame(cached, entries.get("field1"));
+   }
+
+   @Test
+   public void testUnknownField() throws Exception {
+      assertTrue(FieldTermsDictionary.UNKNOWN.fieldMayContainTerm(new BytesRef("bike")));
+      assertTrue(FieldTermsDictionary.UNKNOWN.fieldMayContainPrefix(new BytesRef("bike")));
+      assertTrue(FieldTermsDictionary.UNKNOWN.fieldMayContainFuzzy(new BytesRef("bike"), 1));
+   }
+}
@@ -0,0 +1,78 @@
+package com.s24.search.solr.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+import com.s24.search.solr.functions.FloatCachingValueSource;
+
+public class CheckedFloatValueCacheTest {
+
+   private static final int MAX_DOCS = 1000000;
+   private static final int LOOKUPS = 10000000;
+
+   @Test
+   public void testAccessWithinBoundsIsDelegated() {
+      CheckedFloatValueCache cache = new CheckedFloatValueCache(new FloatArrayValueCache(10), 10);
+
+      cache.setFloat(9, 1.5f);
+
+      assertTrue(cache.hasValue(9));
+      assertFalse(cache.hasValue(0));
+      assertEquals(1.5f, cache.getFloat(9), 0f);
+   }
+
+   @Test(expected = IllegalArgumentException.class)
+   public void testReadBeyondMaxDocFails() {
+      // the array holds one value more than documents, unchecked the read would pass
+      new CheckedFloatValueCache(new FloatArrayValueCache(10), 10).getFloat(10);
+   }
+
+   @Test(expected = IllegalArgumentException.class)
+   public void testBulkReadBeyondMaxDocFails() {
+      new CheckedFloatValueCache(new FloatArrayValueCache(10), 10).getFloats(5, new float[10], 0, 6);
+   }
+
+   @Test(expected = IllegalArgumentException.class)
+   public void testNegativeWriteFails() {
+      new CheckedFloatValueCache(new FloatArrayValueCache(10), 10).setFloat(-1, 1f);
+   }
+
+   @Test
+   public void testLookupPerformance() {
+      for (int hint = FloatCachingValueSource.CACHE_FAST; hint <= FloatCachingValueSource.CACHE_HALF; hint++) {
+         FloatValueCache cache = FloatCachingValueSource.createCache(MAX_DOCS, hint);
+         Random random = new Random(42);
+         for (int doc = 0; doc < MAX_DOCS; doc += 3) {
+            cache.setFloat(doc, random.nextFloat());
+         }
+
+         // warm up both, then measure
+         lookup(cache);
+         lookup(new CheckedFloatValueCache(cache, MAX_DOCS));
+         long unchecked = lookup(cache);
+         long checked = lookup(new CheckedFloatValueCache(cache, MAX_DOCS));
+
+         System.out.println(cache.getClass().getSimpleName() + ": " + LOOKUPS + " lookups in " + unchecked
+               + "ms unchecked, " + checked + "ms checked");
+      }
+   }
+
+   private long lookup(FloatValueCache cache) {
+      long start = System.currentTimeMillis();
+      float sum = 0;
+      for (int i = 0; i < LOOKUPS; i++) {
+         int doc = (int) ((i * 2654435761L) % MAX_DOCS);
+         if (cache.hasValue(doc)) {
+            sum += cache.getFloat(doc);
+         }
+      }
+      assertFalse(Float.isNaN(sum));
+
+      return System.currentTimeMillis() - start;
+   }
+}
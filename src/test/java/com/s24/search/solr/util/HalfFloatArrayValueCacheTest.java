@@ -0,0 +1,63 @@
+package com.s24.search.solr.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+public class HalfFloatArrayValueCacheTest {
+
+   @Test
+   public void testAllHalfFloatsConvertExactly() {
+      for (int bits = 0; bits <= 0xffff; bits++) {
+         short half = (short) bits;
+         float value = HalfFloatArrayValueCache.toFloat(half);
+
+         if (Float.isNaN(value)) {
+            assertTrue(Float.isNaN(HalfFloatArrayValueCache.toFloat(HalfFloatArrayValueCache.toHalf(value))));
+         } else {
+            assertEquals("bits: " + bits, half, HalfFloatArrayValueCache.toHalf(value));
+         }
+      }
+   }
+
+   @Test
+   public void testRelativeErrorBound() {
+      HalfFloatArrayValueCache cache = new HalfFloatArrayValueCache(1);
+      Random random = new Random(42);
+
+      for (int i = 0; i < 100000; i++) {
+         // magnitudes within the normal half-float range
+         float value = (random.nextBoolean() ? 1 : -1) * (float) Math.pow(2, random.nextFloat() * 29 - 14);
+         cache.setFloat(0, value);
+         assertEquals("value: " + value, value, cache.getFloat(0), Math.abs(value) * 0x1p-11f);
+      }
+
+      // rounds to nearest even and clamps
+      cache.setFloat(0, 1f + 0x1p-11f);
+      assertEquals(1f, cache.getFloat(0), 0f);
+      cache.setFloat(0, 1e6f);
+      assertEquals(HalfFloatArrayValueCache.MAX_VALUE, cache.getFloat(0), 0f);
+   }
+
+   @Test
+   public void testNaNMarksMissingValues() {
+      HalfFloatArrayValueCache cache = new HalfFloatArrayValueCache(100);
+
+      cache.setFloat(3, 0f);
+      cache.setFloat(5, -2.5f);
+
+      float[] values = new float[100];
+      cache.getFloats(0, values, 0, 100);
+      for (int doc = 0; doc < 100; doc++) {
+         assertEquals(doc == 3 || doc == 5, cache.hasValue(doc));
+         assertEquals(cache.getFloat(doc), values[doc], 0f);
+      }
+      assertEquals(-2.5f, cache.getFloat(5), 0f);
+      assertFalse(cache.hasValue(0));
+      assertTrue(cache.ramBytesUsed() < new FloatArrayValueCache(100).ramBytesUsed());
+   }
+}
@@ -0,0 +1,137 @@
+package com.s24.search.solr.util.packed;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.text.NumberFormat;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class AdaptiveFloatValueCacheTest {
+
+   private static final int MAX_DOCS = 100000;
+   private static final float PRECISION = 1f / AdaptiveFloatValueCache.DEFAULT_PRECISION;
+
+   @Test
+   public void testSparseValues() {
+      AdaptiveFloatValueCache cache = new AdaptiveFloatValueCache(MAX_DOCS, AdaptiveFloatValueCache.DEFAULT_PRECISION);
+      long empty = cache.ramBytesUsed();
+
+      // a few values per block stay sparse
+      for (int doc = 0; doc < MAX_DOCS; doc += 100) {
+         cache.setFloat(doc, -doc / 3f);
+      }
+      cache.compact();
+
+      for (int doc = 0; doc < MAX_DOCS; doc++) {
+         if (doc % 100 == 0) {
+            assertTrue(cache.hasValue(doc));
+            assertEquals(-doc / 3f, cache.getFloat(doc), 0f);
+         } else {
+            assertFalse(cache.hasValue(doc));
+         }
+      }
+
+      // far less than a float per document
+      assertTrue(cache.ramBytesUsed() - empty < MAX_DOCS);
+      System.out.println("Adaptive sparse bytes: " + NumberFormat.getInstance().format(cache.ramBytesUsed()));
+   }
+
+   @Test
+   public void testDenseValuesArePacked() {
+      AdaptiveFloatValueCache cache = new AdaptiveFloatValueCache(MAX_DOCS, AdaptiveFloatValueCache.DEFAULT_PRECISION);
+      Random random = new Random(42);
+      float[] values = new float[MAX_DOCS];
+
+      // small range of values, e.g. a popularity between 1 and 2, some documents are left out
+      for (int doc = 0; doc < MAX_DOCS; doc++) {
+         values[doc] = doc % 1000 == 0 ? Float.NaN : 1f + random.nextFloat();
+         if (!Float.isNaN(values[doc])) {
+            cache.setFloat(doc, values[doc]);
+         }
+      }
+      long dense = cache.ramBytesUsed();
+      assertTrue(dense >= 4L * MAX_DOCS);
+
+      cache.compact();
+      for (int doc = 0; doc < MAX_DOCS; doc++) {
+         assertEquals(values[doc], cache.getFloat(doc), PRECISION);
+      }
+
+      // 14 bits are needed for the range
+      assertTrue(cache.ramBytesUsed() < 2L * MAX_DOCS);
+      System.out.println(String.format("Adaptive dense bytes: %s, packed bytes: %s",
+            NumberFormat.getInstance().format(dense), NumberFormat.getInstance().format(cache.ramBytesUsed())));
+
+      // changing a value unpacks the block
+      cache.setFloat(7, 1234.5f);
+      assertEquals(1234.5f, cache.getFloat(7), 0f);
+      assertEquals(values[8], cache.getFloat(8), PRECISION);
+   }
+
+   @Test
+   public void testFilledBlocksArePackedWithoutCompacting() {
+      AdaptiveFloatValueCache cache = new AdaptiveFloatValueCache(MAX_DOCS, AdaptiveFloatValueCache.DEFAULT_PRECISION);
+
+      for (int doc = MAX_DOCS - 1; doc >= 0; doc--) {
+         cache.setFloat(doc, 1f + (doc % 1000) / 1000f);
+      }
+
+      assertTrue(cache.ramBytesUsed() < 2L * MAX_DOCS);
+      for (int doc = 0; doc < MAX_DOCS; doc++) {
+         assertEquals(1f + (doc % 1000) / 1000f, cache.getFloat(doc), PRECISION);
+      }
+   }
+
+   @Test
+   public void testBulkReadsMatchSingleReads() {
+      AdaptiveFloatValueCache cache = new AdaptiveFloatValueCache(MAX_DOCS, AdaptiveFloatValueCache.DEFAULT_PRECISION);
+      Random random = new Random(42);
+
+      // sparse, dense and empty blocks, the dense ones are packed in a second pass
+      for (int doc = 0; doc < MAX_DOCS; doc++) {
+         int block = doc / AdaptiveFloatValueCache.BLOCK_SIZE;
+         if (block % 3 == 0 ? doc % 97 == 0 : block % 3 == 1) {
+            cache.setFloat(doc, random.nextFloat() * 100);
+         }
+      }
+
+      assertBulkReads(cache, random);
+      cache.compact();
+      assertBulkReads(cache, random);
+   }
+
+   private void assertBulkReads(AdaptiveFloatValueCache cache, Random random) {
+      float[] dest = new float[AdaptiveFloatValueCache.BLOCK_SIZE * 2 + 2];
+      for (int i = 0; i < 1000; i++) {
+         int len = random.nextInt(dest.length - 1);
+         int start = random.nextInt(MAX_DOCS - len);
+         cache.getFloats(start, dest, 1, len);
+
+         for (int j = 0; j < len; j++) {
+            assertEquals(cache.getFloat(start + j), dest[1 + j], 0f);
+         }
+      }
+   }
+
+   @Test
+   public void testPromotionKeepsValues() {
+      AdaptiveFloatValueCache cache = new AdaptiveFloatValueCache(AdaptiveFloatValueCache.BLOCK_SIZE,
+            AdaptiveFloatValueCache.DEFAULT_PRECISION);
+
+      // fill in reverse order, passing the sparse threshold
+      for (int doc = AdaptiveFloatValueCache.SPARSE_MAX_VALUES * 2; doc >= 0; doc -= 2) {
+         cache.setFloat(doc, doc);
+      }
+
+      for (int doc = 0; doc < AdaptiveFloatValueCache.BLOCK_SIZE; doc++) {
+         if (doc % 2 == 0 && doc <= AdaptiveFloatValueCache.SPARSE_MAX_VALUES * 2) {
+            assertEquals(doc, cache.getFloat(doc), 0f);
+         } else {
+            assertFalse(cache.hasValue(doc));
+         }
+      }
+   }
+}
@@ -0,0 +1,112 @@
+package com.s24.search.solr.util.packed;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.text.NumberFormat;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.IntFunction;
+
+import org.apache.lucene.util.packed.PackedInts;
+import org.junit.Test;
+
+import com.s24.search.solr.util.FloatValueCache;
+
+/**
+ * Fills the caches from concurrent threads, like concurrent queries (or a searcher with an executor) filling a
+ * shared caching value source, while other threads read the values.
+ */
+public class ConcurrentValueCacheTest {
+
+   private static final int MAX_DOCS = 200000;
+   private static final int THREADS = 4;
+   private static final float PRECISION = 1f / OffsetGrowableFloatWriter.DEFAULT_PRECISION;
+
+   @Test
+   public void testConcurrentSparse() throws Exception {
+      testConcurrentAccess("Sparse packed",
+            maxDocs -> new FloatArraySparseMutable(maxDocs, FloatArraySparseMutable.DEFAULT_PRECISION));
+   }
+
+   @Test
+   public void testConcurrentOffsetPacked() throws Exception {
+      testConcurrentAccess("OffsetGrowableFloatWriter",
+            maxDocs -> new OffsetGrowableFloatWriter(OffsetGrowableFloatWriter.DEFAULT_PRECISION, 4, maxDocs,
+                  PackedInts.DEFAULT));
+   }
+
+   @Test
+   public void testConcurrentAdaptive() throws Exception {
+      testConcurrentAccess("Adaptive",
+            maxDocs -> new AdaptiveFloatValueCache(maxDocs, AdaptiveFloatValueCache.DEFAULT_PRECISION));
+   }
+
+   private void testConcurrentAccess(String name, IntFunction<FloatValueCache> factory) throws Exception {
+      final FloatValueCache cache = factory.apply(MAX_DOCS);
+      ExecutorService executor = Executors.newFixedThreadPool(THREADS * 2);
+
+      try {
+         long start = System.currentTimeMillis();
+         List<Future<Integer>> results = new ArrayList<>();
+         for (int t = 0; t < THREADS; t++) {
+            // writers visit all docs in a random order, so smaller values (and rebalances) occur all the time
+            final Random random = new Random(t);
+            results.add(executor.submit(() -> {
+               for (int i = 0; i < MAX_DOCS; i++) {
+                  int doc = random.nextInt(MAX_DOCS);
+                  if (!cache.hasValue(doc)) {
+                     cache.setFloat(doc, valueOf(doc));
+                  }
+               }
+               return 0;
+            }));
+
+            // readers only ever see the values written
+            final Random readerRandom = new Random(-t);
+            results.add(executor.submit(new Callable<Integer>() {
+               @Override
+               public Integer call() {
+                  int hits = 0;
+                  for (int i = 0; i < MAX_DOCS; i++) {
+                     int doc = readerRandom.nextInt(MAX_DOCS);
+                     if (cache.hasValue(doc)) {
+                        assertEquals("doc: " + doc, valueOf(doc), cache.getFloat(doc), PRECISION);
+                        hits++;
+                     }
+                  }
+                  return hits;
+               }
+            }));
+         }
+
+         for (Future<Integer> result : results) {
+            result.get();
+         }
+
+         System.out.println(String.format("%s: %s concurrent operations in %sms", name,
+               NumberFormat.getInstance().format(2L * THREADS * MAX_DOCS), System.currentTimeMillis() - start));
+      } finally {
+         executor.shutdown();
+      }
+
+      // no value has been lost or corrupted
+      int filled = 0;
+      for (int doc = 0; doc < MAX_DOCS; doc++) {
+         if (cache.hasValue(doc)) {
+            assertEquals("doc: " + doc, valueOf(doc), cache.getFloat(doc), PRECISION);
+            filled++;
+         }
+      }
+      assertTrue(filled > 0);
+   }
+
+   private static float valueOf(int doc) {
+      return (doc * 31 % 1000) / 100f;
+   }
+}
@@ -0,0 +1,90 @@
+package com.s24.search.solr.util.packed;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import org.apache.lucene.util.packed.PackedInts;
+import org.junit.Test;
+
+import com.s24.search.solr.util.FloatValueCache;
+
+public class FloatQuantizerTest {
+
+   private static final int VALUES = 100000;
+
+   @Test
+   public void testFixedPointErrorBound() {
+      assertErrorBound(new FixedPointQuantizer(10000), 1000f);
+   }
+
+   @Test
+   public void testBFloat16ErrorBound() {
+      assertErrorBound(BFloat16Quantizer.INSTANCE, 1e30f);
+      assertErrorBound(BFloat16Quantizer.INSTANCE, 1e-30f);
+   }
+
+   @Test
+   public void testBFloat16ClampsLargestValues() {
+      long max = BFloat16Quantizer.INSTANCE.encode(Float.MAX_VALUE);
+      assertEquals(0x7f7f, max);
+      assertEquals(-max, BFloat16Quantizer.INSTANCE.encode(-Float.MAX_VALUE));
+      assertTrue(Float.isFinite(BFloat16Quantizer.INSTANCE.decode(max)));
+      assertEquals(Float.MAX_VALUE, BFloat16Quantizer.INSTANCE.decode(max),
+            BFloat16Quantizer.INSTANCE.maxError(Float.MAX_VALUE));
+   }
+
+   @Test
+   public void testBFloat16CodesAreCompact() {
+      // values within a power of two differ in the 7 stored significant bits only
+      long one = BFloat16Quantizer.INSTANCE.encode(1f);
+      long almostTwo = BFloat16Quantizer.INSTANCE.encode(1.99f);
+      assertTrue(almostTwo - one < 1 << 7);
+      assertEquals(-one, BFloat16Quantizer.INSTANCE.encode(-1f));
+   }
+
+   @Test
+   public void testNegativeValuesArePacked() {
+      for (FloatQuantizer quantizer : new FloatQuantizer[] { new FixedPointQuantizer(1000),
+            BFloat16Quantizer.INSTANCE }) {
+         assertNegativeValues(new FloatArraySparseMutable(VALUES, quantizer), quantizer);
+         assertNegativeValues(new OffsetGrowableFloatWriter(quantizer, 2, VALUES, PackedInts.DEFAULT), quantizer);
+      }
+   }
+
+   private void assertErrorBound(FloatQuantizer quantizer, float scale) {
+      Random random = new Random(42);
+      float previous = Float.NEGATIVE_INFINITY;
+      long previousCode = Long.MIN_VALUE;
+
+      for (int i = 0; i < VALUES; i++) {
+         // ascending values, so the encoding has to keep the order
+         float value = scale * (2f * i / VALUES - 1f) + random.nextFloat() * scale / VALUES;
+         long code = quantizer.encode(value);
+
+         assertTrue("value: " + value, Math.abs(value - quantizer.decode(code)) <= quantizer.maxError(value));
+         assertTrue("value: " + value, value < previous || code >= previousCode);
+         previous = value;
+         previousCode = code;
+      }
+   }
+
+   private void assertNegativeValues(FloatValueCache cache, FloatQuantizer quantizer) {
+      for (int doc = 0; doc < VALUES; doc += 3) {
+         cache.setFloat(doc, (float) Math.log((doc + 1) / 1000d));
+      }
+
+      float[] values = new float[VALUES];
+      cache.getFloats(0, values, 0, VALUES);
+      for (int doc = 0; doc < VALUES; doc++) {
+         if (doc % 3 == 0) {
+            float value = (float) Math.log((doc + 1) / 1000d);
+            assertEquals("doc: " + doc, value, cache.getFloat(doc), quantizer.maxError(value));
+            assertEquals("doc: " + doc, cache.getFloat(doc), values[doc], 0f);
+         } else {
+            assertTrue("doc: " + doc, Float.isNaN(values[doc]));
+         }
+      }
+   }
+}
@@ -5,6 +5,8 @@ import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 
 import java.text.NumberFormat;
+import java.util.Arrays;
+import java.util.Random;
 
 import org.apache.commons.lang.math.RandomUtils;
 import org.apache.lucene.util.RamUsageEstimator;
@@ -34,6 +36,63 @@ public class LongArraySparseMutableTest {
       }
    }
 
+   @Test
+   public void testOutOfOrderWritesAndUpdates() throws Exception {
+      AbstractSparseValues mutable = new LongArraySparseMutable(4096);
+      long[] expected = new long[4096];
+      Arrays.fill(expected, Long.MAX_VALUE);
+
+      // inserts in front of other values, updates and values needing more bits than their block holds
+      Random random = new Random(42);
+      for (int i = 0; i < 20000; i++) {
+         int doc = random.nextInt(4096);
+         long value = random.nextInt(1 << random.nextInt(31));
+         mutable.set(doc, value);
+         expected[doc] = value;
+      }
+
+      int size = 0;
+      for (int doc = 0; doc < 4096; doc++) {
+         assertEquals("doc: " + doc, expected[doc], mutable.get(doc));
+         assertEquals(expected[doc] != Long.MAX_VALUE, mutable.hasValue(doc));
+         size += mutable.hasValue(doc) ? 1 : 0;
+      }
+      assertEquals(size, mutable.size());
+   }
+
+   @Test
+   public void testMemoryFollowsValues() throws Exception {
+      FloatArraySparseMutable mutable = new FloatArraySparseMutable(MAX_DOCS, FloatArraySparseMutable.DEFAULT_PRECISION);
+
+      // one document in ten, small values
+      for (int doc = 0; doc < MAX_DOCS; doc += 10) {
+         mutable.setFloat(doc, (doc % 100) / 10f);
+      }
+
+      System.out.println("Sparse packed bytes, one doc in ten: "
+            + NumberFormat.getInstance().format(mutable.ramBytesUsed()));
+      assertTrue(mutable.ramBytesUsed() < RamUsageEstimator.sizeOf(new float[MAX_DOCS]) / 4);
+   }
+
+   @Test
+   public void testBulkReadsMatchSingleReads() throws Exception {
+      FloatArraySparseMutable mutable = new FloatArraySparseMutable(1000, 10000);
+
+      for (int i = 0; i < 1000; i += 1 + RandomUtils.nextInt(100)) {
+         mutable.setFloat(i, RandomUtils.nextFloat());
+      }
+
+      long[] longs = new long[1000];
+      mutable.getLongs(0, longs, 0, 1000);
+      float[] floats = new float[1001];
+      mutable.getFloats(0, floats, 1, 1000);
+
+      for (int i = 0; i < 1000; i++) {
+         assertEquals(mutable.get(i), longs[i]);
+         assertEquals(mutable.getFloat(i), floats[1 + i], 0f);
+      }
+   }
+
    @Test
    public void testAppendingWritePerformance() throws Exception {
       System.out.println("long array: "
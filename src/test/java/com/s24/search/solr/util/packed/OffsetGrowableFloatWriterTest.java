@@ -3,15 +3,19 @@ package com.s24.search.solr.util.packed;
 import static org.junit.Assert.assertEquals;
 
 import java.text.NumberFormat;
+import java.util.Random;
+import java.util.function.IntUnaryOperator;
 
 import org.apache.commons.lang.math.RandomUtils;
 import org.apache.lucene.util.RamUsageEstimator;
 import org.apache.lucene.util.packed.PackedInts;
+import org.junit.Ignore;
 import org.junit.Test;
 
 public class OffsetGrowableFloatWriterTest {
    
    private static final int MAX_DOCS = 8600000;
+   private static final int FILL_ORDER_DOCS = 50000000;
 
    @Test
    public void testFloatConversion() throws Exception {
@@ -35,6 +39,61 @@ public class OffsetGrowableFloatWriterTest {
       }
    }
 
+   @Test
+   public void testBulkReadsMatchSingleReads() throws Exception {
+      OffsetGrowableFloatWriter writer = new OffsetGrowableFloatWriter(OffsetGrowableFloatWriter.DEFAULT_PRECISION, 2, 4096, PackedInts.DEFAULT);
+
+      for (int i = 0; i < 4096; i += 1 + RandomUtils.nextInt(3)) {
+         writer.setFloat(i, RandomUtils.nextFloat() * 10);
+      }
+
+      float[] floats = new float[4098];
+      writer.getFloats(0, floats, 1, 4096);
+      long[] longs = new long[4096];
+      writer.getLongs(0, longs, 0, 4096);
+
+      for (int i = 0; i < 4096; i++) {
+         assertEquals(writer.getFloat(i), floats[1 + i], 0f);
+         assertEquals(writer.get(i), longs[i]);
+      }
+   }
+
+   @Test
+   public void testDescendingValuesAreRebalancedPerBlock() throws Exception {
+      OffsetGrowableWriter writer = new OffsetGrowableWriter(2, 4 * OffsetGrowableWriter.BLOCK_SIZE, PackedInts.DEFAULT);
+
+      for (int i = writer.size() - 1; i >= 0; i--) {
+         writer.set(i, 1000000L + i * 7L - (i % 3) * 1000L);
+      }
+
+      for (int i = 0; i < writer.size(); i++) {
+         assertEquals("doc: " + i, 1000000L + i * 7L - (i % 3) * 1000L, writer.get(i));
+      }
+   }
+
+   @Test
+   @Ignore("Benchmark filling three writers of 50M documents, run manually")
+   public void testFillOrderPerformance() throws Exception {
+      final Random random = new Random(42);
+
+      fill("ascending", i -> i, i -> i);
+      fill("descending", i -> FILL_ORDER_DOCS - 1 - i, i -> FILL_ORDER_DOCS - 1 - i);
+      fill("random", i -> random.nextInt(FILL_ORDER_DOCS), i -> random.nextInt(FILL_ORDER_DOCS));
+   }
+
+   private void fill(String order, IntUnaryOperator docs, IntUnaryOperator values) {
+      OffsetGrowableWriter writer = new OffsetGrowableWriter(2, FILL_ORDER_DOCS, PackedInts.DEFAULT);
+      long start = System.currentTimeMillis();
+
+      for (int i = 0; i < FILL_ORDER_DOCS; i++) {
+         writer.set(docs.applyAsInt(i), values.applyAsInt(i));
+      }
+
+      System.out.println(String.format("OffsetGrowableWriter %s fill of %s docs: %s bytes in %sms", order,
+            NumberFormat.getInstance().format(FILL_ORDER_DOCS), NumberFormat.getInstance().format(writer.ramBytesUsed()),
+            System.currentTimeMillis() - start));
+   }
+
    @Test
    public void testWritePerformance() throws Exception {
       System.out.println("Writing " + NumberFormat.getInstance().format(MAX_DOCS) + " values.");